@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -25,6 +27,71 @@ import simpledb.transaction.TransactionId;
 public class Parser {
     static boolean explain = false;
 
+    /**
+     * A trailing LIMIT clause, which Zql cannot parse: group 1 is the
+     * statement before it, group 2 the limit and group 3 any final ';'.
+     */
+    private static final Pattern LIMIT = Pattern.compile(
+            "(?is)^(.*\\S)\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$");
+
+    /** A statement with any trailing LIMIT clause taken off. */
+    static final class Limited {
+        /** The statement without its LIMIT clause. */
+        final String text;
+        /** The LIMIT taken off the statement, or -1 if it had none. */
+        final int limit;
+
+        Limited(String text, int limit) {
+            this.text = text;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Takes a trailing "LIMIT n" clause off a statement, to be applied to
+     * the statement's plan by {@link #applyLimit}.
+     *
+     * @return the statement without the LIMIT clause, and n
+     * @throws simpledb.ParsingException if the limit is out of range
+     */
+    static Limited stripLimit(String s) throws simpledb.ParsingException {
+        Matcher m = LIMIT.matcher(s);
+        if (!m.matches())
+            return new Limited(s, -1);
+        try {
+            return new Limited(m.group(1) + m.group(3), Integer.parseInt(m.group(2)));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT out of range: " + m.group(2));
+        }
+    }
+
+    /** Adds a LIMIT taken off a statement, if it had one, to its top-level plan. */
+    private static void applyLimit(LogicalPlan lp, int limit) throws simpledb.ParsingException {
+        if (limit >= 0)
+            lp.addLimit(limit);
+    }
+
+    /**
+     * @return the index just past the first ';' of s that is not inside a
+     *         quoted literal, or the length of s if there is none
+     */
+    static int statementEnd(String s) {
+        char quote = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                // a doubled quote inside a literal closes and reopens it
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                return i + 1;
+            }
+        }
+        return s.length();
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -281,9 +348,16 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1);
+    }
+
+    private Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimit(lp, limit);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +539,15 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        Limited limited = stripLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(limited.text.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimit(lp, limited.limit);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -495,7 +572,17 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                text.write(buf, 0, n);
+            // only the first statement is parsed, so only it may have a LIMIT
+            String stmt = new String(text.toByteArray(), StandardCharsets.UTF_8);
+            int end = statementEnd(stmt);
+            Limited limited = stripLimit(stmt.substring(0, end));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    (limited.text + stmt.substring(end)).getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -517,7 +604,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limited.limit);
                     else {
                         System.out
                                 .println("Can't parse "
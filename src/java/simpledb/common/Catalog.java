@@ -149,6 +149,18 @@ public class Catalog {
         return table.tableName;
     }
     
+    /**
+     * Remove a table from the catalog. The name of the table is released
+     * only if it still refers to this table.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        Table table = idTableMap.remove(tableid);
+        if (table != null)
+            nameTableMap.remove(table.tableName, table);
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
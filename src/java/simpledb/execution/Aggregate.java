@@ -3,28 +3,54 @@ package simpledb.execution;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * An aggregate over a large input is computed on several threads: once the
+ * child has returned {@link #PARALLEL_MIN_BATCHES} batches, the rest are
+ * handed out one at a time to {@link #getParallelism()} threads, each of
+ * which merges them into a partial aggregate of its own. The partial
+ * aggregates are merged into the final one with {@link Aggregator#merge}
+ * when the child is exhausted.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchOpIterator {
     private OpIterator child;
     private int afield, gfield;
     private Aggregator.Op aop;
 
     private Aggregator aggr;
     private OpIterator it;
+    private transient BatchOpIterator itBatches;
 
     private static final long serialVersionUID = 1L;
 
+    /** Default number of groups kept in memory: about 1M. */
+    public static final int DEFAULT_MAX_GROUPS = 1 << 20;
+    private static int maxGroups = DEFAULT_MAX_GROUPS;
+
+    /** Default number of threads aggregating a large input: one per processor. */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static int parallelism = DEFAULT_PARALLELISM;
+
+    /** Batches merged on the calling thread before the work is split across threads. */
+    static final int PARALLEL_MIN_BATCHES = 16;
+
     /**
      * Constructor.
      * <p>
@@ -45,27 +71,76 @@ public class Aggregate extends Operator {
         this.gfield = gfield;
         this.aop = aop;
 
-        TupleDesc td = child.getTupleDesc();
+        this.aggr = newAggregator(child.getTupleDesc(), afield, gfield, aop);
+    }
+
+    /**
+     * Creates the aggregator for an aggregate of the given column of rows
+     * with schema td.
+     *
+     * @throws IllegalArgumentException if the column type is not supported
+     */
+    static Aggregator newAggregator(TupleDesc td, int afield, int gfield, Aggregator.Op aop) {
+        Type gtype = gfield == Aggregator.NO_GROUPING ? null : td.getFieldType(gfield);
         switch (td.getFieldType(afield)) {
             case INT_TYPE:
-                if (groupField() != Aggregator.NO_GROUPING) {
-                    aggr = new IntegerAggregator(gfield, td.getFieldType(gfield), afield, aop);
-                } else {
-                    aggr = new IntegerAggregator(Aggregator.NO_GROUPING, null, afield, aop);
-                }
-                break;
+                return new IntegerAggregator(gfield, gtype, afield, aop);
             case STRING_TYPE:
-                if (groupField() != Aggregator.NO_GROUPING) {
-                    aggr = new StringAggregator(gfield, td.getFieldType(gfield), afield, aop);
-                } else {
-                    aggr = new StringAggregator(Aggregator.NO_GROUPING, null, afield, aop);
-                }
-                break;
+                return new StringAggregator(gfield, gtype, afield, aop);
             default:
                 throw new IllegalArgumentException("Non-supported Type");
         }
     }
 
+    /**
+     * Sets the number of groups an Aggregate may keep in memory. A grouped
+     * Aggregate whose estimated cardinality, as set by the planner from
+     * table statistics, exceeds this spills the groups that do not fit to
+     * temporary files. Changing it affects Aggregates opened afterwards.
+     *
+     * @see Operator#setEstimatedCardinality
+     */
+    public static void setMaxGroups(int maxGroups) {
+        Aggregate.maxGroups = maxGroups;
+    }
+
+    /** @return the number of groups an Aggregate may keep in memory */
+    public static int getMaxGroups() {
+        return maxGroups;
+    }
+
+    /** Restores the default group budget; used by tests. */
+    public static void resetMaxGroups() {
+        Aggregate.maxGroups = DEFAULT_MAX_GROUPS;
+    }
+
+    /**
+     * Sets the number of threads that compute partial aggregates over a
+     * large input; 1 aggregates everything on the calling thread. Changing
+     * it affects Aggregates opened afterwards.
+     */
+    public static void setParallelism(int parallelism) {
+        Aggregate.parallelism = Math.max(parallelism, 1);
+    }
+
+    /** @return the number of threads that compute partial aggregates */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /** Restores the default parallelism; used by tests. */
+    public static void resetParallelism() {
+        Aggregate.parallelism = DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * @return true if this aggregate is expected to have more groups than
+     *         fit in memory, and so will spill
+     */
+    public boolean isExternal() {
+        return gfield != Aggregator.NO_GROUPING && getEstimatedCardinality() > maxGroups;
+    }
+
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      * field index in the <b>INPUT</b> tuples. If not, return
@@ -123,16 +198,92 @@ public class Aggregate extends Operator {
         // some code goes here
         super.open();
 
-        // read all tuples from child
+        if (isExternal()) {
+            it = new ExternalAggregate(child, afield, gfield, aop, maxGroups);
+            it.open();
+            itBatches = BatchOpIterator.of(it);
+            return;
+        }
+
+        // read all tuples from child, a batch at a time
+        aggr = newAggregator(child.getTupleDesc(), afield, gfield, aop);
         child.open();
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            aggr.mergeTupleIntoGroup(t);
+        BatchOpIterator in = BatchOpIterator.of(child);
+        TupleBatch batch;
+        int batches = 0;
+        while ((batch = in.nextBatch()) != null) {
+            aggr.mergeBatchIntoGroups(batch);
+            if (++batches == PARALLEL_MIN_BATCHES && parallelism > 1) {
+                mergeInParallel(in);
+                break;
+            }
         }
         child.close();
 
         it = aggr.iterator();
         it.open();
+        itBatches = BatchOpIterator.of(it);
+    }
+
+    /**
+     * Merges the rest of the child's batches into aggr on parallelism
+     * threads. Each thread takes the child's next batch as its morsel and
+     * merges it into a partial aggregator; the partial aggregators are then
+     * merged into aggr on this thread.
+     */
+    private void mergeInParallel(BatchOpIterator in) throws DbException, TransactionAbortedException {
+        TupleDesc td = child.getTupleDesc();
+        Morsels morsels = new Morsels(in);
+        List<Callable<Aggregator>> tasks = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++) {
+            tasks.add(() -> {
+                Aggregator partial = newAggregator(td, afield, gfield, aop);
+                TupleBatch morsel;
+                while ((morsel = morsels.next()) != null)
+                    partial.mergeBatchIntoGroups(morsel);
+                return partial;
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<Aggregator> f : pool.invokeAll(tasks))
+                aggr.merge(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while aggregating");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e.getCause();
+            throw new DbException("cannot compute partial aggregates: " + e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Hands the batches of a child out to the threads of a parallel
+     * aggregate, one thread reading the child at a time.
+     */
+    private static class Morsels {
+        private final BatchOpIterator in;
+        private boolean done = false;
+
+        Morsels(BatchOpIterator in) {
+            this.in = in;
+        }
+
+        /** @return a copy of the child's next batch, or null once it is exhausted */
+        synchronized TupleBatch next() throws DbException, TransactionAbortedException {
+            if (done)
+                return null;
+            TupleBatch b = in.nextBatch();
+            if (b == null) {
+                done = true;
+                return null;
+            }
+            // the child reuses its batch once asked for the next one
+            return b.copy();
+        }
     }
 
     /**
@@ -147,6 +298,16 @@ public class Aggregate extends Operator {
         return it.hasNext() ? it.next() : null;
     }
 
+    /**
+     * Returns the next batch of aggregate results, laid out as described
+     * for {@link #fetchNext()}.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (itBatches == null)
+            throw new IllegalStateException("Aggregate not open");
+        return itBatches.nextBatch();
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         it.rewind();
@@ -0,0 +1,101 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Running aggregate state for a set of groups, kept in primitive arrays
+ * indexed by group number: a count, a sum, a minimum and a maximum per
+ * group. Memory use is therefore proportional to the number of groups,
+ * not the number of rows merged.
+ *
+ * @see GroupTable
+ */
+class AggregateState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_GROUPS = 16;
+
+    private long[] count = new long[INITIAL_GROUPS];
+    private long[] sum = new long[INITIAL_GROUPS];
+    private int[] min = new int[INITIAL_GROUPS];
+    private int[] max = new int[INITIAL_GROUPS];
+    private int groups = 0;
+
+    /** Makes room for group g, starting it out empty if it is new. */
+    private void ensure(int g) {
+        if (g < groups)
+            return;
+        if (g >= count.length) {
+            int n = Math.max(count.length * 2, g + 1);
+            count = Arrays.copyOf(count, n);
+            sum = Arrays.copyOf(sum, n);
+            min = Arrays.copyOf(min, n);
+            max = Arrays.copyOf(max, n);
+        }
+        for (int i = groups; i <= g; i++) {
+            min[i] = Integer.MAX_VALUE;
+            max[i] = Integer.MIN_VALUE;
+        }
+        groups = g + 1;
+    }
+
+    /** Adds a value to group g. */
+    void add(int g, int value) {
+        ensure(g);
+        count[g]++;
+        sum[g] += value;
+        if (value < min[g])
+            min[g] = value;
+        if (value > max[g])
+            max[g] = value;
+    }
+
+    /** Counts a row in group g without a value, for COUNT over strings. */
+    void addCount(int g) {
+        ensure(g);
+        count[g]++;
+    }
+
+    /**
+     * Adds the rows of group og of another state to group g, keeping the
+     * count and sum apart so an average is only taken at the end.
+     */
+    void merge(int g, AggregateState other, int og) {
+        ensure(g);
+        if (og >= other.groups)
+            return;
+        count[g] += other.count[og];
+        sum[g] += other.sum[og];
+        min[g] = Math.min(min[g], other.min[og]);
+        max[g] = Math.max(max[g], other.max[og]);
+    }
+
+    /** @return the number of rows merged into group g */
+    long count(int g) {
+        return g < groups ? count[g] : 0;
+    }
+
+    /**
+     * @return the value of the given aggregate for group g. Groups with no
+     *         rows aggregate to 0.
+     */
+    int result(int g, Aggregator.Op op) {
+        if (count(g) == 0)
+            return 0;
+        switch (op) {
+            case COUNT:
+                return (int) count[g];
+            case SUM:
+                return (int) sum[g];
+            case AVG:
+                return (int) (sum[g] / count[g]);
+            case MIN:
+                return min[g];
+            case MAX:
+                return max[g];
+            default:
+                return -1;
+        }
+    }
+}
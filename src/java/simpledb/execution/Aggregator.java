@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleIterator;
 
 import java.io.Serializable;
@@ -79,6 +80,31 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every selected row of a batch into the aggregate. The default
+     * merges the rows one Tuple at a time; aggregators that can work on the
+     * batch's columns directly should override it.
+     *
+     * @param batch rows with the same schema as the tuples passed to
+     *        {@link #mergeTupleIntoGroup}
+     */
+    default void mergeBatchIntoGroups(TupleBatch batch) {
+        for (int i = 0; i < batch.numRows(); i++)
+            mergeTupleIntoGroup(batch.getTuple(batch.row(i)));
+    }
+
+    /**
+     * Merge the groups of another aggregator into this one, as if the rows
+     * merged into it had been merged here. The other aggregator must have
+     * been built with the same arguments; it holds a partial aggregate,
+     * such as one computed by another thread over part of the input, whose
+     * running state (a count and a sum for AVG, not the average itself) is
+     * combined with this one's.
+     *
+     * @param other an aggregator of the same class and arguments
+     */
+    void merge(Aggregator other);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
@@ -0,0 +1,40 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BatchOpIterator is an OpIterator that can also return its output a batch
+ * of rows at a time, in columnar form. Pulling batches replaces a virtual
+ * call and a Tuple per row with one call per {@link TupleBatch#DEFAULT_SIZE}
+ * rows, and lets operators work on primitive column arrays.
+ * <p>
+ * Between a call to open() or rewind() and the end of the iteration a
+ * consumer must use either {@link #nextBatch()} or hasNext()/next(), not
+ * both.
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /**
+     * Returns the next batch of rows. The batch, and any arrays obtained
+     * from it, are only valid until the next call to nextBatch(), rewind()
+     * or close() on this iterator.
+     *
+     * @return a batch with at least one selected row, or null if there are
+     *         no more rows
+     * @throws IllegalStateException if the iterator has not been opened
+     */
+    TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns a batch view of an operator: the operator itself if it
+     * implements BatchOpIterator, or else an adapter that gathers its tuples
+     * into batches.
+     */
+    static BatchOpIterator of(OpIterator child) {
+        if (child instanceof BatchOpIterator)
+            return (BatchOpIterator) child;
+        return new RowBatchAdapter(child);
+    }
+}
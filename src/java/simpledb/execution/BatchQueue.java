@@ -0,0 +1,131 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * BatchQueue carries batches from producer threads to the one thread
+ * consuming an operator's output.
+ * <p>
+ * The queue is bounded, so producers that get ahead of the consumer block
+ * in {@link #put} until it catches up. Each producer calls
+ * {@link #producerDone} when it finishes, successfully or not, and once
+ * the last has done so {@link #take} returns null, or throws if a producer
+ * reported a failure with {@link #fail}: a TransactionAbortedException as
+ * it is, so that the transaction can be aborted and retried, and anything
+ * else as the cause of a DbException. {@link #cancel} makes producers
+ * drop their output and waits for them all to finish.
+ */
+class BatchQueue {
+
+    /** Marks the end of the output in the queue. */
+    private static final TupleBatch END = new TupleBatch(new TupleDesc(new Type[] {Type.INT_TYPE}), 1);
+
+    private final BlockingQueue<TupleBatch> queue;
+    private final AtomicInteger producers;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+    /** True once END has been taken. */
+    private boolean done = false;
+
+    /**
+     * @param capacity the number of batches that may wait for the consumer
+     * @param producers the number of producers that will call producerDone
+     */
+    BatchQueue(int capacity, int producers) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.producers = new AtomicInteger(producers);
+    }
+
+    /**
+     * Queues a batch, waiting for room if necessary. The batch must not be
+     * touched by the producer afterwards. Does nothing once cancelled.
+     */
+    void put(TupleBatch b) throws InterruptedException {
+        if (!cancelled)
+            queue.put(b);
+    }
+
+    /** @return true if the consumer no longer wants any output */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Records a producer's failure, to be thrown by take. */
+    void fail(Throwable t) {
+        failure.compareAndSet(null, t);
+    }
+
+    /** Called by each producer once it has queued all its batches. */
+    void producerDone() {
+        if (producers.decrementAndGet() > 0)
+            return;
+        while (true) {
+            try {
+                queue.put(END);
+                return;
+            } catch (InterruptedException e) {
+                // keep trying: the consumer is waiting for END
+            }
+        }
+    }
+
+    /**
+     * @return the next batch, or null once every producer is done
+     * @throws TransactionAbortedException if a producer's transaction was
+     *         aborted
+     * @throws DbException if a producer failed otherwise
+     */
+    TupleBatch take() throws DbException, TransactionAbortedException {
+        if (done)
+            return null;
+        TupleBatch b;
+        try {
+            b = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for results");
+        }
+        if (b == END) {
+            done = true;
+            Throwable t = failure.get();
+            if (t != null && !cancelled) {
+                if (t instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) t;
+                DbException e = new DbException("parallel execution failed");
+                e.initCause(t);
+                throw e;
+            }
+            return null;
+        }
+        return b;
+    }
+
+    /**
+     * Tells the producers to stop, and waits for them all to finish,
+     * discarding whatever they queued.
+     */
+    void cancel() {
+        cancelled = true;
+        boolean interrupted = false;
+        while (!done) {
+            try {
+                // failures are of no interest to a consumer that gave up
+                if (queue.take() == END)
+                    done = true;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -88,11 +88,11 @@ public class Delete extends Operator {
             Tuple res = new Tuple(this.getTupleDesc());
             res.setField(0, new IntField(deletedNum));
             return res;
-        } catch (Exception e) {
+        } catch (IOException e) {
+            // a transaction abort is left to propagate to the caller
             e.printStackTrace();
+            throw new DbException(e.getMessage());
         }
-
-        return null;
     }
 
     @Override
@@ -0,0 +1,344 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Exchange runs several instances of a subtree in parallel and gathers
+ * their output into one stream.
+ * <p>
+ * Each instance is an independent copy of the subtree reading its own part
+ * of the input: the morsels of a table it claims, as in
+ * {@link ParallelScan}, or one of the partitions of a stream split by
+ * {@link #repartition}. On open every instance is opened and run on its
+ * own thread of a pool belonging to the Exchange, and the batches the
+ * instances return are passed through a bounded queue to the thread
+ * calling {@link #next()} or {@link #nextBatch()}. An instance that gets
+ * ahead of the consumer blocks until it catches up.
+ * <p>
+ * The Exchange itself is an ordinary single-threaded operator to its
+ * parent, so a plan containing one is still run by {@link Query} as
+ * before. Results come out in no particular order.
+ */
+public class Exchange extends Operator implements BatchOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of parallel instances: one per processor. */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static int parallelism = DEFAULT_PARALLELISM;
+
+    /**
+     * Sets the number of parallel instances the optimizer and
+     * {@link ParallelScan} split a subtree into.
+     */
+    public static void setParallelism(int parallelism) {
+        Exchange.parallelism = Math.max(parallelism, 1);
+    }
+
+    /** @return the number of parallel instances subtrees are split into */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /** Restores the default parallelism; used by tests. */
+    public static void resetParallelism() {
+        Exchange.parallelism = DEFAULT_PARALLELISM;
+    }
+
+    /** Output batches that may wait for the consumer, per instance. */
+    private static final int QUEUED_BATCHES_PER_INSTANCE = 2;
+
+    private OpIterator[] instances;
+    private final TupleDesc td;
+
+    private transient ForkJoinPool pool;
+    private transient BatchQueue queue;
+    // the batch fetchNext is returning rows of
+    private transient TupleBatch current;
+    private transient int currentPos;
+
+    /**
+     * @param instances
+     *            the instances of the subtree to run in parallel; they must
+     *            all have the same TupleDesc
+     */
+    public Exchange(List<? extends OpIterator> instances) {
+        if (instances.isEmpty())
+            throw new IllegalArgumentException("Exchange needs at least one instance");
+        this.instances = instances.toArray(new OpIterator[0]);
+        this.td = this.instances[0].getTupleDesc();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of instances run in parallel */
+    public int numInstances() {
+        return instances.length;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        pool = new ForkJoinPool(instances.length);
+        start(true);
+        super.open();
+    }
+
+    /**
+     * Runs every instance to its end on its own thread. Instances are
+     * opened there too, since opening an operator such as an Aggregate
+     * reads its whole input.
+     */
+    private void start(boolean open) {
+        BatchQueue queue = new BatchQueue(instances.length * QUEUED_BATCHES_PER_INSTANCE,
+                instances.length);
+        this.queue = queue;
+        current = null;
+        for (OpIterator instance : instances) {
+            pool.execute(() -> {
+                try {
+                    if (open)
+                        instance.open();
+                    BatchOpIterator in = BatchOpIterator.of(instance);
+                    TupleBatch batch;
+                    while (!queue.isCancelled() && (batch = in.nextBatch()) != null) {
+                        // the instance reuses its batch, so queue a copy
+                        if (batch.numRows() > 0)
+                            queue.put(batch.copy());
+                    }
+                } catch (Throwable t) {
+                    queue.fail(t);
+                } finally {
+                    queue.producerDone();
+                }
+            });
+        }
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (current != null && currentPos < current.numRows())
+                return current.getTuple(current.row(currentPos++));
+            current = queue.take();
+            currentPos = 0;
+            if (current == null)
+                return null;
+        }
+    }
+
+    /** Returns the next batch, as returned by one of the instances. */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        return queue.take();
+    }
+
+    /**
+     * Prepares the instances to run again from the start, once they have
+     * all stopped; rewinds each of them.
+     */
+    protected void reset() throws DbException, TransactionAbortedException {
+        for (OpIterator instance : instances)
+            instance.rewind();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        queue.cancel();
+        reset();
+        start(false);
+    }
+
+    public void close() {
+        super.close();
+        if (pool != null) {
+            queue.cancel();
+            pool.shutdown();
+            pool = null;
+        }
+        for (OpIterator instance : instances)
+            instance.close();
+        queue = null;
+        current = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return instances.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        instances = children.clone();
+    }
+
+    /**
+     * Splits the output of child into n streams by a hash of one of its
+     * fields, so that equal values all go to the same stream. The streams
+     * are meant to be read by the n instances of an Exchange: the first one
+     * opened starts a thread that reads child and deals its rows out, and
+     * every stream must be read, or closed, for that thread to finish.
+     * Streams cannot be rewound.
+     *
+     * @param child the operator to split
+     * @param field the field whose hash picks a row's stream
+     * @param n the number of streams
+     */
+    public static OpIterator[] repartition(OpIterator child, int field, int n) {
+        Splitter splitter = new Splitter(child, field, n);
+        OpIterator[] parts = new OpIterator[n];
+        for (int i = 0; i < n; i++)
+            parts[i] = new Partition(splitter, i);
+        return parts;
+    }
+
+    /** Reads a child and deals its rows out to the queues of n partitions. */
+    private static class Splitter {
+        private final OpIterator child;
+        private final int field;
+        private final BatchQueue[] queues;
+        private boolean started = false;
+        private final boolean[] closed;
+        private int open;
+
+        Splitter(OpIterator child, int field, int n) {
+            this.child = child;
+            this.field = field;
+            this.queues = new BatchQueue[n];
+            for (int i = 0; i < n; i++)
+                queues[i] = new BatchQueue(QUEUED_BATCHES_PER_INSTANCE, 1);
+            this.closed = new boolean[n];
+            this.open = n;
+        }
+
+        synchronized void start() throws DbException, TransactionAbortedException {
+            if (started)
+                return;
+            started = true;
+            child.open();
+            Thread t = new Thread(this::run, "Exchange-repartition");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void run() {
+            int n = queues.length;
+            TupleDesc td = child.getTupleDesc();
+            boolean intKey = td.getFieldType(field) == Type.INT_TYPE;
+            TupleBatch[] out = new TupleBatch[n];
+            try {
+                BatchOpIterator in = BatchOpIterator.of(child);
+                TupleBatch batch;
+                while (!allCancelled() && (batch = in.nextBatch()) != null) {
+                    for (int i = 0; i < batch.numRows(); i++) {
+                        int r = batch.row(i);
+                        int hash = intKey ? batch.getInt(field, r) : batch.getString(field, r).hashCode();
+                        int p = SpillFile.partition(hash, 0, n);
+                        if (out[p] == null)
+                            out[p] = new TupleBatch(td);
+                        out[p].copyRow(batch, r, out[p].addRow(), 0);
+                        if (out[p].isFull()) {
+                            queues[p].put(out[p]);
+                            out[p] = null;
+                        }
+                    }
+                }
+                for (int p = 0; p < n; p++) {
+                    if (out[p] != null)
+                        queues[p].put(out[p]);
+                }
+            } catch (Throwable e) {
+                for (BatchQueue q : queues)
+                    q.fail(e);
+            } finally {
+                for (BatchQueue q : queues)
+                    q.producerDone();
+            }
+        }
+
+        private boolean allCancelled() {
+            return Arrays.stream(queues).allMatch(BatchQueue::isCancelled);
+        }
+
+        /** Called when partition i is closed; the last one closes child. */
+        void close(int i) {
+            synchronized (this) {
+                if (closed[i])
+                    return;
+                closed[i] = true;
+            }
+            if (started)
+                queues[i].cancel();
+            synchronized (this) {
+                if (--open == 0 && started)
+                    child.close();
+            }
+        }
+    }
+
+    /** One of the streams of a repartitioned child. */
+    private static class Partition extends Operator implements BatchOpIterator {
+        private static final long serialVersionUID = 1L;
+        private final transient Splitter splitter;
+        private final int index;
+        private transient TupleBatch current;
+        private transient int currentPos;
+
+        Partition(Splitter splitter, int index) {
+            this.splitter = splitter;
+            this.index = index;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return splitter.child.getTupleDesc();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            splitter.start();
+            super.open();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (current != null && currentPos < current.numRows())
+                    return current.getTuple(current.row(currentPos++));
+                current = splitter.queues[index].take();
+                currentPos = 0;
+                if (current == null)
+                    return null;
+            }
+        }
+
+        public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+            return splitter.queues[index].take();
+        }
+
+        public void rewind() throws DbException {
+            throw new DbException("a repartitioned stream cannot be rewound");
+        }
+
+        public void close() {
+            super.close();
+            splitter.close(index);
+            current = null;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[] {splitter.child};
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            throw new UnsupportedOperationException("a repartitioned stream's child is shared");
+        }
+    }
+}
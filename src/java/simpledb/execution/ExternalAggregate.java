@@ -0,0 +1,197 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * ExternalAggregate computes a grouped aggregate whose groups may not all
+ * fit in memory, by hybrid hash aggregation.
+ * <p>
+ * While reading its child it keeps running state for at most maxGroups
+ * groups in memory, the first ones it sees. A row of any other group is
+ * written to one of {@link #PARTITIONS} {@link SpillFile}s chosen by a hash
+ * of its group value, so that every row of a spilled group ends up in the
+ * same partition. Once the child is exhausted the in-memory groups are
+ * returned, and then each partition is aggregated in turn the same way,
+ * with a different hash, spilling again if it is itself too large.
+ * <p>
+ * Only the group and aggregate columns are spilled. Results come out
+ * grouped by partition rather than in order of first appearance.
+ *
+ * @see Aggregate
+ */
+class ExternalAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of partitions the overflow groups are spread over. */
+    static final int PARTITIONS = 16;
+    /**
+     * Partitions this many levels deep are aggregated in memory whatever
+     * their size; by then a partition has only about 1/16^4 of the groups.
+     */
+    static final int MAX_DEPTH = 4;
+
+    private OpIterator child;
+    private final int afield, gfield;
+    private final Aggregator.Op aop;
+    private final int maxGroups;
+    private final int depth;
+
+    private transient SpillFile[] partitions;
+    private transient OpIterator resident;
+    /** Partition being returned, or -1 while returning resident groups. */
+    private transient int partition;
+    private transient ExternalAggregate current;
+
+    /**
+     * @param child the rows to aggregate
+     * @param afield the column to aggregate
+     * @param gfield the column to group by; must not be NO_GROUPING
+     * @param aop the aggregation operator
+     * @param maxGroups the number of groups to keep in memory at once
+     */
+    ExternalAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int maxGroups) {
+        this(child, afield, gfield, aop, maxGroups, 0);
+    }
+
+    private ExternalAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop,
+                              int maxGroups, int depth) {
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.maxGroups = depth >= MAX_DEPTH ? Integer.MAX_VALUE : maxGroups;
+        this.depth = depth;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+
+        TupleDesc td = child.getTupleDesc();
+        Type gtype = td.getFieldType(gfield);
+        TupleDesc spillTd = new TupleDesc(
+                new Type[] {gtype, td.getFieldType(afield)},
+                new String[] {td.getFieldName(gfield), td.getFieldName(afield)});
+        Aggregator aggr = Aggregate.newAggregator(td, afield, gfield, aop);
+        GroupTable inMemory = new GroupTable(gtype);
+        partitions = null;
+
+        child.open();
+        BatchOpIterator in = BatchOpIterator.of(child);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            // keep the rows of in-memory groups in the selection, spill the rest
+            int[] sel = batch.selection();
+            int n = batch.numRows();
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                int hash;
+                int g;
+                if (gtype == Type.INT_TYPE) {
+                    int key = batch.getInt(gfield, r);
+                    hash = key;
+                    g = inMemory.lookupInt(key);
+                    if (g < 0 && inMemory.size() < maxGroups)
+                        g = inMemory.findInt(key);
+                } else {
+                    String key = batch.getString(gfield, r);
+                    hash = key.hashCode();
+                    g = inMemory.lookupString(key);
+                    if (g < 0 && inMemory.size() < maxGroups)
+                        g = inMemory.findString(key);
+                }
+                if (g >= 0) {
+                    sel[kept++] = r;
+                    continue;
+                }
+                if (partitions == null)
+                    partitions = new SpillFile[PARTITIONS];
+                int p = SpillFile.partition(hash, depth, PARTITIONS);
+                if (partitions[p] == null)
+                    partitions[p] = new SpillFile(spillTd);
+                Tuple t = new Tuple(spillTd);
+                t.setField(0, batch.getField(gfield, r));
+                t.setField(1, batch.getField(afield, r));
+                partitions[p].add(t);
+            }
+            batch.setNumRows(kept);
+            aggr.mergeBatchIntoGroups(batch);
+        }
+        child.close();
+
+        resident = aggr.iterator();
+        resident.open();
+        partition = -1;
+        current = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (partition < 0) {
+            if (resident.hasNext())
+                return resident.next();
+            partition = 0;
+        }
+        while (partitions != null && partition < PARTITIONS) {
+            if (current == null && partitions[partition] != null) {
+                current = new ExternalAggregate(partitions[partition].scan(), 1, 0, aop,
+                        maxGroups, depth + 1);
+                current.open();
+            }
+            if (current != null && current.hasNext())
+                return current.next();
+            closeCurrent();
+            partition++;
+        }
+        return null;
+    }
+
+    private void closeCurrent() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeCurrent();
+        resident.rewind();
+        partition = -1;
+    }
+
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = child.getTupleDesc();
+        return new TupleDesc(new Type[] {td.getFieldType(gfield), Type.INT_TYPE});
+    }
+
+    public void close() {
+        super.close();
+        closeCurrent();
+        if (resident != null) {
+            resident.close();
+            resident = null;
+        }
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null)
+                    f.delete();
+            }
+            partitions = null;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
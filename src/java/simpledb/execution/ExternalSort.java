@@ -0,0 +1,399 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ExternalSort sorts tuples on one field, in at most a given number of
+ * rows of memory.
+ * <p>
+ * Rows are collected into a run buffer that holds the sort key of each row
+ * in a primitive array. When the buffer is full it is sorted and written to
+ * a temporary run file; INT_TYPE keys are sorted as packed longs, with no
+ * comparator at all. Once every row has been added the runs are merged
+ * with a loser tree, {@link #MAX_FAN_IN} at a time, so that each output row
+ * costs about log2(runs) key comparisons. If no run was written the buffer
+ * is simply sorted in memory.
+ * <p>
+ * The sort is stable: rows with equal keys come out in the order they were
+ * added.
+ */
+class ExternalSort {
+
+    /** Most runs merged at once; more are merged in several passes. */
+    static final int MAX_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final int field;
+    private final boolean asc;
+    private final boolean intKey;
+    private final int maxRows;
+
+    // the run being collected
+    private Tuple[] rows;
+    private int[] intKeys;
+    private String[] stringKeys;
+    private int n = 0;
+
+    private final List<File> runs = new ArrayList<>();
+
+    // output: either the sorted buffer, or a merge of the runs
+    private int[] order;
+    private int pos;
+    private Merger merger;
+
+    /**
+     * @param td the schema of the rows to sort
+     * @param field the field to sort on
+     * @param asc true to sort in ascending order
+     * @param maxRows the most rows to hold in memory at once
+     */
+    ExternalSort(TupleDesc td, int field, boolean asc, int maxRows) {
+        this.td = td;
+        this.field = field;
+        this.asc = asc;
+        this.intKey = td.getFieldType(field) == Type.INT_TYPE;
+        this.maxRows = Math.max(maxRows, 1);
+        int capacity = Math.min(this.maxRows, 1024);
+        this.rows = new Tuple[capacity];
+        if (intKey)
+            intKeys = new int[capacity];
+        else
+            stringKeys = new String[capacity];
+    }
+
+    /** @return the number of run files written so far */
+    int numRuns() {
+        return runs.size();
+    }
+
+    /** Adds a row to be sorted. */
+    void add(Tuple t) throws DbException {
+        if (n == rows.length) {
+            if (n == maxRows) {
+                runs.add(writeRun(sortBuffer()));
+                n = 0;
+            } else {
+                int capacity = (int) Math.min((long) n * 2, maxRows);
+                rows = Arrays.copyOf(rows, capacity);
+                if (intKey)
+                    intKeys = Arrays.copyOf(intKeys, capacity);
+                else
+                    stringKeys = Arrays.copyOf(stringKeys, capacity);
+            }
+        }
+        rows[n] = t;
+        if (intKey)
+            intKeys[n] = t.getInt(field);
+        else
+            stringKeys[n] = ((StringField) t.getField(field)).getValue();
+        n++;
+    }
+
+    /**
+     * Ends the input and prepares to return the rows in order. No rows may
+     * be added afterwards.
+     */
+    void finish() throws DbException {
+        if (runs.isEmpty()) {
+            order = sortBuffer();
+            pos = 0;
+            return;
+        }
+        if (n > 0)
+            runs.add(writeRun(sortBuffer()));
+        rows = null;
+        intKeys = null;
+        stringKeys = null;
+        n = 0;
+
+        // merge consecutive groups of runs until one pass is enough, which
+        // keeps earlier rows in earlier runs and so keeps the sort stable
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                merged.add(group.size() == 1 ? group.get(0) : mergeRuns(group));
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+        rewind();
+    }
+
+    /** @return the next row in sorted order, or null if there are no more */
+    Tuple next() throws DbException {
+        if (merger != null)
+            return merger.next();
+        return pos < order.length ? rows[order[pos++]] : null;
+    }
+
+    /** Starts returning the rows from the beginning again. */
+    void rewind() throws DbException {
+        if (runs.isEmpty()) {
+            pos = 0;
+            return;
+        }
+        if (merger != null)
+            merger.close();
+        merger = new Merger(runs);
+    }
+
+    /** Releases the rows and deletes any run files. */
+    void close() {
+        if (merger != null) {
+            merger.close();
+            merger = null;
+        }
+        for (File f : runs) {
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+        runs.clear();
+        rows = null;
+        order = null;
+    }
+
+    /** @return the indexes of the buffered rows, in sorted order */
+    private int[] sortBuffer() {
+        int[] idx = new int[n];
+        if (intKey) {
+            // key in the high word, index in the low word; flipping the bits
+            // of the key reverses its order without overflow
+            long[] packed = new long[n];
+            for (int i = 0; i < n; i++) {
+                int k = asc ? intKeys[i] : ~intKeys[i];
+                packed[i] = ((long) k << 32) | i;
+            }
+            Arrays.sort(packed);
+            for (int i = 0; i < n; i++)
+                idx[i] = (int) packed[i];
+        } else {
+            for (int i = 0; i < n; i++)
+                idx[i] = i;
+            mergeSort(idx, new int[n], 0, n);
+        }
+        return idx;
+    }
+
+    /** Stable merge sort of idx[from, to) by string key. */
+    private void mergeSort(int[] idx, int[] tmp, int from, int to) {
+        if (to - from < 2)
+            return;
+        int mid = (from + to) >>> 1;
+        mergeSort(idx, tmp, from, mid);
+        mergeSort(idx, tmp, mid, to);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to)
+            tmp[k++] = compare(stringKeys[idx[j]], stringKeys[idx[i]]) < 0 ? idx[j++] : idx[i++];
+        while (i < mid)
+            tmp[k++] = idx[i++];
+        while (j < to)
+            tmp[k++] = idx[j++];
+        System.arraycopy(tmp, from, idx, from, to - from);
+    }
+
+    private int compare(String a, String b) {
+        int c = a.compareTo(b);
+        return asc ? c : -c;
+    }
+
+    private int compare(int a, int b) {
+        int c = Integer.compare(a, b);
+        return asc ? c : -c;
+    }
+
+    /** Writes the buffered rows, in the given order, to a new run file. */
+    private File writeRun(int[] idx) throws DbException {
+        try {
+            File f = File.createTempFile("run", ".dat");
+            f.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(f)))) {
+                out.writeInt(idx.length);
+                for (int i : idx) {
+                    writeRow(out, rows[i]);
+                    rows[i] = null;
+                }
+            }
+            return f;
+        } catch (IOException e) {
+            throw new DbException("cannot write sort run: " + e.getMessage());
+        }
+    }
+
+    /** Merges a group of runs into a new run file, and deletes them. */
+    private File mergeRuns(List<File> group) throws DbException {
+        Merger m = new Merger(group);
+        int count = 0;
+        for (RunReader r : m.sources)
+            count += r.remaining + (r.current != null ? 1 : 0);
+        try {
+            File f = File.createTempFile("run", ".dat");
+            f.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(f)))) {
+                out.writeInt(count);
+                Tuple t;
+                while ((t = m.next()) != null)
+                    writeRow(out, t);
+            }
+            for (File done : group) {
+                if (!done.delete())
+                    done.deleteOnExit();
+            }
+            return f;
+        } catch (IOException e) {
+            throw new DbException("cannot write sort run: " + e.getMessage());
+        } finally {
+            m.close();
+        }
+    }
+
+    /** Writes a row compactly: ints as 4 bytes, strings as modified UTF-8. */
+    private void writeRow(DataOutputStream out, Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                out.writeInt(t.getInt(i));
+            else
+                out.writeUTF(((StringField) t.getField(i)).getValue());
+        }
+    }
+
+    private Tuple readRow(DataInputStream in) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                t.setField(i, new IntField(in.readInt()));
+            else
+                t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+        }
+        return t;
+    }
+
+    /** Reads one run file a row at a time, keeping the key of the current row. */
+    private class RunReader {
+        private final DataInputStream in;
+        private int remaining;
+        private Tuple current;
+        private int currentInt;
+        private String currentString;
+
+        RunReader(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            remaining = in.readInt();
+            advance();
+        }
+
+        /** Moves to the next row of the run; current is null at the end. */
+        void advance() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return;
+            }
+            remaining--;
+            current = readRow(in);
+            if (intKey)
+                currentInt = current.getInt(field);
+            else
+                currentString = ((StringField) current.getField(field)).getValue();
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A loser tree over a list of runs. tree[0] holds the source of the
+     * next row and tree[1..k-1] the loser of the match at each internal
+     * node, so replacing the winner's row replays only the matches on its
+     * path to the root.
+     */
+    private class Merger {
+        private final RunReader[] sources;
+        private final int[] tree;
+        private final int k;
+
+        Merger(List<File> files) throws DbException {
+            k = files.size();
+            sources = new RunReader[k];
+            try {
+                for (int i = 0; i < k; i++)
+                    sources[i] = new RunReader(files.get(i));
+            } catch (IOException e) {
+                close();
+                throw new DbException("cannot read sort run: " + e.getMessage());
+            }
+            // start with a virtual source k that beats everything, then
+            // play each real source in
+            tree = new int[k];
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+        /** @return true if source a's row comes before source b's */
+        private boolean beats(int a, int b) {
+            if (a == k)
+                return true;
+            if (b == k)
+                return false;
+            Tuple ta = sources[a].current, tb = sources[b].current;
+            if (ta == null)
+                return false;
+            if (tb == null)
+                return true;
+            int c = intKey ? compare(sources[a].currentInt, sources[b].currentInt)
+                    : compare(sources[a].currentString, sources[b].currentString);
+            // ties go to the earlier run, for stability
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Replays the matches from leaf s to the root. */
+        private void adjust(int s) {
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (beats(tree[t], s)) {
+                    int loser = s;
+                    s = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = s;
+        }
+
+        Tuple next() throws DbException {
+            int w = tree[0];
+            Tuple t = sources[w].current;
+            if (t == null)
+                return null;
+            try {
+                sources[w].advance();
+            } catch (IOException e) {
+                throw new DbException("cannot read sort run: " + e.getMessage());
+            }
+            adjust(w);
+            return t;
+        }
+
+        void close() {
+            for (RunReader r : sources) {
+                if (r != null)
+                    r.close();
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -10,9 +11,10 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
     private Predicate predicate;
     private OpIterator child;
+    private transient BatchOpIterator childBatches;
 
     private static final long serialVersionUID = 1L;
 
@@ -79,6 +81,22 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of the child with the rows that fail the
+     * predicate dropped from its selection vector.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (childBatches == null)
+            childBatches = BatchOpIterator.of(child);
+        TupleBatch batch;
+        while ((batch = childBatches.nextBatch()) != null) {
+            predicate.filter(batch);
+            if (batch.numRows() > 0)
+                return batch;
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -89,6 +107,7 @@ public class Filter extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         this.child = children[0];
+        this.childBatches = null;
     }
 
 }
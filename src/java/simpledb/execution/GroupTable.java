@@ -0,0 +1,181 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * GroupTable numbers the distinct group-by values seen by an aggregator
+ * 0, 1, 2, ... in order of first appearance, so that per-group running
+ * state can live in plain arrays indexed by group number.
+ * <p>
+ * It is an open-addressing hash table with linear probing. The slots hold
+ * only group numbers; the keys themselves are kept once, in an int[] or
+ * String[] indexed by group number, so INT_TYPE keys are never boxed. The
+ * table is resized to keep it at most half full.
+ */
+class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int EMPTY = -1;
+    private static final int INITIAL_GROUPS = 16;
+
+    private final Type keyType;
+    /** Group number in each slot, or EMPTY. */
+    private int[] slots;
+    private int mask;
+    private int size = 0;
+
+    /** Keys by group number; only the array for keyType is allocated. */
+    private int[] intKeys;
+    private String[] stringKeys;
+    private int[] stringHashes;
+
+    /**
+     * @param keyType the type of the group-by field
+     */
+    GroupTable(Type keyType) {
+        this.keyType = keyType;
+        this.slots = new int[INITIAL_GROUPS * 2];
+        Arrays.fill(slots, EMPTY);
+        this.mask = slots.length - 1;
+        if (keyType == Type.INT_TYPE) {
+            intKeys = new int[INITIAL_GROUPS];
+        } else {
+            stringKeys = new String[INITIAL_GROUPS];
+            stringHashes = new int[INITIAL_GROUPS];
+        }
+    }
+
+    /** @return the number of groups */
+    int size() {
+        return size;
+    }
+
+    /** Spreads the bits of a hash code so that nearby keys do not collide. */
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the group number of an INT_TYPE key, adding a group for it if
+     *         it has not been seen
+     */
+    int findInt(int key) {
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int g = slots[i];
+            if (g == EMPTY) {
+                g = newGroup();
+                intKeys[g] = key;
+                claim(i, g);
+                return g;
+            }
+            if (intKeys[g] == key)
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of a STRING_TYPE key, adding a group for it
+     *         if it has not been seen
+     */
+    int findString(String key) {
+        int h = key.hashCode();
+        for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+            int g = slots[i];
+            if (g == EMPTY) {
+                g = newGroup();
+                stringKeys[g] = key;
+                stringHashes[g] = h;
+                claim(i, g);
+                return g;
+            }
+            if (stringHashes[g] == h && stringKeys[g].equals(key))
+                return g;
+        }
+    }
+
+    /** @return the group number of an INT_TYPE key, or -1 if it has not been seen */
+    int lookupInt(int key) {
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int g = slots[i];
+            if (g == EMPTY || intKeys[g] == key)
+                return g;
+        }
+    }
+
+    /** @return the group number of a STRING_TYPE key, or -1 if it has not been seen */
+    int lookupString(String key) {
+        int h = key.hashCode();
+        for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+            int g = slots[i];
+            if (g == EMPTY || (stringHashes[g] == h && stringKeys[g].equals(key)))
+                return g;
+        }
+    }
+
+    /** @return the group number of key, adding a group if needed */
+    int find(Field key) {
+        if (keyType == Type.INT_TYPE)
+            return findInt(((IntField) key).getValue());
+        return findString(((StringField) key).getValue());
+    }
+
+    /**
+     * @return the group number, in this table, of the key of group og of
+     *         another table with the same key type, adding a group if needed
+     */
+    int find(GroupTable other, int og) {
+        if (keyType == Type.INT_TYPE)
+            return findInt(other.intKeys[og]);
+        return findString(other.stringKeys[og]);
+    }
+
+    /** @return the key of a group, as a Field */
+    Field key(int group) {
+        if (keyType == Type.INT_TYPE)
+            return new IntField(intKeys[group]);
+        return new StringField(stringKeys[group], Type.STRING_LEN);
+    }
+
+    /** Allocates the next group number, growing the key arrays if needed. */
+    private int newGroup() {
+        int g = size++;
+        if (keyType == Type.INT_TYPE) {
+            if (g == intKeys.length)
+                intKeys = Arrays.copyOf(intKeys, g * 2);
+        } else if (g == stringKeys.length) {
+            stringKeys = Arrays.copyOf(stringKeys, g * 2);
+            stringHashes = Arrays.copyOf(stringHashes, g * 2);
+        }
+        return g;
+    }
+
+    /**
+     * Puts group g, whose key is already stored, in the given slot, and grows the
+     * table if it is now more than half full.
+     */
+    private void claim(int slot, int g) {
+        slots[slot] = g;
+        if (size * 2 > slots.length)
+            rehash(slots.length * 2);
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        for (int g = 0; g < size; g++) {
+            int h = keyType == Type.INT_TYPE ? intKeys[g] : stringHashes[g];
+            int i = mix(h) & mask;
+            while (slots[i] != EMPTY)
+                i = (i + 1) & mask;
+            slots[i] = g;
+        }
+    }
+}
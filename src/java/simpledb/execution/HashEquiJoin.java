@@ -2,21 +2,24 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * The Join operator implements the relational join operation.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
     /**
@@ -31,9 +34,16 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    /** Joins one pair of spilled partitions, at the given partitioning depth. */
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int depth) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.depth = depth;
+        this.keyType = child1.getTupleDesc().getFieldType(p.getField1());
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -55,28 +65,217 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
-
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+    /** Number of partitions the inputs are split into when they spill. */
+    static final int PARTITIONS = 16;
+    /**
+     * Partitions this many levels deep are joined in memory whatever their
+     * size; by then a partition has only about 1/16^4 of the build side.
+     */
+    static final int MAX_DEPTH = 4;
+
+    /** Default number of build-side rows held in memory: about 1M. */
+    public static final int DEFAULT_MAX_BUILD_ROWS = 1 << 20;
+    private static int maxBuildRows = DEFAULT_MAX_BUILD_ROWS;
+
+    /**
+     * Sets the number of child1 rows a HashEquiJoin may hold in memory.
+     * Larger inputs are partitioned to temporary files. Changing it affects
+     * joins opened afterwards.
+     */
+    public static void setMaxBuildRows(int maxBuildRows) {
+        HashEquiJoin.maxBuildRows = maxBuildRows;
+    }
+
+    /** @return the number of child1 rows a HashEquiJoin may hold in memory */
+    public static int getMaxBuildRows() {
+        return maxBuildRows;
+    }
+
+    /** Restores the default build budget; used by tests. */
+    public static void resetMaxBuildRows() {
+        HashEquiJoin.maxBuildRows = DEFAULT_MAX_BUILD_ROWS;
+    }
+
+    private final int depth;
+    private final Type keyType;
+
+    // the build side, by partition; a partition's table is null once it has
+    // been spilled to buildSpills
+    transient private JoinTable[] tables = null;
+    transient private SpillFile[] buildSpills = null;
+    transient private SpillFile[] probeSpills = null;
+    /** Spilled partition being joined, or -1 while probing child2. */
+    transient private int partition = -1;
+    transient private HashEquiJoin sub = null;
+
+    private int partitionOf(int hash) {
+        return SpillFile.partition(hash, depth, PARTITIONS);
+    }
+
+    /**
+     * Reads all of child1 into the per-partition hash tables. Whenever the
+     * tables hold more than the budget, the largest partition still in
+     * memory is written out, and later child1 rows of that partition go
+     * straight to its file.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        tables = new JoinTable[PARTITIONS];
+        for (int p = 0; p < PARTITIONS; p++)
+            tables[p] = new JoinTable(keyType, child1.getTupleDesc());
+        buildSpills = new SpillFile[PARTITIONS];
+        probeSpills = new SpillFile[PARTITIONS];
+        partition = -1;
+        int budget = depth >= MAX_DEPTH ? Integer.MAX_VALUE : maxBuildRows;
+
+        int field = pred.getField1();
+        int inMemory = 0;
+        BatchOpIterator in = BatchOpIterator.of(child1);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++) {
+                int r = batch.row(i);
+                int intKey = 0;
+                String stringKey = null;
+                int p;
+                if (keyType == Type.INT_TYPE) {
+                    intKey = batch.getInt(field, r);
+                    p = partitionOf(intKey);
+                } else {
+                    stringKey = batch.getString(field, r);
+                    p = partitionOf(stringKey.hashCode());
+                }
+                if (tables[p] == null) {
+                    buildSpills[p].add(batch.getTuple(r));
+                    continue;
+                }
+                if (keyType == Type.INT_TYPE)
+                    tables[p].addInt(intKey, batch, r);
+                else
+                    tables[p].addString(stringKey, batch, r);
+                if (++inMemory > budget)
+                    inMemory -= spillLargestPartition();
+            }
+        }
+    }
+
+    /** Writes the largest partition in memory to a file, and returns its size. */
+    private int spillLargestPartition() throws DbException {
+        int largest = -1;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (tables[p] != null && (largest < 0 || tables[p].numRows() > tables[largest].numRows()))
+                largest = p;
+        }
+        JoinTable table = tables[largest];
+        SpillFile f = new SpillFile(child1.getTupleDesc());
+        for (int row = 0; row < table.numRows(); row++)
+            f.add(table.getTuple(row));
+        buildSpills[largest] = f;
+        tables[largest] = null;
+        return table.numRows();
+    }
+
+    /**
+     * Looks up a child2 row. Rows of spilled partitions are written to the
+     * partition's probe file instead.
+     *
+     * @param key the join field of the row
+     * @param row the row, only built if it has to be spilled
+     * @return the first child1 row it joins with in memory, to be followed
+     *         with {@link JoinTable#next}, or -1 if none
+     */
+    private int probeInt(int key, Supplier<Tuple> row) throws DbException {
+        int p = partitionOf(key);
+        if (tables[p] != null)
+            return tables[p].lookupInt(key);
+        spillProbe(p, row.get());
+        return -1;
+    }
+
+    /** As {@link #probeInt}, for a STRING_TYPE join field. */
+    private int probeString(String key, Supplier<Tuple> row) throws DbException {
+        int p = partitionOf(key.hashCode());
+        if (tables[p] != null)
+            return tables[p].lookupString(key);
+        spillProbe(p, row.get());
+        return -1;
+    }
+
+    private void spillProbe(int p, Tuple row) throws DbException {
+        if (probeSpills[p] == null)
+            probeSpills[p] = new SpillFile(child2.getTupleDesc());
+        probeSpills[p].add(row);
+    }
+
+    /** @return the table a child2 row with the given key hash was looked up in */
+    private JoinTable tableOf(int hash) {
+        return tables[partitionOf(hash)];
+    }
+
+    /**
+     * Called when child2 has been probed: drops the in-memory tables and
+     * moves on to the spilled partitions.
+     */
+    private void finishProbe() {
+        tables = null;
+        partition = 0;
+    }
+
+    /**
+     * Advances to the next spilled partition with rows on both sides and
+     * opens a join of its two files, deleting the files of partitions that
+     * are done with.
+     *
+     * @return false if there are no more partitions
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (sub != null) {
+            sub.close();
+            sub = null;
+            deletePartition(partition++);
+        }
+        while (partition < PARTITIONS) {
+            if (buildSpills[partition] != null && probeSpills[partition] != null) {
+                sub = new HashEquiJoin(pred, buildSpills[partition].scan(),
+                        probeSpills[partition].scan(), depth + 1);
+                sub.open();
                 return true;
+            }
+            deletePartition(partition++);
+        }
+        return false;
+    }
+
+    private void deletePartition(int p) {
+        if (buildSpills[p] != null) {
+            buildSpills[p].delete();
+            buildSpills[p] = null;
         }
-        return cnt > 0;
+        if (probeSpills[p] != null) {
+            probeSpills[p].delete();
+            probeSpills[p] = null;
+        }
+    }
 
+    /** Drops the hash tables and deletes any spilled partitions. */
+    private void release() {
+        if (sub != null) {
+            sub.close();
+            sub = null;
+        }
+        if (buildSpills != null) {
+            for (int p = 0; p < PARTITIONS; p++)
+                deletePartition(p);
+        }
+        tables = null;
+        buildSpills = null;
+        probeSpills = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
         super.open();
     }
 
@@ -84,24 +283,38 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.listTable=null;
+        release();
+        resetBatchState();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        release();
         child1.rewind();
         child2.rewind();
+        // rebuild the table from the start of child1
+        listTable = null;
+        build();
+        resetBatchState();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    // the child1 rows matching t2: a table, and the next row of it, or -1
+    transient private JoinTable listTable = null;
+    transient private int listRow = -1;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
+     * <p>
+     * This is a hybrid hash join. child1 is read into hash tables, one per
+     * hash partition of the join field; if it does not fit in memory, whole
+     * partitions are written to temporary files. child2 is then read once:
+     * rows of partitions in memory are joined straight away, and rows of
+     * spilled partitions are written to files of their own. Finally each
+     * pair of spilled partition files is joined the same way. Every input
+     * row is therefore read at most twice per level of partitioning.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -116,15 +329,16 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
+        int row = listRow;
+        listRow = listTable.next(listRow);
 
-        int td1n = t1.getTupleDesc().numFields();
+        int td1n = child1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
         // set fields in combined tuple
         Tuple t = new Tuple(comboTD);
         for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
+            t.setField(i, listTable.getField(i, row));
         for (int i = 0; i < td2n; i++)
             t.setField(td1n + i, t2.getField(i));
         return t;
@@ -132,31 +346,120 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
+        if (listTable != null && listRow >= 0) {
             return processList();
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        if (partition < 0) {
+            // loop around child2
+            while (child2.hasNext()) {
+                t2 = child2.next();
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                Tuple probeRow = t2;
+                if (keyType == Type.INT_TYPE) {
+                    int k = t2.getInt(pred.getField2());
+                    listRow = probeInt(k, () -> probeRow);
+                    listTable = tableOf(k);
+                } else {
+                    String k = ((StringField) t2.getField(pred.getField2())).getValue();
+                    listRow = probeString(k, () -> probeRow);
+                    listTable = tableOf(k.hashCode());
+                }
+                if (listRow < 0)
+                    continue;
 
-            return processList();
+                return processList();
+            }
+            finishProbe();
+        }
 
+        // child2 is done: join the spilled partitions
+        while (sub != null || nextPartition()) {
+            if (sub.hasNext())
+                return sub.next();
+            if (!nextPartition())
+                break;
         }
+        return null;
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    // state of the batch path: the probe batch being joined, the next row
+    // of it to probe, and the build tuples matching the current probe row
+    transient private BatchOpIterator probeBatches = null;
+    transient private TupleBatch probeBatch = null;
+    transient private int probePos = 0;
+    transient private JoinTable matches = null;
+    transient private int match = -1;
+    transient private TupleBatch outBatch = null;
+
+    private void resetBatchState() {
+        probeBatch = null;
+        probePos = 0;
+        matches = null;
+        match = -1;
+    }
+
+    /**
+     * Returns the next batch of joined rows. child1 is hashed as for
+     * {@link #fetchNext()}; child2 is probed a batch at a time and its
+     * columns are copied into the output without building Tuples.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (partition >= 0)
+            return nextPartitionBatch();
+        if (probeBatches == null)
+            probeBatches = BatchOpIterator.of(child2);
+        if (outBatch == null)
+            outBatch = new TupleBatch(comboTD);
+        outBatch.clear();
+
+        int td1n = child1.getTupleDesc().numFields();
+        while (!outBatch.isFull()) {
+            if (match >= 0) {
+                int row = outBatch.addRow();
+                matches.copyRow(match, outBatch, row);
+                match = matches.next(match);
+                outBatch.copyRow(probeBatch, probeBatch.row(probePos - 1), row, td1n);
+                continue;
+            }
+            if (probeBatch == null || probePos >= probeBatch.numRows()) {
+                probeBatch = probeBatches.nextBatch();
+                probePos = 0;
+                if (probeBatch == null) {
+                    // child2 is done: the spilled partitions come next
+                    finishProbe();
+                    if (outBatch.numRows() > 0)
+                        return outBatch;
+                    return nextPartitionBatch();
+                }
+            }
+            TupleBatch b = probeBatch;
+            int r = b.row(probePos++);
+            int field = pred.getField2();
+            if (keyType == Type.INT_TYPE) {
+                int k = b.getInt(field, r);
+                match = probeInt(k, () -> b.getTuple(r));
+                matches = tableOf(k);
+            } else {
+                String k = b.getString(field, r);
+                match = probeString(k, () -> b.getTuple(r));
+                matches = tableOf(k.hashCode());
+            }
         }
+        return outBatch.numRows() == 0 ? null : outBatch;
+    }
 
+    /** Returns the next batch of the joins of the spilled partitions. */
+    private TupleBatch nextPartitionBatch() throws TransactionAbortedException, DbException {
+        while (sub != null || nextPartition()) {
+            TupleBatch b = sub.nextBatch();
+            if (b != null)
+                return b;
+            if (!nextPartition())
+                break;
+        }
         return null;
     }
 
@@ -169,6 +472,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        this.probeBatches = null;
     }
     
 }
@@ -0,0 +1,180 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins child1 with a table that has a B+ tree on its
+ * join field. Instead of scanning the inner table, it looks up each child1
+ * tuple's join value in the index with {@link BTreeFile#indexIterator}, so
+ * only the leaf pages holding matches are read.
+ * <p>
+ * The inner side is given as a {@link SeqScan} of the indexed table, which
+ * supplies the table, the transaction and the aliased field names; the scan
+ * itself is never opened.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate p;
+    private OpIterator child1;
+    private SeqScan child2;
+    private final TupleDesc comboTD;
+    /** The predicate on the index key equivalent to p. */
+    private final Predicate.Op indexOp;
+
+    private transient BTreeFile file;
+    private transient Tuple t1;
+    private transient DbFileIterator matches;
+
+    /**
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            A scan of the right(inner) relation, which must be a
+     *            BTreeFile keyed on the join field
+     * @throws IllegalArgumentException if the index cannot be used for p
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, SeqScan child2) {
+        if (!canProbe(p, child2))
+            throw new IllegalArgumentException("no usable index for join on " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.indexOp = reverse(p.getOperator());
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if the inner side of a join with predicate p can be read
+     *         through an index, that is if it is a scan of a BTreeFile keyed
+     *         on the join field and p is a comparison the index can answer
+     */
+    public static boolean canProbe(JoinPredicate p, OpIterator child2) {
+        if (!(child2 instanceof SeqScan) || reverse(p.getOperator()) == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) child2).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2();
+    }
+
+    /**
+     * @return the op such that (key op v) holds exactly when (v joinOp key)
+     *         does, or null if the index cannot answer joinOp
+     */
+    private static Predicate.Op reverse(Predicate.Op joinOp) {
+        switch (joinOp) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        file = (BTreeFile) Database.getCatalog().getDatabaseFile(child2.getTableId());
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        child1.close();
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        child1.rewind();
+    }
+
+    private void closeMatches() {
+        if (matches != null) {
+            matches.close();
+            matches = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a child1 tuple with each tuple the
+     * index finds for it, in child1 order and then in key order.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null) {
+                if (matches.hasNext())
+                    return merge(t1, matches.next());
+                closeMatches();
+            }
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            matches = file.indexIterator(child2.getTransactionId(),
+                    new IndexPredicate(indexOp, t1.getField(p.getField1())));
+            matches.open();
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        int fieldNum = 0;
+        Iterator<Field> fi1 = t1.fields();
+        while (fi1.hasNext())
+            t.setField(fieldNum++, fi1.next());
+        Iterator<Field> fi2 = t2.fields();
+        while (fi2.hasNext())
+            t.setField(fieldNum++, fi2.next());
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = (SeqScan) children[1];
+    }
+}
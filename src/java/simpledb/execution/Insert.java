@@ -10,6 +10,8 @@ import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.io.IOException;
+
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
@@ -97,11 +99,11 @@ public class Insert extends Operator {
             Tuple res = new Tuple(this.getTupleDesc());
             res.setField(0, new IntField(insertedNum));
             return res;
-        } catch (Exception e) {
+        } catch (IOException e) {
+            // a transaction abort is left to propagate to the caller
             e.printStackTrace();
+            throw new DbException(e.getMessage());
         }
-
-        return null;
     }
 
     @Override
@@ -4,10 +4,7 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
@@ -17,8 +14,10 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private Op what;
 
-    private List<Tuple> all; // aggregate for NO_GROUPING
-    private Map<Field, List<Tuple>> groups;
+    // group numbers of the group-by values, and running state per group;
+    // without grouping everything goes to group 0
+    private final GroupTable groups;
+    private final AggregateState state = new AggregateState();
 
     private static final long serialVersionUID = 1L;
 
@@ -44,8 +43,7 @@ public class IntegerAggregator implements Aggregator {
         this.afield = afield;
         this.what = what;
 
-        this.all = new ArrayList<>();
-        this.groups = new HashMap<>();
+        this.groups = gbfield == NO_GROUPING ? null : new GroupTable(gbfieldtype);
     }
 
     /**
@@ -57,16 +55,50 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        all.add(tup);
+        int g = 0;
         if (gbfield != NO_GROUPING) {
-            // insert tuple into corresponding list.
-            Field key = tup.getField(gbfield);
-            if (!groups.containsKey(key)) {
-                groups.put(key, new ArrayList<>());
-            }
-            List<Tuple> tuples = groups.get(key);
-            tuples.add(tup);
+            g = gbfieldtype == Type.INT_TYPE
+                    ? groups.findInt(tup.getInt(gbfield))
+                    : groups.find(tup.getField(gbfield));
+        }
+        state.add(g, tup.getInt(afield));
+    }
+
+    /**
+     * Merges the selected rows of a batch straight from its columns.
+     */
+    @Override
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = batch.numRows();
+        int[] values = batch.ints(afield);
+        if (gbfield == NO_GROUPING) {
+            for (int i = 0; i < n; i++)
+                state.add(0, values[sel[i]]);
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            int[] keys = batch.ints(gbfield);
+            for (int i = 0; i < n; i++)
+                state.add(groups.findInt(keys[sel[i]]), values[sel[i]]);
+        } else {
+            String[] keys = batch.strings(gbfield);
+            for (int i = 0; i < n; i++)
+                state.add(groups.findString(keys[sel[i]]), values[sel[i]]);
+        }
+    }
+
+    /**
+     * Merges the running state of each group of other into the group with
+     * the same key here.
+     */
+    @Override
+    public void merge(Aggregator other) {
+        IntegerAggregator o = (IntegerAggregator) other;
+        if (gbfield == NO_GROUPING) {
+            state.merge(0, o.state, 0);
+            return;
         }
+        for (int og = 0; og < o.groups.size(); og++)
+            state.merge(groups.find(o.groups, og), o.state, og);
     }
 
     /**
@@ -82,15 +114,15 @@ public class IntegerAggregator implements Aggregator {
         TupleDesc td = this.getTupleDesc();
         List<Tuple> tuples = new ArrayList<>();
         if (gbfield != NO_GROUPING) {
-            groups.forEach((k, v) -> {
+            for (int g = 0; g < groups.size(); g++) {
                 Tuple t = new Tuple(td);
-                t.setField(0, k);
-                t.setField(1, new IntField(getAggregateResult(v, what)));
+                t.setField(0, groups.key(g));
+                t.setField(1, new IntField(state.result(g, what)));
                 tuples.add(t);
-            });
+            }
         } else {
             Tuple t = new Tuple(td);
-            t.setField(0, new IntField(getAggregateResult(all, what)));
+            t.setField(0, new IntField(state.result(0, what)));
             tuples.add(t);
         }
         return new TupleIterator(td, tuples);
@@ -104,22 +136,4 @@ public class IntegerAggregator implements Aggregator {
             return new TupleDesc(new Type[]{this.gbfieldtype, Type.INT_TYPE});
         }
     }
-
-    // calculate aggregate result
-    private int getAggregateResult(List<Tuple> list, Aggregator.Op op) {
-        switch (op) {
-            case COUNT:
-                return list.size();
-            case SUM:
-                return list.stream().mapToInt(k -> ((IntField)k.getField(afield)).getValue()).sum();
-            case AVG:
-                return (int)(list.stream().mapToInt(k -> ((IntField)k.getField(afield)).getValue()).sum() * 1.0 / list.size());
-            case MAX:
-                return list.stream().mapToInt(k -> ((IntField)k.getField(afield)).getValue()).max().getAsInt();
-            case MIN:
-                return list.stream().mapToInt(k -> ((IntField)k.getField(afield)).getValue()).min().getAsInt();
-            default:
-                return -1;
-        }
-    }
 }
@@ -1,5 +1,6 @@
 package simpledb.execution;
 
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
@@ -10,12 +11,45 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loop join: child1 is read a block of several pages'
+ * worth of tuples at a time, and child2 is scanned once per block rather
+ * than once per child1 tuple.
  */
 public class Join extends Operator {
     private JoinPredicate p;
     private OpIterator child1, child2;
-    // keep tuple of current position for left table
-    private Tuple t1;
+
+    /** Default number of pages of child1 tuples held per block. */
+    public static final int DEFAULT_BLOCK_PAGES = 64;
+    private static int blockPages = DEFAULT_BLOCK_PAGES;
+
+    /**
+     * Sets the number of pages' worth of child1 tuples a Join holds at a
+     * time. Changing it affects joins opened afterwards.
+     */
+    public static void setBlockPages(int blockPages) {
+        Join.blockPages = blockPages;
+    }
+
+    /** @return the number of pages' worth of child1 tuples per block */
+    public static int getBlockPages() {
+        return blockPages;
+    }
+
+    /** Restores the default block size; used by tests. */
+    public static void resetBlockPages() {
+        Join.blockPages = DEFAULT_BLOCK_PAGES;
+    }
+
+    // the current block of child1 tuples, the child2 tuple being joined
+    // with it, and the next block tuple to try against t2
+    private transient Tuple[] block;
+    private transient int blockSize;
+    private transient Tuple t2;
+    private transient int blockPos;
+    /** True until child2 has been scanned for the first block. */
+    private transient boolean firstBlock;
 
     private static final long serialVersionUID = 1L;
 
@@ -77,7 +111,35 @@ public class Join extends Operator {
         super.open();
         child1.open();
         child2.open();
-        t1 = child1.hasNext() ? child1.next() : null;
+        int rows = (int) Math.min((long) blockPages * BufferPool.getPageSize()
+                / child1.getTupleDesc().getSize(), Integer.MAX_VALUE);
+        block = new Tuple[Math.max(rows, 1)];
+        startBlocks();
+    }
+
+    private void startBlocks() throws DbException, TransactionAbortedException {
+        blockSize = 0;
+        t2 = null;
+        firstBlock = true;
+        readBlock();
+    }
+
+    /**
+     * Reads the next block of child1 tuples, and rewinds child2 unless this
+     * is the first block.
+     *
+     * @return false if child1 is exhausted
+     */
+    private boolean readBlock() throws DbException, TransactionAbortedException {
+        blockSize = 0;
+        while (blockSize < block.length && child1.hasNext())
+            block[blockSize++] = child1.next();
+        if (blockSize == 0)
+            return false;
+        if (!firstBlock)
+            child2.rewind();
+        firstBlock = false;
+        return true;
     }
 
     public void close() {
@@ -85,14 +147,15 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
-        t1 = null;
+        block = null;
+        t2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
-        t1 = child1.hasNext() ? child1.next() : null;
+        startBlocks();
     }
 
     /**
@@ -101,6 +164,10 @@ public class Join extends Operator {
      * satisfies the join predicate. There are many possible implementations;
      * the simplest is a nested loops join.
      * <p>
+     * Within a block, each child2 tuple is tried against every child1 tuple
+     * of the block in turn, so the results come out grouped by block rather
+     * than in child1 order.
+     * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
      * relation. Therefore, if an equality predicate is used there will be two
@@ -115,40 +182,43 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (t1 == null) {
-            return null;
-        }
-
-        while(child2.hasNext()) {
-            Tuple t2 = child2.next();
-
-            if (p.filter(t1, t2)) {
-                Tuple t = new Tuple(getTupleDesc());
-                int fieldNum = 0;
-
-                // t1 fields iterator
-                Iterator<Field> fi1 = t1.fields();
-                while(fi1.hasNext()) {
-                    t.setField(fieldNum++, fi1.next());
-                }
-
-                // t2 fields iterator
-                Iterator<Field> fi2 = t2.fields();
-                while(fi2.hasNext()) {
-                    t.setField(fieldNum++, fi2.next());
+        while (blockSize > 0) {
+            if (t2 != null) {
+                while (blockPos < blockSize) {
+                    Tuple t1 = block[blockPos++];
+                    if (p.filter(t1, t2))
+                        return merge(t1, t2);
                 }
-
-                return t;
+            }
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+            } else {
+                t2 = null;
+                if (!readBlock())
+                    break;
             }
         }
+        return null;
+    }
 
-        // reset child2 iterator
-        child2.rewind();
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(getTupleDesc());
+        int fieldNum = 0;
 
-        // update t1 to next position
-        t1 = child1.hasNext() ? child1.next() : null;
+        // t1 fields iterator
+        Iterator<Field> fi1 = t1.fields();
+        while(fi1.hasNext()) {
+            t.setField(fieldNum++, fi1.next());
+        }
+
+        // t2 fields iterator
+        Iterator<Field> fi2 = t2.fields();
+        while(fi2.hasNext()) {
+            t.setField(fieldNum++, fi2.next());
+        }
 
-        return fetchNext();
+        return t;
     }
 
     @Override
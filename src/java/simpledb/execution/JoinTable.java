@@ -0,0 +1,149 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+import java.util.Arrays;
+
+/**
+ * JoinTable is the build side of a hash join: a multimap from join key to
+ * the rows with that key.
+ * <p>
+ * Keys are numbered by a {@link GroupTable}, so INT_TYPE keys live in a
+ * flat int[] with linear probing and are never boxed. The rows themselves
+ * are stored by column, as in a {@link TupleBatch}, in arrays indexed by
+ * row number, next to the number of the next row with the same key. Rows
+ * are copied in from batches without creating Tuples or Fields. Each key
+ * records its first and last row, so a probe walks a chain of ints rather
+ * than a List, and rows with equal keys come back in the order they were
+ * added.
+ */
+class JoinTable {
+
+    private static final int INITIAL_ROWS = 16;
+
+    private final GroupTable keys;
+    /** First and last row of each key, by key number. */
+    private int[] first = new int[INITIAL_ROWS];
+    private int[] last = new int[INITIAL_ROWS];
+    private int numKeys = 0;
+
+    private final TupleDesc td;
+    /** The values of each INT_TYPE and STRING_TYPE column, by row. */
+    private final int[][] ints;
+    private final String[][] strings;
+    /** Next row with the same key, or -1. */
+    private int[] next = new int[INITIAL_ROWS];
+    private int numRows = 0;
+
+    /**
+     * @param keyType the type of the join key
+     * @param td the schema of the rows
+     */
+    JoinTable(Type keyType, TupleDesc td) {
+        this.keys = new GroupTable(keyType);
+        this.td = td;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[INITIAL_ROWS];
+            else
+                strings[i] = new String[INITIAL_ROWS];
+        }
+    }
+
+    /** @return the number of rows added */
+    int numRows() {
+        return numRows;
+    }
+
+    /** Adds a physical row of a batch with an INT_TYPE key. */
+    void addInt(int key, TupleBatch b, int r) {
+        add(keys.findInt(key), b, r);
+    }
+
+    /** Adds a physical row of a batch with a STRING_TYPE key. */
+    void addString(String key, TupleBatch b, int r) {
+        add(keys.findString(key), b, r);
+    }
+
+    private void add(int k, TupleBatch b, int r) {
+        if (numRows == next.length) {
+            int size = numRows * 2;
+            next = Arrays.copyOf(next, size);
+            for (int i = 0; i < ints.length; i++) {
+                if (ints[i] != null)
+                    ints[i] = Arrays.copyOf(ints[i], size);
+                else
+                    strings[i] = Arrays.copyOf(strings[i], size);
+            }
+        }
+        int row = numRows++;
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i][row] = b.getInt(i, r);
+            else
+                strings[i][row] = b.getString(i, r);
+        }
+        next[row] = -1;
+        if (k == numKeys) {
+            if (k == first.length) {
+                first = Arrays.copyOf(first, k * 2);
+                last = Arrays.copyOf(last, k * 2);
+            }
+            first[k] = row;
+            numKeys++;
+        } else {
+            next[last[k]] = row;
+        }
+        last[k] = row;
+    }
+
+    /** @return the first row with an INT_TYPE key, or -1 if there is none */
+    int lookupInt(int key) {
+        int k = keys.lookupInt(key);
+        return k < 0 ? -1 : first[k];
+    }
+
+    /** @return the first row with a STRING_TYPE key, or -1 if there is none */
+    int lookupString(String key) {
+        int k = keys.lookupString(key);
+        return k < 0 ? -1 : first[k];
+    }
+
+    /** @return the next row with the same key as the given one, or -1 */
+    int next(int row) {
+        return next[row];
+    }
+
+    /** @return the value of a column of a row as a Field; this allocates */
+    Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    /** @return a new Tuple holding a row */
+    Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        return t;
+    }
+
+    /** Copies a row into the first columns of a physical row of a batch. */
+    void copyRow(int row, TupleBatch out, int outRow) {
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                out.setInt(i, outRow, ints[i][row]);
+            else
+                out.setString(i, outRow, strings[i][row]);
+        }
+    }
+}
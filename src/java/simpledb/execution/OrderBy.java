@@ -2,26 +2,31 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY. Its input
+ * is sorted by an {@link ExternalSort} holding at most
+ * {@link #getMaxRows()} rows in memory, so inputs larger than that are
+ * sorted in runs on disk and merged.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
     private final int orderByField;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
+    private transient ExternalSort sort;
     private final boolean asc;
 
+    /** Default number of rows sorted in memory: about 1M. */
+    public static final int DEFAULT_MAX_ROWS = 1 << 20;
+    private static int maxRows = DEFAULT_MAX_ROWS;
+
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
      * 
@@ -40,6 +45,25 @@ public class OrderBy extends Operator {
         this.asc = asc;
     }
     
+    /**
+     * Sets the number of rows an OrderBy may hold in memory; larger inputs
+     * are sorted in runs on disk. Changing it affects OrderBys opened
+     * afterwards.
+     */
+    public static void setMaxRows(int maxRows) {
+        OrderBy.maxRows = maxRows;
+    }
+
+    /** @return the number of rows an OrderBy may hold in memory */
+    public static int getMaxRows() {
+        return maxRows;
+    }
+
+    /** Restores the default sort budget; used by tests. */
+    public static void resetMaxRows() {
+        OrderBy.maxRows = DEFAULT_MAX_ROWS;
+    }
+
     public boolean isASC()
     {
 	return this.asc;
@@ -62,21 +86,27 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        sort = new ExternalSort(td, orderByField, asc, maxRows);
+        // the child's own tuples, RecordIds and all
         while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sort.add(child.next());
+        child.close();
+        sort.finish();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        if (sort == null)
+            throw new IllegalStateException("Operator not yet open");
+        sort.rewind();
     }
 
     /**
@@ -86,11 +116,8 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+    protected Tuple fetchNext() throws DbException {
+        return sort != null ? sort.next() : null;
     }
 
     @Override
@@ -104,25 +131,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
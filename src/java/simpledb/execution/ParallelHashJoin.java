@@ -0,0 +1,304 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * ParallelHashJoin is an equi-join that builds and probes its hash tables
+ * on several threads of a {@link ForkJoinPool}.
+ * <p>
+ * child1 is read and split by a hash of its join field into several
+ * partitions per thread, and each partition's {@link JoinTable} is then
+ * built by its own task. child2 is read by a driver thread in morsels, a
+ * batch of rows at a time; each morsel is copied and probed by another
+ * task, which writes the joined rows to batches of its own. Finished
+ * batches go through a bounded queue to the thread calling
+ * {@link #next()} or {@link #nextBatch()}, so a slow consumer holds the
+ * probe back rather than letting output pile up.
+ * <p>
+ * The whole of child1 is held in memory. Unlike {@link HashEquiJoin} it
+ * never spills, so the optimizer only chooses it when child1 fits within
+ * {@link HashEquiJoin#getMaxBuildRows()}. Results come out in no
+ * particular order.
+ */
+public class ParallelHashJoin extends Operator implements BatchOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of worker threads: one per processor. */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static int parallelism = DEFAULT_PARALLELISM;
+
+    /**
+     * Sets the number of threads a ParallelHashJoin uses. Changing it
+     * affects joins opened afterwards.
+     */
+    public static void setParallelism(int parallelism) {
+        ParallelHashJoin.parallelism = Math.max(parallelism, 1);
+    }
+
+    /** @return the number of threads a ParallelHashJoin uses */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /** Restores the default parallelism; used by tests. */
+    public static void resetParallelism() {
+        ParallelHashJoin.parallelism = DEFAULT_PARALLELISM;
+    }
+
+    /** Partitions of child1 per thread, so that uneven ones balance out. */
+    private static final int PARTITIONS_PER_THREAD = 4;
+    /** Output batches that may wait for the consumer, per thread. */
+    private static final int QUEUED_BATCHES_PER_THREAD = 2;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final Type keyType;
+
+    private transient ForkJoinPool pool;
+    private transient JoinTable[] tables;
+    private transient BatchQueue queue;
+    // the batch fetchNext is returning rows of
+    private transient TupleBatch current;
+    private transient int currentPos;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("ParallelHashJoin needs an equality predicate");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.keyType = child1.getTupleDesc().getFieldType(p.getField1());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        int threads = parallelism;
+        pool = new ForkJoinPool(threads);
+        child1.open();
+        child2.open();
+        build(threads * PARTITIONS_PER_THREAD);
+        startProbe(threads);
+        super.open();
+    }
+
+    private int hash(TupleBatch b, int col, int r) {
+        return keyType == Type.INT_TYPE ? b.getInt(col, r) : b.getString(col, r).hashCode();
+    }
+
+    /** Splits child1 into partitions and builds their tables in parallel. */
+    private void build(int partitions) throws DbException, TransactionAbortedException {
+        // the rows of each partition, copied into batches of its own
+        List<List<TupleBatch>> rows = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++)
+            rows.add(new ArrayList<>());
+        int field = pred.getField1();
+        TupleDesc td = child1.getTupleDesc();
+        BatchOpIterator in = BatchOpIterator.of(child1);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++) {
+                int r = batch.row(i);
+                List<TupleBatch> part = rows.get(SpillFile.partition(hash(batch, field, r), 0, partitions));
+                if (part.isEmpty() || part.get(part.size() - 1).isFull())
+                    part.add(new TupleBatch(td));
+                TupleBatch to = part.get(part.size() - 1);
+                to.copyRow(batch, r, to.addRow(), 0);
+            }
+        }
+
+        tables = new JoinTable[partitions];
+        List<Callable<Void>> tasks = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            int part = p;
+            tasks.add(() -> {
+                JoinTable table = new JoinTable(keyType, td);
+                for (TupleBatch b : rows.get(part)) {
+                    for (int r = 0; r < b.numRows(); r++) {
+                        if (keyType == Type.INT_TYPE)
+                            table.addInt(b.getInt(field, r), b, r);
+                        else
+                            table.addString(b.getString(field, r), b, r);
+                    }
+                }
+                tables[part] = table;
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while building hash join tables");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e.getCause();
+            throw new DbException("cannot build hash join tables: " + e.getCause());
+        }
+    }
+
+    /**
+     * Starts the driver thread that reads child2 and hands its morsels to
+     * probe tasks. At most two morsels per thread are in flight at once.
+     * The driver runs outside the pool, since it blocks while waiting for
+     * the probe tasks it submitted. It is the queue's only producer.
+     */
+    private void startProbe(int threads) {
+        BatchQueue queue = new BatchQueue(threads * QUEUED_BATCHES_PER_THREAD, 1);
+        this.queue = queue;
+        current = null;
+        int maxInFlight = 2 * threads;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Thread driver = new Thread(() -> {
+            try {
+                BatchOpIterator in = BatchOpIterator.of(child2);
+                TupleBatch batch;
+                while (!queue.isCancelled() && (batch = in.nextBatch()) != null) {
+                    TupleBatch morsel = batch.copy();
+                    inFlight.acquire();
+                    pool.execute(() -> {
+                        try {
+                            probe(queue, morsel);
+                        } catch (Throwable t) {
+                            queue.fail(t);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            } catch (Throwable t) {
+                queue.fail(t);
+            } finally {
+                // once every permit is back, every probe task has finished
+                inFlight.acquireUninterruptibly(maxInFlight);
+                queue.producerDone();
+            }
+        }, "ParallelHashJoin-probe");
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    /** Joins one morsel of child2 with the tables, queueing the results. */
+    private void probe(BatchQueue queue, TupleBatch morsel) throws InterruptedException {
+        int field = pred.getField2();
+        int td1n = child1.getTupleDesc().numFields();
+        int partitions = tables.length;
+        TupleBatch out = new TupleBatch(comboTD);
+        for (int r = 0; r < morsel.numRows() && !queue.isCancelled(); r++) {
+            JoinTable table = tables[SpillFile.partition(hash(morsel, field, r), 0, partitions)];
+            int match = keyType == Type.INT_TYPE ? table.lookupInt(morsel.getInt(field, r))
+                    : table.lookupString(morsel.getString(field, r));
+            for (; match >= 0; match = table.next(match)) {
+                if (out.isFull()) {
+                    queue.put(out);
+                    out = new TupleBatch(comboTD);
+                }
+                int row = out.addRow();
+                table.copyRow(match, out, row);
+                out.copyRow(morsel, r, row, td1n);
+            }
+        }
+        if (out.numRows() > 0)
+            queue.put(out);
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (current != null && currentPos < current.numRows())
+                return current.getTuple(current.row(currentPos++));
+            current = queue.take();
+            currentPos = 0;
+            if (current == null)
+                return null;
+        }
+    }
+
+    /** Returns the next batch of joined rows, as produced by a probe task. */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (current != null && currentPos < current.numRows()) {
+            // rest of a batch fetchNext started on
+            TupleBatch rest = new TupleBatch(comboTD, current.numRows() - currentPos);
+            while (currentPos < current.numRows())
+                rest.copyRow(current, current.row(currentPos++), rest.addRow(), 0);
+            return rest;
+        }
+        current = null;
+        return queue.take();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        queue.cancel();
+        child2.rewind();
+        startProbe(pool.getParallelism());
+    }
+
+    public void close() {
+        super.close();
+        if (pool != null) {
+            if (queue != null)
+                queue.cancel();
+            pool.shutdown();
+            pool = null;
+        }
+        queue = null;
+        tables = null;
+        current = null;
+        child2.close();
+        child1.close();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.PageMorsels;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * ParallelScan reads a HeapFile on several threads at once: it is an
+ * {@link Exchange} whose instances each scan part of the file.
+ * <p>
+ * The file's pages are handed out in morsels of
+ * {@link #DEFAULT_MORSEL_PAGES} consecutive pages by a shared
+ * {@link PageMorsels}. Each instance has its own {@link SeqScan} that
+ * claims morsels until none are left, topped by its own copy of a pipeline
+ * fragment, typically a {@link Filter} and a {@link Project}, so the tuples
+ * a fragment throws away never leave its thread. There are
+ * {@link Exchange#getParallelism()} instances.
+ * <p>
+ * Pages are fetched through the BufferPool as usual, with the scan's
+ * transaction. Results come out in no particular order.
+ */
+public class ParallelScan extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Pages in a morsel. */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    private final int tableId;
+    private final String tableAlias;
+    private final transient PageMorsels morsels;
+
+    /**
+     * Creates a parallel scan of a heap file that returns its tuples as
+     * they are.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be a HeapFile
+     * @param tableAlias
+     *            the alias of this table, as for {@link SeqScan}
+     */
+    public ParallelScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, Function.identity());
+    }
+
+    /**
+     * Creates a parallel scan of a heap file whose instances each run a
+     * pipeline fragment over their part of the file.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be a HeapFile
+     * @param tableAlias
+     *            the alias of this table, as for {@link SeqScan}
+     * @param fragment
+     *            builds a new pipeline over the scan it is given; it is
+     *            called once per instance
+     */
+    public ParallelScan(TransactionId tid, int tableid, String tableAlias,
+            Function<OpIterator, OpIterator> fragment) {
+        this(tid, tableid, tableAlias, fragment, morselsOf(tableid));
+    }
+
+    private ParallelScan(TransactionId tid, int tableid, String tableAlias,
+            Function<OpIterator, OpIterator> fragment, PageMorsels morsels) {
+        super(instances(tid, tableid, tableAlias, morsels, fragment));
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        this.morsels = morsels;
+    }
+
+    private static PageMorsels morselsOf(int tableid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile))
+            throw new IllegalArgumentException("ParallelScan needs a HeapFile");
+        return new PageMorsels((HeapFile) file, DEFAULT_MORSEL_PAGES);
+    }
+
+    private static List<OpIterator> instances(TransactionId tid, int tableid, String tableAlias,
+            PageMorsels morsels, Function<OpIterator, OpIterator> fragment) {
+        List<OpIterator> instances = new ArrayList<>();
+        for (int i = 0; i < getParallelism(); i++)
+            instances.add(fragment.apply(new SeqScan(tid, tableid, tableAlias, morsels)));
+        return instances;
+    }
+
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the alias of the table this operator scans */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        morsels.reset();
+        super.open();
+    }
+
+    /** Hands out the file's morsels again before rewinding the instances. */
+    @Override
+    protected void reset() throws DbException, TransactionAbortedException {
+        morsels.reset();
+        super.reset();
+    }
+}
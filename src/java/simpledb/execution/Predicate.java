@@ -1,7 +1,9 @@
 package simpledb.execution;
 
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 
 import java.io.Serializable;
 
@@ -109,9 +111,63 @@ public class Predicate implements Serializable {
         if (t == null)
             return false;
 
+        // int comparisons read the value straight out of lazily decoded tuples
+        if (operand instanceof IntField)
+            return IntField.compare(op, t.getInt(field), ((IntField) operand).getValue());
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Applies this predicate to every selected row of a batch, dropping the
+     * rows that fail it from the batch's selection vector.
+     *
+     * @param batch
+     *            The batch to filter
+     */
+    public void filter(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = batch.numRows();
+        int k = 0;
+        if (operand instanceof IntField) {
+            int[] col = batch.ints(field);
+            int v = ((IntField) operand).getValue();
+            // one loop per operator so the comparison is not re-dispatched per row
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] == v) sel[k++] = sel[i];
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] != v) sel[k++] = sel[i];
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] > v) sel[k++] = sel[i];
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] >= v) sel[k++] = sel[i];
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] < v) sel[k++] = sel[i];
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++)
+                        if (col[sel[i]] <= v) sel[k++] = sel[i];
+                    break;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                if (batch.getField(field, sel[i]).compare(op, operand))
+                    sel[k++] = sel[i];
+            }
+        }
+        batch.setNumRows(k);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
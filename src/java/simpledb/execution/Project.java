@@ -4,6 +4,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -11,12 +12,14 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private transient BatchOpIterator childBatches;
+    private transient int[] outCols;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -81,6 +84,21 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Returns the next batch of the child restricted to the projected
+     * columns. The columns are shared with the child's batch, not copied.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (childBatches == null) {
+            childBatches = BatchOpIterator.of(child);
+            outCols = new int[outFieldIds.size()];
+            for (int i = 0; i < outCols.length; i++)
+                outCols[i] = outFieldIds.get(i);
+        }
+        TupleBatch batch = childBatches.nextBatch();
+        return batch == null ? null : batch.project(outCols, td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -90,6 +108,7 @@ public class Project extends Operator {
     public void setChildren(OpIterator[] children) {
         if (this.child != children[0]) {
             this.child = children[0];
+            this.childBatches = null;
         }
     }
 
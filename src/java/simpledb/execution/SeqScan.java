@@ -14,11 +14,14 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
     private TransactionId tid;
     private int tableId;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    /** The morsels of the table this scan shares with others, or null. */
+    private final PageMorsels morsels;
+    private transient TupleBatch batch;
 
     private static final long serialVersionUID = 1L;
 
@@ -40,9 +43,18 @@ public class SeqScan implements OpIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a scan of the morsels of a heap file it claims from morsels,
+     * as one of several scans sharing the file between threads.
+     */
+    SeqScan(TransactionId tid, int tableid, String tableAlias, PageMorsels morsels) {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.morsels = morsels;
     }
 
     /**
@@ -54,6 +66,16 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -86,8 +108,10 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        dbFileIterator = new HeapFileIterator(tid,
-                (HeapFile) Database.getCatalog().getDatabaseFile(tableId));
+        if (morsels != null)
+            dbFileIterator = morsels.getFile().iterator(tid, morsels);
+        else
+            dbFileIterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
         dbFileIterator.open();
     }
 
@@ -128,10 +152,32 @@ public class SeqScan implements OpIterator {
         return dbFileIterator.next();
     }
 
+    /**
+     * Returns the next batch of tuples. Heap files fill the batch straight
+     * from their pages; other files are read a tuple at a time.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (dbFileIterator == null)
+            throw new IllegalStateException("SeqScan not open");
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc());
+        batch.clear();
+        if (dbFileIterator instanceof HeapFileIterator) {
+            ((HeapFileIterator) dbFileIterator).nextBatch(batch);
+        } else {
+            while (!batch.isFull() && dbFileIterator.hasNext())
+                batch.addTuple(dbFileIterator.next());
+        }
+        return batch.numRows() == 0 ? null : batch;
+    }
+
     public void close() {
         // some code goes here
-        dbFileIterator.close();
-        dbFileIterator = null;
+        // closing twice, or before open, is harmless
+        if (dbFileIterator != null) {
+            dbFileIterator.close();
+            dbFileIterator = null;
+        }
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -0,0 +1,366 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two inputs on an equality or range predicate by
+ * reading both in ascending order of their join fields.
+ * <p>
+ * An input that already comes out in that order is read as it is: a
+ * {@link BTreeScan}, or a {@link SeqScan} of a {@link BTreeFile}, keyed on
+ * the join field, or an ascending {@link OrderBy} on it. Any other input is
+ * sorted with an {@link ExternalSort}, which holds at most
+ * {@link OrderBy#getMaxRows()} rows in memory and spills the rest to runs
+ * on disk.
+ * <p>
+ * For an equality join only the child2 tuples sharing the current key are
+ * held in memory. For a range join every child1 tuple matches a prefix or a
+ * suffix of child2. If child2 has at most getMaxRows() rows it is held in
+ * memory in sorted order, and the boundary of that prefix or suffix only
+ * ever moves forward as child1's key grows; no comparison is spent on a
+ * pair that does not match. A larger child2 is not held: its sorted input
+ * is read again from the start for each child1 tuple, which bounds memory
+ * but costs a nested loop's worth of reads, so the optimizer only picks a
+ * range sort-merge join for an inner input that fits.
+ * <p>
+ * Results come out in ascending order of child1's join field.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate p;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    private transient SortedInput left, right;
+    private transient Tuple t1;
+
+    // equality: the child2 tuples with key groupKey, the next of them to
+    // return, and the first child2 tuple after them
+    private transient List<Tuple> group;
+    private transient Field groupKey;
+    private transient int groupPos;
+    private transient Tuple lookahead;
+
+    // range: all of child2 in order, or null if it is too large and is
+    // read again for each t1; the boundary of the current match, and the
+    // range [from, to) of child2 still to return for t1
+    private transient List<Tuple> all;
+    private transient boolean reread;
+    private transient int bound;
+    private transient int from, to;
+
+    /**
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException if p is not an equality or range
+     *             predicate
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("cannot sort-merge join on " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if a SortMergeJoin can evaluate the given predicate */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * @return true if child returns its tuples in ascending order of the
+     *         given field
+     */
+    static boolean isSortedOn(OpIterator child, int field) {
+        if (child instanceof BTreeScan)
+            return ((BTreeScan) child).getKeyField() == field;
+        if (child instanceof SeqScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) child).getTableId());
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        }
+        if (child instanceof OrderBy) {
+            OrderBy ob = (OrderBy) child;
+            return ob.isASC() && ob.getOrderByField() == field;
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        left = new SortedInput(child1, p.getField1());
+        right = new SortedInput(child2, p.getField2());
+        left.open();
+        right.open();
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            all = new ArrayList<>();
+            Tuple t;
+            while ((t = right.next()) != null) {
+                if (all.size() == OrderBy.getMaxRows()) {
+                    all = null;
+                    reread = true;
+                    break;
+                }
+                all.add(t);
+            }
+        } else {
+            group = new ArrayList<>();
+        }
+        start();
+        super.open();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        t1 = null;
+        groupKey = null;
+        groupPos = 0;
+        lookahead = null;
+        if (group != null) {
+            group.clear();
+            lookahead = right.next();
+        }
+        bound = 0;
+        from = to = 0;
+    }
+
+    public void close() {
+        super.close();
+        if (left != null) {
+            left.close();
+            right.close();
+            left = right = null;
+        }
+        t1 = null;
+        group = null;
+        all = null;
+        reread = false;
+        lookahead = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        if (group != null)
+            right.rewind();
+        start();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a child1 tuple and a child2 tuple
+     * that satisfy the join predicate.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return nextEqual();
+        return reread ? nextInRangeRereading() : nextInRange();
+    }
+
+    private Tuple nextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && groupPos < group.size())
+                return merge(t1, group.get(groupPos++));
+            t1 = left.next();
+            if (t1 == null)
+                return null;
+            Field key = t1.getField(p.getField1());
+            groupPos = 0;
+            if (groupKey != null && groupKey.equals(key))
+                continue;
+
+            // skip the smaller child2 keys, then collect the equal ones
+            while (lookahead != null
+                    && lookahead.getField(p.getField2()).compare(Predicate.Op.LESS_THAN, key))
+                lookahead = right.next();
+            group.clear();
+            groupKey = null;
+            if (lookahead != null && lookahead.getField(p.getField2()).equals(key)) {
+                groupKey = key;
+                while (lookahead != null && lookahead.getField(p.getField2()).equals(key)) {
+                    group.add(lookahead);
+                    lookahead = right.next();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how a child2 key compares to child1's key when it comes
+     *         before the boundary: up to and including it for t1 < t2 and
+     *         t1 >= t2, and strictly before it otherwise
+     */
+    private Predicate.Op beforeBoundary() {
+        Predicate.Op op = p.getOperator();
+        return (op == Predicate.Op.LESS_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ)
+                ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+    }
+
+    /** @return true if t1 matches the child2 tuples after the boundary */
+    private boolean matchesSuffix() {
+        Predicate.Op op = p.getOperator();
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    private Tuple nextInRange() throws TransactionAbortedException, DbException {
+        Predicate.Op before = beforeBoundary();
+        while (true) {
+            if (t1 != null && from < to)
+                return merge(t1, all.get(from++));
+            t1 = left.next();
+            if (t1 == null)
+                return null;
+            Field key = t1.getField(p.getField1());
+
+            while (bound < all.size()
+                    && all.get(bound).getField(p.getField2()).compare(before, key))
+                bound++;
+            if (matchesSuffix()) {
+                from = bound;
+                to = all.size();
+            } else {
+                from = 0;
+                to = bound;
+            }
+        }
+    }
+
+    /**
+     * Range join for a child2 too large to hold: child2 is read from the
+     * start for each child1 tuple, skipping the tuples before the boundary
+     * for a suffix, and stopping at the boundary for a prefix.
+     */
+    private Tuple nextInRangeRereading() throws TransactionAbortedException, DbException {
+        Predicate.Op before = beforeBoundary();
+        boolean suffix = matchesSuffix();
+        while (true) {
+            if (t1 != null) {
+                Tuple t2 = lookahead != null ? lookahead : right.next();
+                lookahead = null;
+                if (t2 != null && (suffix
+                        || t2.getField(p.getField2()).compare(before, t1.getField(p.getField1()))))
+                    return merge(t1, t2);
+            }
+            t1 = left.next();
+            if (t1 == null)
+                return null;
+            right.rewind();
+            if (suffix) {
+                Field key = t1.getField(p.getField1());
+                Tuple t2;
+                do {
+                    t2 = right.next();
+                } while (t2 != null && t2.getField(p.getField2()).compare(before, key));
+                lookahead = t2;
+            }
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        int fieldNum = 0;
+        Iterator<Field> fi1 = t1.fields();
+        while (fi1.hasNext())
+            t.setField(fieldNum++, fi1.next());
+        Iterator<Field> fi2 = t2.fields();
+        while (fi2.hasNext())
+            t.setField(fieldNum++, fi2.next());
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+    /** One input in ascending order of its join field. */
+    private static class SortedInput {
+        private final OpIterator child;
+        private final int field;
+        private ExternalSort sort;
+
+        SortedInput(OpIterator child, int field) {
+            this.child = child;
+            this.field = field;
+        }
+
+        void open() throws DbException, TransactionAbortedException {
+            child.open();
+            if (isSortedOn(child, field))
+                return;
+            sort = new ExternalSort(child.getTupleDesc(), field, true, OrderBy.getMaxRows());
+            BatchOpIterator in = BatchOpIterator.of(child);
+            TupleBatch batch;
+            while ((batch = in.nextBatch()) != null) {
+                for (int i = 0; i < batch.numRows(); i++)
+                    sort.add(batch.getTuple(batch.row(i)));
+            }
+            sort.finish();
+            child.close();
+        }
+
+        /** @return the next tuple, or null at the end */
+        Tuple next() throws DbException, TransactionAbortedException {
+            if (sort != null)
+                return sort.next();
+            return child.hasNext() ? child.next() : null;
+        }
+
+        void rewind() throws DbException, TransactionAbortedException {
+            if (sort != null)
+                sort.rewind();
+            else
+                child.rewind();
+        }
+
+        void close() {
+            if (sort != null) {
+                sort.close();
+                sort = null;
+            }
+            child.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * SpillFile is a temporary heap file that an operator writes rows to when
+ * they do not fit in memory, and reads back later. Rows are appended a page
+ * at a time straight to the file and read back with {@link HeapFile#readPage},
+ * bypassing the buffer pool: the file is private to one operator, so it
+ * needs no locks and should not take buffer pool frames from the query's
+ * tables.
+ * <p>
+ * The file is registered in the catalog under a random name while it exists,
+ * since heap pages look up their schema there. {@link #delete()} removes it
+ * from the catalog and from disk.
+ */
+class SpillFile {
+
+    private final TupleDesc td;
+    private final HeapFile file;
+    private HeapPage current;
+    private int numPages = 0;
+    private int numTuples = 0;
+
+    /**
+     * Creates an empty spill file.
+     *
+     * @param td the schema of the rows to be spilled
+     * @throws DbException if the temporary file cannot be created
+     */
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            File f = File.createTempFile("spill", ".dat");
+            f.deleteOnExit();
+            this.file = new HeapFile(f, td);
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e.getMessage());
+        }
+        Database.getCatalog().addTable(file, "spill-" + UUID.randomUUID());
+    }
+
+    /** @return the schema of the rows of this file */
+    TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows added */
+    int numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * Returns the partition, out of n, of a row whose partitioning value has
+     * the given hash code. Operators that partition their input again at
+     * each level of recursion pass the level as depth, so that rows that
+     * shared a partition at one level are spread out at the next.
+     */
+    static int partition(int hash, int depth, int n) {
+        int h = (hash + depth) * 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (h >>> 1) % n;
+    }
+
+    /**
+     * Appends a copy of a row, which must have the types of this file's
+     * schema.
+     */
+    void add(Tuple t) throws DbException {
+        try {
+            if (current == null)
+                current = new HeapPage(new HeapPageId(file.getId(), numPages),
+                        HeapPage.createEmptyPageData());
+            Tuple copy = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++)
+                copy.setField(i, t.getField(i));
+            current.insertTuple(copy);
+            numTuples++;
+            if (current.getNumEmptySlots() == 0)
+                flush();
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+    }
+
+    /** Writes out the partially filled last page, if any. */
+    private void flush() throws IOException {
+        if (current == null)
+            return;
+        file.writePage(current);
+        numPages++;
+        current = null;
+    }
+
+    /**
+     * Returns an iterator over the rows added so far, in the order they were
+     * added. Rows must not be added while it is in use.
+     */
+    OpIterator scan() throws DbException {
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        return new Scan();
+    }
+
+    /** Removes this file from the catalog and deletes it. */
+    void delete() {
+        current = null;
+        Database.getCatalog().removeTable(file.getId());
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!file.getFile().delete())
+            file.getFile().deleteOnExit();
+    }
+
+    /** Reads the pages of the file back in order. */
+    private class Scan extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private int pageNo;
+        private Iterator<Tuple> tuples;
+
+        public void open() throws DbException, TransactionAbortedException {
+            super.open();
+            rewind();
+        }
+
+        public void rewind() {
+            pageNo = 0;
+            tuples = null;
+        }
+
+        protected Tuple fetchNext() throws DbException {
+            while (tuples == null || !tuples.hasNext()) {
+                if (pageNo >= numPages)
+                    return null;
+                Page page = file.readPage(new HeapPageId(file.getId(), pageNo++));
+                if (page == null)
+                    throw new DbException("cannot read spill file page " + (pageNo - 1));
+                tuples = ((HeapPage) page).iterator();
+            }
+            return tuples.next();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            super.close();
+            tuples = null;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+}
@@ -1,12 +1,10 @@
 package simpledb.execution;
 
-import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.*;
-import simpledb.transaction.TransactionAbortedException;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -16,11 +14,12 @@ public class StringAggregator implements Aggregator {
     private Type gbfieldtype;
     private Op what;
 
-    // Another implementation
-    private Map<Field, Tuple> tupMap;
+    // group numbers of the group-by values, and a running count per group;
+    // without grouping everything goes to group 0
+    private final GroupTable groups;
+    private final AggregateState state = new AggregateState();
 
     private static final long serialVersionUID = 1L;
-    private static final Field NO_GROUPING_STRING_FIELD = new IntField(Integer.MIN_VALUE);
 
     /**
      * Aggregate constructor
@@ -41,7 +40,7 @@ public class StringAggregator implements Aggregator {
         this.afield = afield;
         this.what = what;
 
-        this.tupMap = new HashMap<>();
+        this.groups = gbfield == NO_GROUPING ? null : new GroupTable(gbfieldtype);
     }
 
     /**
@@ -50,35 +49,49 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        TupleDesc td = this.getTupleDesc();
-
+        int g = 0;
         if (gbfield != NO_GROUPING) {
-            // insert tuple into corresponding list.
-            Field key = tup.getField(gbfield);
-            if (!tupMap.containsKey(key)) {
-                Tuple newTup = new Tuple(td);
-                newTup.setField(0, key);
-                newTup.setField(1, new IntField(0));
-                tupMap.put(key, newTup);
-            }
+            g = gbfieldtype == Type.INT_TYPE
+                    ? groups.findInt(tup.getInt(gbfield))
+                    : groups.find(tup.getField(gbfield));
+        }
+        state.addCount(g);
+    }
 
-            // Calculate aggregated(count) result
-            Tuple t = tupMap.get(key);
-            int newVal = ((IntField)t.getField(1)).getValue() + 1;
-            t.setField(1, new IntField(newVal));
+    /**
+     * Counts the selected rows of a batch straight from its columns.
+     */
+    @Override
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = batch.numRows();
+        if (gbfield == NO_GROUPING) {
+            for (int i = 0; i < n; i++)
+                state.addCount(0);
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            int[] keys = batch.ints(gbfield);
+            for (int i = 0; i < n; i++)
+                state.addCount(groups.findInt(keys[sel[i]]));
         } else {
-            Field key = NO_GROUPING_STRING_FIELD;
-            if (!tupMap.containsKey(key)) {
-                Tuple newTup = new Tuple(td);
-                newTup.setField(0, new IntField(0));
-                tupMap.put(key, newTup);
-            }
+            String[] keys = batch.strings(gbfield);
+            for (int i = 0; i < n; i++)
+                state.addCount(groups.findString(keys[sel[i]]));
+        }
+    }
 
-            // Calculate aggregated(count) result
-            Tuple t = tupMap.get(key);
-            int newVal = ((IntField)t.getField(0)).getValue() + 1;
-            t.setField(0, new IntField(newVal));
+    /**
+     * Merges the running state of each group of other into the group with
+     * the same key here.
+     */
+    @Override
+    public void merge(Aggregator other) {
+        StringAggregator o = (StringAggregator) other;
+        if (gbfield == NO_GROUPING) {
+            state.merge(0, o.state, 0);
+            return;
         }
+        for (int og = 0; og < o.groups.size(); og++)
+            state.merge(groups.find(o.groups, og), o.state, og);
     }
 
     /**
@@ -91,51 +104,21 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        // TupleDesc td = this.getTupleDesc();
-        // return new TupleIterator(td, tupMap.values());
-
-        return new OpIterator() {
-            private static final long serialVersionUID = 1L;
-
-            private int pos = 0;
-            private boolean isOpen = false;
-            private Tuple[] allTuples = tupMap.values().toArray(new Tuple[tupMap.size()]);
-
-            @Override
-            public void open() throws DbException, TransactionAbortedException {
-                isOpen = true;
-                pos = 0;
-            }
-
-            @Override
-            public boolean hasNext() throws DbException, TransactionAbortedException {
-                if (!isOpen)
-                    throw new IllegalStateException("OpIterator is not open");
-                return pos >= 0 && pos < allTuples.length;
-            }
-
-            @Override
-            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (!hasNext())
-                    throw new NoSuchElementException("Out of bound");
-                return allTuples[pos++];
-            }
-
-            @Override
-            public void rewind() throws DbException, TransactionAbortedException {
-                pos = 0;
-            }
-
-            @Override
-            public TupleDesc getTupleDesc() {
-                return getTupleDesc();
-            }
-
-            @Override
-            public void close() {
-                isOpen = false;
+        TupleDesc td = this.getTupleDesc();
+        List<Tuple> tuples = new ArrayList<>();
+        if (gbfield != NO_GROUPING) {
+            for (int g = 0; g < groups.size(); g++) {
+                Tuple t = new Tuple(td);
+                t.setField(0, groups.key(g));
+                t.setField(1, new IntField(state.result(g, what)));
+                tuples.add(t);
             }
-        };
+        } else if (state.count(0) > 0) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(state.result(0, what)));
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
     }
 
     // helper function to get tupledesc of this aggregator. It only support COUNT aggregator.
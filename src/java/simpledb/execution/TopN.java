@@ -0,0 +1,252 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n: it returns the
+ * first n tuples of its child in the order of one field, ties broken by
+ * input order as {@link OrderBy} does.
+ * <p>
+ * Rather than sorting the whole input it keeps the best n rows seen so far
+ * in a binary heap whose root is the worst of them. Each input row's key is
+ * compared with the root's straight from the child's batch, so a row that
+ * does not make the cut is never turned into a Tuple. This takes O(n)
+ * memory and O(rows log n) time.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int orderByField;
+    private final String orderByFieldName;
+    private final boolean asc;
+    private final int limit;
+    private final boolean intKey;
+
+    // the kept rows: a heap with the worst at index 0 while reading the
+    // child, then sorted into output order
+    private transient int size;
+    private transient Tuple[] rows;
+    private transient int[] intKeys;
+    private transient String[] stringKeys;
+    /** Input position of each kept row, to break ties. */
+    private transient long[] seqs;
+    /** Next row to return, once the heap has been sorted. */
+    private transient int pos;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.limit = limit;
+        this.intKey = td.getFieldType(orderbyField) == Type.INT_TYPE;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    /** @return the most tuples this operator returns */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        size = 0;
+        rows = new Tuple[limit];
+        seqs = new long[limit];
+        if (intKey)
+            intKeys = new int[limit];
+        else
+            stringKeys = new String[limit];
+
+        child.open();
+        BatchOpIterator in = BatchOpIterator.of(child);
+        TupleBatch batch;
+        long seq = 0;
+        while ((batch = in.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++, seq++) {
+                int r = batch.row(i);
+                if (intKey)
+                    offerInt(batch, r, batch.getInt(orderByField, r), seq);
+                else
+                    offerString(batch, r, batch.getString(orderByField, r), seq);
+            }
+        }
+        child.close();
+
+        sortHeap();
+        pos = 0;
+        super.open();
+    }
+
+    private void offerInt(TupleBatch batch, int r, int key, long seq) {
+        if (size < limit) {
+            intKeys[size] = key;
+            add(batch.getTuple(r), seq);
+        } else if (size > 0 && compare(key, intKeys[0]) < 0) {
+            // equal keys lose to the root, which came earlier
+            intKeys[0] = key;
+            replaceRoot(batch.getTuple(r), seq);
+        }
+    }
+
+    private void offerString(TupleBatch batch, int r, String key, long seq) {
+        if (size < limit) {
+            stringKeys[size] = key;
+            add(batch.getTuple(r), seq);
+        } else if (size > 0 && compare(key, stringKeys[0]) < 0) {
+            stringKeys[0] = key;
+            replaceRoot(batch.getTuple(r), seq);
+        }
+    }
+
+    private int compare(int a, int b) {
+        int c = Integer.compare(a, b);
+        return asc ? c : -c;
+    }
+
+    private int compare(String a, String b) {
+        int c = a.compareTo(b);
+        return asc ? c : -c;
+    }
+
+    /** @return true if the row at heap position i comes after the one at j */
+    private boolean after(int i, int j) {
+        int c = intKey ? compare(intKeys[i], intKeys[j]) : compare(stringKeys[i], stringKeys[j]);
+        return c > 0 || (c == 0 && seqs[i] > seqs[j]);
+    }
+
+    /** Adds a row whose key is already stored at position size. */
+    private void add(Tuple t, long seq) {
+        int i = size++;
+        rows[i] = t;
+        seqs[i] = seq;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!after(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    /** Replaces the root by a row whose key is already stored at position 0. */
+    private void replaceRoot(Tuple t, long seq) {
+        rows[0] = t;
+        seqs[0] = seq;
+        siftDown(0, size);
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int worst = i;
+            int l = 2 * i + 1, r = l + 1;
+            if (l < n && after(l, worst))
+                worst = l;
+            if (r < n && after(r, worst))
+                worst = r;
+            if (worst == i)
+                return;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = rows[i];
+        rows[i] = rows[j];
+        rows[j] = t;
+        long s = seqs[i];
+        seqs[i] = seqs[j];
+        seqs[j] = s;
+        if (intKey) {
+            int k = intKeys[i];
+            intKeys[i] = intKeys[j];
+            intKeys[j] = k;
+        } else {
+            String k = stringKeys[i];
+            stringKeys[i] = stringKeys[j];
+            stringKeys[j] = k;
+        }
+    }
+
+    /** Heap-sorts the kept rows in place into output order. */
+    private void sortHeap() {
+        for (int n = size - 1; n > 0; n--) {
+            swap(0, n);
+            siftDown(0, n);
+        }
+    }
+
+    public void close() {
+        super.close();
+        rows = null;
+        intKeys = null;
+        stringKeys = null;
+        seqs = null;
+    }
+
+    public void rewind() {
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the kept tuples in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() {
+        if (rows != null && pos < size)
+            return rows[pos++];
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
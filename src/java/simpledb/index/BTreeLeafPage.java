@@ -7,9 +7,11 @@ import simpledb.common.Debug;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -27,6 +29,12 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	/**
+	 * The bytes this page was read from, kept until the before image is
+	 * taken from them so that pages that are never modified never copy it.
+	 */
+	private ByteBuffer source;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -66,9 +74,23 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage from a buffer holding the page's bytes, such as
+	 * a slice of a memory-mapped file, without copying it into an array. The
+	 * page keeps a reference to data until it is first modified, so its
+	 * contents must not change before then except through writes of this
+	 * page.
+	 *
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 * @see PageFileChannel#mappedSlice
+	 */
+	public BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data.duplicate()));
 
 		// Read the parent and sibling pointers
 		try {
@@ -107,7 +129,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		source = data;
 	}
 
 	/** 
@@ -138,6 +160,7 @@ public class BTreeLeafPage extends BTreePage {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
+				takeBeforeImage();
 				oldDataRef = oldData;
 			}
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
@@ -153,7 +176,32 @@ public class BTreeLeafPage extends BTreePage {
 		synchronized(oldDataLock)
 		{
 			oldData = getPageData().clone();
+			source = null;
+		}
+	}
+
+	/**
+	 * Copies the bytes this page was read from into oldData, if that has not
+	 * been done yet. Callers must hold oldDataLock.
+	 */
+	private void takeBeforeImage() {
+		if (source == null)
+			return;
+		ByteBuffer src = source.duplicate();
+		oldData = new byte[src.remaining()];
+		src.get(oldData);
+		source = null;
+	}
+
+	@Override
+	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty) {
+			// the page is about to differ from disk; snapshot it first
+			synchronized (oldDataLock) {
+				takeBeforeImage();
+			}
 		}
+		super.markDirty(dirty, tid);
 	}
 
 	/**
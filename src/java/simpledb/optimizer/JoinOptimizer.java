@@ -3,6 +3,8 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -19,6 +21,21 @@ public class JoinOptimizer {
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
+    /**
+     * Equi-joins reading at least this many tuples in all are worth
+     * spreading over several threads.
+     */
+    static final int PARALLEL_JOIN_MIN_ROWS = 100000;
+
+    /**
+     * Fraction of the inner input a range predicate is assumed to match
+     * for each outer tuple.
+     */
+    static final double RANGE_MATCH_FRACTION = 0.3;
+
+    /** Fan-out assumed for B+ tree internal pages when costing index probes. */
+    static final int INDEX_FANOUT = 200;
+
     /**
      * Constructor
      * 
@@ -73,7 +90,21 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (!(lj instanceof LogicalSubplanJoinNode) && IndexNestedLoopJoin.canProbe(p, plan2)
+                && (lj.algorithm == LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP
+                    || (lj.algorithm == LogicalJoinNode.Algorithm.DEFAULT && lj.p == Predicate.Op.EQUALS))) {
+            // the inner table has a B+ tree on the join field: look each
+            // outer tuple up in it instead of reading the whole table. A
+            // range probe can read much of the tree, so it is only used
+            // where the optimizer found it cheapest
+            j = new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+        } else if (lj.algorithm == LogicalJoinNode.Algorithm.SORT_MERGE
+                && SortMergeJoin.supports(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.algorithm == LogicalJoinNode.Algorithm.PARALLEL_HASH
+                && lj.p == Predicate.Op.EQUALS) {
+            j = new ParallelHashJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -121,6 +152,20 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, 0);
+    }
+
+    /**
+     * Estimate the cost of a join as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)} does, where the inner input may be read
+     * through an index.
+     *
+     * @param innerIndexPages
+     *            the number of pages of the inner table if it is a B+ tree
+     *            on the join field that the join can probe, or 0
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, int innerIndexPages) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -137,8 +182,138 @@ public class JoinOptimizer {
                 card1 - ntup(t1)
                 card2 - ntup(t2)
             */
-            return cost1 + card1 * cost2 /* IO cost */ + card1 * card2 /* CPU cost */;
+            switch (chooseJoinAlgorithm(j, card1, card2, cost1, cost2, innerIndexPages)) {
+            case SORT_MERGE:
+                return estimateSortMergeCost(j, card1, card2, cost1, cost2);
+            case INDEX_NESTED_LOOP:
+                return estimateIndexJoinCost(j, card1, card2, cost1, cost2, innerIndexPages);
+            default:
+                return cost1 + card1 * cost2 /* IO cost */ + card1 * card2 /* CPU cost */;
+            }
+        }
+    }
+
+    /**
+     * Choose how to carry out a join, given the same estimates as
+     * {@link #estimateJoinCost}.
+     * <p>
+     * A sort-merge join is chosen for a range predicate whenever it is
+     * cheaper than nested loops, since it spends no comparisons on pairs
+     * that do not match, as long as the inner input fits in the
+     * {@link OrderBy#getMaxRows()} rows the join holds in memory; a larger
+     * one would be reread for every outer tuple. For an equality predicate it is chosen when both
+     * inputs are larger than a hash join can hold in memory: the hash join
+     * would then write and reread both sides, while sorting reads an input
+     * that is already in key order only once. Otherwise a large equality
+     * join whose left input fits in memory is a parallel hash join, if more
+     * than one thread is allowed.
+     */
+    public static LogicalJoinNode.Algorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        if (j instanceof LogicalSubplanJoinNode || !SortMergeJoin.supports(j.p))
+            return LogicalJoinNode.Algorithm.DEFAULT;
+        if (j.p == Predicate.Op.EQUALS) {
+            int budget = HashEquiJoin.getMaxBuildRows();
+            if (card1 > budget && card2 > budget)
+                return LogicalJoinNode.Algorithm.SORT_MERGE;
+            if (card1 <= budget && (long) card1 + card2 >= PARALLEL_JOIN_MIN_ROWS
+                    && ParallelHashJoin.getParallelism() > 1)
+                return LogicalJoinNode.Algorithm.PARALLEL_HASH;
+            return LogicalJoinNode.Algorithm.DEFAULT;
+        }
+        if (card2 > OrderBy.getMaxRows())
+            return LogicalJoinNode.Algorithm.DEFAULT;
+        double nestedLoop = cost1 + card1 * cost2 + (double) card1 * card2;
+        return estimateSortMergeCost(j, card1, card2, cost1, cost2) < nestedLoop
+                ? LogicalJoinNode.Algorithm.SORT_MERGE : LogicalJoinNode.Algorithm.DEFAULT;
+    }
+
+    /**
+     * Choose how to carry out a join whose inner input may be read through
+     * an index. An index nested-loop join is chosen when it is estimated to
+     * be cheaper than the join {@link #chooseJoinAlgorithm(LogicalJoinNode,
+     * int, int, double, double)} picks otherwise.
+     *
+     * @param innerIndexPages
+     *            the number of pages of the inner table if it is a B+ tree
+     *            on the join field that the join can probe, or 0
+     */
+    public static LogicalJoinNode.Algorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, int innerIndexPages) {
+        LogicalJoinNode.Algorithm algorithm = chooseJoinAlgorithm(j, card1, card2, cost1, cost2);
+        if (innerIndexPages <= 0 || j instanceof LogicalSubplanJoinNode || !SortMergeJoin.supports(j.p))
+            return algorithm;
+        double cost = algorithm == LogicalJoinNode.Algorithm.SORT_MERGE
+                ? estimateSortMergeCost(j, card1, card2, cost1, cost2)
+                : cost1 + card1 * cost2 + (double) card1 * card2;
+        return estimateIndexJoinCost(j, card1, card2, cost1, cost2, innerIndexPages) < cost
+                ? LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP : algorithm;
+    }
+
+    /**
+     * Estimate the cost of an index nested-loop join into an inner B+ tree
+     * of pages2 pages: scanning the outer input, and for each outer tuple a
+     * descent of the tree, a read of the leaf pages holding its matches,
+     * and the matches themselves. An equality probe is assumed to match one
+     * tuple.
+     */
+    private static double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, int pages2) {
+        double pageCost = cost2 / pages2;
+        double height = Math.ceil(Math.log(Math.max(pages2, 2)) / Math.log(INDEX_FANOUT));
+        double matches = j.p == Predicate.Op.EQUALS ? 1 : RANGE_MATCH_FRACTION * card2;
+        double leafPages = Math.ceil(matches / Math.max(card2, 1) * pages2);
+        return cost1 + card1 * (pageCost * (height + leafPages) + matches);
+    }
+
+    /**
+     * @return the number of pages of j's inner table if it is an unfiltered
+     *         B+ tree keyed on the join field, so that an
+     *         {@link IndexNestedLoopJoin} could probe it, or 0 otherwise
+     */
+    private int innerIndexPages(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null || p.hasFilter(j.t2Alias))
+            return 0;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return 0;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return 0;
+        try {
+            if (f.getTupleDesc().fieldNameToIndex(j.f2PureName) != ((BTreeFile) f).keyField())
+                return 0;
+        } catch (NoSuchElementException e) {
+            return 0;
         }
+        return Math.max(((BTreeFile) f).numPages(), 1);
+    }
+
+    /**
+     * Estimate the cost of a sort-merge join: scanning and sorting both
+     * inputs, one pass to merge them, and, for a range predicate, the
+     * matching pairs it returns.
+     */
+    private static double estimateSortMergeCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        double cost = cost1 + cost2 + estimateSortCost(card1, cost1)
+                + estimateSortCost(card2, cost2) + card1 + card2;
+        if (j.p != Predicate.Op.EQUALS)
+            cost += RANGE_MATCH_FRACTION * card1 * card2;
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of sorting card tuples whose scan costs scanCost:
+     * the comparisons, plus writing the runs out and reading them back if
+     * the input does not fit in memory. Runs are merged 64 at a time, so a
+     * single merge pass is assumed.
+     */
+    private static double estimateSortCost(int card, double scanCost) {
+        double cost = card * Math.log(Math.max(card, 2)) / Math.log(2);
+        if (card > OrderBy.getMaxRows())
+            cost += 2 * scanCost;
+        return cost;
     }
 
     /**
@@ -263,6 +438,8 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+        if (joins.isEmpty())
+            return joins;
         PlanCache optJoin = new PlanCache();
         Set<LogicalJoinNode> nodes = new HashSet<LogicalJoinNode>(joins);
 
@@ -349,6 +526,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a base table rather than the joins of prevBest
+        boolean t1Base = true, t2Base = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new ArrayList<>();
@@ -383,6 +562,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t1card = bestCard;
+                t1Base = false;
                 leftPkey = hasPkey(prevBest);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
@@ -399,6 +579,7 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t2card = bestCard;
+                t2Base = false;
                 rightPkey = hasPkey(prevBest);
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
@@ -413,10 +594,14 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        // only a base table can be probed through its index
+        int pages2 = t2Base ? innerIndexPages(j) : 0;
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, pages2);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        int pages1 = t1Base ? innerIndexPages(j2) : 0;
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, pages1);
+        LogicalJoinNode.Algorithm algorithm;
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -424,9 +609,16 @@ public class JoinOptimizer {
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            algorithm = chooseJoinAlgorithm(j, t2card, t1card, t2cost, t1cost, pages1);
+        } else {
+            algorithm = chooseJoinAlgorithm(j, t1card, t2card, t1cost, t2cost, pages2);
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        // remember the algorithm the cost was for, on a copy since the same
+        // node is costed in many subplans
+        if (algorithm != LogicalJoinNode.Algorithm.DEFAULT)
+            j = j.withAlgorithm(algorithm);
 
         CostCard cc = new CostCard();
 
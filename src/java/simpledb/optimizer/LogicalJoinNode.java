@@ -25,6 +25,21 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The ways a join can be carried out, as chosen by the optimizer. */
+    public enum Algorithm {
+        /** Chosen by predicate when the join is instantiated */
+        DEFAULT,
+        /** A SortMergeJoin */
+        SORT_MERGE,
+        /** A ParallelHashJoin */
+        PARALLEL_HASH,
+        /** An IndexNestedLoopJoin into the inner table's B+ tree */
+        INDEX_NESTED_LOOP
+    }
+
+    /** How the optimizer chose to carry out this join */
+    public Algorithm algorithm = Algorithm.DEFAULT;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +78,20 @@ public class LogicalJoinNode {
 
         return new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
     }
+
+    /** Return a copy of this node to be carried out with the given algorithm */
+    public LogicalJoinNode withAlgorithm(Algorithm algorithm) {
+        LogicalJoinNode j = new LogicalJoinNode();
+        j.t1Alias = t1Alias;
+        j.t2Alias = t2Alias;
+        j.f1PureName = f1PureName;
+        j.f2PureName = f2PureName;
+        j.p = p;
+        j.f1QuantifiedName = f1QuantifiedName;
+        j.f2QuantifiedName = f2QuantifiedName;
+        j.algorithm = algorithm;
+        return j;
+    }
     
     @Override public boolean equals(Object o) {
         if (!(o instanceof LogicalJoinNode)) return false;
@@ -38,7 +38,14 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
     private String query;
+
+    /**
+     * Heap files with at least this many pages are scanned in parallel,
+     * when {@link Exchange#getParallelism()} allows more than one thread.
+     */
+    static final int PARALLEL_SCAN_MIN_PAGES = 256;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -108,6 +115,15 @@ public class LogicalPlan {
         filters.add(lf);
     }
 
+    /** @return true if a filter has been added on the table with the given alias */
+    boolean hasFilter(String alias) {
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                return true;
+        }
+        return false;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -219,6 +235,21 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Limit the query to the first n tuples of its ORDER BY order.
+        @param n the number of tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = n;
+    }
+
+    /** @return the LIMIT of the query, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +305,29 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Estimate the number of groups of the GROUP BY field from the statistics of its
+     *  base table and the selectivity of the filters on it.  Joins are ignored.
+     *  @return the estimated number of groups, or 0 if there are no statistics for
+     *    the table
+     */
+    private int estimateGroups(Map<String,TableStats> statsMap, Map<String,Double> filterSelectivities) {
+        String alias = groupByField.split("[.]")[0];
+        String pureField = groupByField.split("[.]")[1];
+        Integer tableId = getTableId(alias);
+        if (tableId == null)
+            return 0;
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(pureField);
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+        return s.estimateDistinctValues(field, filterSelectivities.getOrDefault(alias, 1.0));
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,6 +346,7 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,List<Predicate>> filterPredicates = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -336,6 +391,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterPredicates.computeIfAbsent(lf.tableAlias, a -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -344,6 +400,23 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // large tables are scanned by several threads, each applying the
+        // table's filters to the pages it reads
+        if (Exchange.getParallelism() > 1) {
+            for (LogicalScanNode table : tables) {
+                DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+                if (!(f instanceof HeapFile) || ((HeapFile) f).numPages() < PARALLEL_SCAN_MIN_PAGES)
+                    continue;
+                List<Predicate> preds = filterPredicates.getOrDefault(table.alias, Collections.emptyList());
+                subplanMap.put(table.alias, new ParallelScan(t, table.t, table.alias, scan -> {
+                    OpIterator plan = scan;
+                    for (Predicate p : preds)
+                        plan = new Filter(p, plan);
+                    return plan;
+                }));
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -468,10 +541,18 @@ public class LogicalPlan {
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
+            if (groupByField != null)
+                aggNode.setEstimatedCardinality(estimateGroups(statsMap, filterSelectivities));
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (limit >= 0 && !hasOrderBy) {
+            throw new ParsingException("LIMIT without ORDER BY is not supported");
+        }
+        if (hasOrderBy && limit >= 0) {
+            // only the first rows are needed: keep a bounded heap, not a full sort
+            node = new TopN(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, limit, node);
+        } else if (hasOrderBy) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
@@ -12,12 +12,16 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String SORT_MERGE_JOIN = "⨝(merge)";
+    static final String PARALLEL_HASH_JOIN = "⨝(parallel hash)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String EXCHANGE = "exchange";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -29,7 +33,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof IndexNestedLoopJoin
+                || o instanceof SortMergeJoin || o instanceof ParallelHashJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -58,6 +63,38 @@ public class QueryPlanVisualizer {
 
     }
 
+    /** Fills in thisNode as a join of the two children, labelled with symbol. */
+    private void buildJoinTree(SubTreeDescriptor thisNode, String symbol, JoinPredicate jp,
+                               TupleDesc td, int card, OpIterator[] children, int queryPlanDepth,
+                               int currentDepth, int adjustDepth, int currentStartPosition,
+                               int parentUpperBarStartShift) {
+        String field1 = td.getFieldName(jp.getField1());
+        String field2 = td.getFieldName(jp.getField2()
+                + children[0].getTupleDesc().numFields());
+        thisNode.text = String.format("%1$s(%2$s),card:%3$d", symbol,
+                field1 + jp.getOperator() + field2, card);
+        int upBarShift = parentUpperBarStartShift;
+        if (symbol.length() / 2 > parentUpperBarStartShift)
+            upBarShift = symbol.length() / 2;
+
+        SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                currentDepth + adjustDepth + 3, children[0],
+                currentStartPosition, upBarShift);
+        SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                currentDepth + adjustDepth + 3, children[1],
+                currentStartPosition + left.width + SPACE.length(), 0);
+        thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+        thisNode.textStartPosition = thisNode.upBarPosition
+                - symbol.length() / 2;
+        thisNode.width = Math.max(
+                left.width + right.width + SPACE.length(),
+                thisNode.textStartPosition + thisNode.text.length()
+                        - currentStartPosition);
+        thisNode.leftChild = left;
+        thisNode.rightChild = right;
+        thisNode.height = currentDepth;
+    }
+
     private SubTreeDescriptor buildTree(int queryPlanDepth, int currentDepth,
                                         OpIterator queryPlan, int currentStartPosition,
                                         int parentUpperBarStartShift) {
@@ -111,61 +148,34 @@ public class QueryPlanVisualizer {
 
             if (plan instanceof Join) {
                 Join j = (Join) plan;
-                TupleDesc td = j.getTupleDesc();
-                JoinPredicate jp = j.getJoinPredicate();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
-                int upBarShift = parentUpperBarStartShift;
-                if (JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = JOIN.length() / 2;
-
-                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
-                        currentDepth + adjustDepth + 3, children[0],
-                        currentStartPosition, upBarShift);
-                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
-                        currentDepth + adjustDepth + 3, children[1],
-                        currentStartPosition + left.width + SPACE.length(), 0);
-                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-                thisNode.textStartPosition = thisNode.upBarPosition
-                        - JOIN.length() / 2;
-                thisNode.width = Math.max(
-                        left.width + right.width + SPACE.length(),
-                        thisNode.textStartPosition + thisNode.text.length()
-                                - currentStartPosition);
-                thisNode.leftChild = left;
-                thisNode.rightChild = right;
-                thisNode.height = currentDepth;
+                buildJoinTree(thisNode, JOIN, j.getJoinPredicate(), j.getTupleDesc(),
+                        j.getEstimatedCardinality(), children, queryPlanDepth,
+                        currentDepth, adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
             } else if (plan instanceof HashEquiJoin) {
                 HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
-                int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
-                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[0],
-                        currentStartPosition, upBarShift);
-                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[1],
-                        currentStartPosition + left.width + SPACE.length(), 0);
-                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-                thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
-                thisNode.width = Math.max(
-                        left.width + right.width + SPACE.length(),
-                        thisNode.textStartPosition + thisNode.text.length()
-                                - currentStartPosition);
-                thisNode.leftChild = left;
-                thisNode.rightChild = right;
-                thisNode.height = currentDepth;
+                buildJoinTree(thisNode, HASH_JOIN, j.getJoinPredicate(), j.getTupleDesc(),
+                        j.getEstimatedCardinality(), children, queryPlanDepth,
+                        currentDepth, adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
+            } else if (plan instanceof IndexNestedLoopJoin) {
+                IndexNestedLoopJoin j = (IndexNestedLoopJoin) plan;
+                buildJoinTree(thisNode, INDEX_JOIN, j.getJoinPredicate(), j.getTupleDesc(),
+                        j.getEstimatedCardinality(), children, queryPlanDepth,
+                        currentDepth, adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
+            } else if (plan instanceof SortMergeJoin) {
+                SortMergeJoin j = (SortMergeJoin) plan;
+                buildJoinTree(thisNode, SORT_MERGE_JOIN, j.getJoinPredicate(), j.getTupleDesc(),
+                        j.getEstimatedCardinality(), children, queryPlanDepth,
+                        currentDepth, adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
+            } else if (plan instanceof ParallelHashJoin) {
+                ParallelHashJoin j = (ParallelHashJoin) plan;
+                buildJoinTree(thisNode, PARALLEL_HASH_JOIN, j.getJoinPredicate(), j.getTupleDesc(),
+                        j.getEstimatedCardinality(), children, queryPlanDepth,
+                        currentDepth, adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
             }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
@@ -240,6 +250,27 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN) {
+                TopN o = (TopN) plan;
+                thisNode.text = String.format(
+                        "%1$s(%2$s),limit:%3$d,card:%4$d",
+                        ORDERBY,
+                        children[0].getTupleDesc().getFieldName(
+                                o.getOrderByField()),o.getLimit(),o.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (ORDERBY.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = ORDERBY.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - ORDERBY.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 StringBuilder fields = new StringBuilder();
@@ -263,6 +294,26 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof Exchange) {
+                // the instances are alike: draw the first
+                Exchange e = (Exchange) plan;
+                thisNode.text = String.format("%1$s(x%2$d),card:%3$d", EXCHANGE,
+                        e.numInstances(), e.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (EXCHANGE.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = EXCHANGE.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - EXCHANGE.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            }
             else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
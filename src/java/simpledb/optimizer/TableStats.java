@@ -3,7 +3,6 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
-import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
@@ -72,8 +71,9 @@ public class TableStats {
     private int tableId;
     private int ioCostPerPage;
     private int nTups;
-    // Or use DbFile.iterator instead
-    private SeqScan scan;
+    private HeapFile file;
+    // statistics scans read through a private ring so they do not flush the pool
+    private DbFileIterator scan;
     // Or use Map<Integer, Field> to store min & max values
     private Tuple min, max;
 
@@ -98,7 +98,8 @@ public class TableStats {
         // some code goes here
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        this.scan = new SeqScan(new TransactionId(), this.tableId);
+        this.file = (HeapFile) Database.getCatalog().getDatabaseFile(this.tableId);
+        this.scan = file.scanResistantIterator(new TransactionId());
 
         try {
             scan.open();
@@ -112,7 +113,7 @@ public class TableStats {
                     continue;
                 }
 
-                for(int i = 0; i < scan.getTupleDesc().numFields(); i++) {
+                for(int i = 0; i < file.getTupleDesc().numFields(); i++) {
                     Field field = tup.getField(i);
                     Field minField = min.getField(i);
                     Field maxField = max.getField(i);
@@ -145,7 +146,7 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return ioCostPerPage * scan.numPages();
+        return ioCostPerPage * file.numPages();
     }
 
     /**
@@ -162,6 +163,27 @@ public class TableStats {
         return (int) (this.totalTuples() * selectivityFactor);
     }
 
+    /**
+     * Estimates the number of distinct values of a field among the tuples
+     * that pass predicates with selectivity selectivityFactor. For integer
+     * fields this is bounded by the range between the minimum and maximum
+     * values; otherwise every tuple is assumed to be distinct.
+     *
+     * @param field
+     *            the index of the field
+     * @param selectivityFactor
+     *            The selectivity of any predicates over the table
+     * @return the estimated number of distinct values of field
+     */
+    public int estimateDistinctValues(int field, double selectivityFactor) {
+        int card = estimateTableCardinality(selectivityFactor);
+        if (this.min == null || file.getTupleDesc().getFieldType(field) != Type.INT_TYPE)
+            return card;
+        long range = (long) ((IntField) this.max.getField(field)).getValue()
+                - ((IntField) this.min.getField(field)).getValue() + 1;
+        return (int) Math.min(card, range);
+    }
+
     /**
      * The average selectivity of the field under op.
      * @param field
@@ -196,7 +218,7 @@ public class TableStats {
             throw new RuntimeException("Missing db iterator");
         }
 
-        TupleDesc tupDesc = this.scan.getTupleDesc();
+        TupleDesc tupDesc = this.file.getTupleDesc();
 
         try {
             scan.rewind();
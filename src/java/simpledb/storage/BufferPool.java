@@ -4,14 +4,15 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import javax.xml.crypto.Data;
 import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -21,17 +22,74 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a concurrent map, so hits never block. Misses are
+ * serialized per lock stripe (chosen by PageId hash) so that two sessions
+ * missing on the same page read it from disk only once, while misses on
+ * unrelated pages read in parallel; pages are only added to and removed
+ * from the table under the pool monitor. Which page to evict is delegated
+ * to a {@link ReplacementPolicy}.
+ * <p>
+ * Transactions are isolated by strict two-phase locking of pages through a
+ * {@link LockManager}: getPage takes a shared or exclusive lock according
+ * to the requested permissions, and locks are only released when the
+ * transaction completes.
+ * <p>
+ * The pool runs in FORCE/STEAL mode. A transaction's dirty pages are
+ * written out when it commits. Eviction only picks clean pages, but once
+ * more than {@link #getCleanerThreshold()} of the pool is dirty, a
+ * {@link PageCleaner} writes dirty pages out in the background, including
+ * those of transactions that have not committed. It skips transactions in
+ * the middle of inserting or deleting a tuple, and logs each page before
+ * writing it. The pool keeps the before image of every page stolen this
+ * way; it is logged as the page's before image from then on, and written
+ * back if the transaction aborts. Pages that were never stolen are simply
+ * thrown away on abort. When no page is clean, eviction waits for the
+ * cleaner, and fails if it cannot help in time.
  * 
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    private Map<PageId, Page> buffer;
-    private int numPages;
+    private final ConcurrentMap<PageId, Page> buffer;
+    private final Object[] loadLocks;
+    private final ReplacementPolicy policy;
+    private final int numPages;
+    private final LockManager lockManager = new LockManager();
+    private final PageCleaner cleaner = new PageCleaner(this);
+
+    // the pages the cleaner is writing, and the transactions that dirtied
+    // them; guarded by this
+    private final Map<PageId, TransactionId> writing = new HashMap<>();
+    // the before images of the pages the cleaner wrote for transactions
+    // that have not completed; guarded by this
+    private final Map<TransactionId, Map<PageId, Page>> stolen = new HashMap<>();
+    // the number of insertTuple and deleteTuple calls each transaction is
+    // in, except while it waits for the cleaner; guarded by pins
+    private final Map<TransactionId, Integer> pins = new HashMap<>();
+
+    /** Number of lock stripes used to serialize page loads. */
+    private static final int LOAD_LOCK_STRIPES = 64;
+
+    /**
+     * Scans over tables larger than this fraction of the pool read through a
+     * private {@link BufferRing} rather than the shared page table.
+     */
+    private static final double SCAN_RING_FRACTION = 0.75;
+
+    /** How long eviction waits for the cleaner to free a page, in ms. */
+    private static final long EVICT_WAIT_MS = 1000;
 
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
+
+    /** Default number of threads the page cleaner writes on; 0 turns it off. */
+    public static final int DEFAULT_CLEANER_THREADS = 2;
+    /** Default fraction of the pool that may be dirty before the cleaner runs. */
+    public static final double DEFAULT_CLEANER_THRESHOLD = 0.5;
+    private static int cleanerThreads = DEFAULT_CLEANER_THREADS;
+    private static double cleanerThreshold = DEFAULT_CLEANER_THRESHOLD;
     
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
@@ -44,11 +102,30 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        // some code goes here
-        this.buffer = new HashMap<>();
+        this(numPages, new ClockReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy used to pick eviction victims
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this.buffer = new ConcurrentHashMap<>(numPages);
         this.numPages = numPages;
+        this.policy = policy;
+        this.loadLocks = new Object[LOAD_LOCK_STRIPES];
+        for (int i = 0; i < loadLocks.length; i++)
+            loadLocks[i] = new Object();
     }
     
+    /** @return the maximum number of pages this buffer pool caches */
+    public int getNumPages() {
+        return numPages;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -63,6 +140,38 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Sets the number of threads the page cleaner writes pages on; 0 turns
+     * the cleaner off, so that dirty pages are only written at commit.
+     */
+    public static void setCleanerThreads(int threads) {
+        BufferPool.cleanerThreads = Math.max(threads, 0);
+    }
+
+    /** @return the number of threads the page cleaner writes pages on */
+    public static int getCleanerThreads() {
+        return cleanerThreads;
+    }
+
+    /**
+     * Sets the fraction of the pool that may be dirty before eviction asks
+     * the cleaner to write dirty pages out.
+     */
+    public static void setCleanerThreshold(double fraction) {
+        BufferPool.cleanerThreshold = Math.min(Math.max(fraction, 0), 1);
+    }
+
+    /** @return the fraction of the pool that may be dirty before the cleaner runs */
+    public static double getCleanerThreshold() {
+        return cleanerThreshold;
+    }
+
+    /** Restores the default page cleaner settings; used by tests. */
+    public static void resetCleaner() {
+        BufferPool.cleanerThreads = DEFAULT_CLEANER_THREADS;
+        BufferPool.cleanerThreshold = DEFAULT_CLEANER_THRESHOLD;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -81,21 +190,108 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        if (buffer.containsKey(pid))
-            return buffer.get(pid);
+        lockManager.acquire(tid, pid, perm);
 
-        if (buffer.size() == numPages) {
-            this.evictPage();
+        Page page = buffer.get(pid);
+        if (page != null) {
+            policy.pageAccessed(pid);
+            return page;
         }
 
-        // add page to buffer
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page =dbFile.readPage(pid);
-        buffer.put(pid, page);
+        synchronized (loadLockFor(pid)) {
+            page = buffer.get(pid);
+            if (page != null) {
+                policy.pageAccessed(pid);
+                return page;
+            }
+
+            // read the page outside the pool monitor, then make room and
+            // add it to the buffer under it
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            page = dbFile.readPage(pid);
+            cachePage(tid, page);
+        }
 
         return page;
     }
 
+    /**
+     * Retrieve the specified page on behalf of a large sequential scan.
+     * <p>
+     * Pages already resident in the shared pool are returned from it as
+     * usual. Other pages are read into the scan's private ring rather than
+     * into the shared page table, so the scan does not evict anyone else's
+     * working set. A ring read still needs the pool to hold one page it
+     * could evict, and fails like eviction does when every frame is dirty.
+     * A null ring, or READ_WRITE permission, falls back to
+     * {@link #getPage(TransactionId, PageId, Permissions)}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's private ring, or null
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        if (ring == null || perm == Permissions.READ_WRITE)
+            return getPage(tid, pid, perm);
+
+        lockManager.acquire(tid, pid, perm);
+        // the shared copy may be newer than disk, so it always wins
+        Page page = buffer.get(pid);
+        if (page != null)
+            return page;
+
+        page = ring.get(pid);
+        if (page == null) {
+            reserveRingFrame(tid);
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            page = dbFile.readPage(pid);
+            ring.add(page);
+        }
+        return page;
+    }
+
+    /**
+     * Returns a ring for a sequential scan over numPages pages, or null if
+     * the scan is small enough to go through the shared pool.
+     *
+     * @param numPages the number of pages the scan will read
+     */
+    public BufferRing scanRing(int numPages) {
+        if (numPages > this.numPages * SCAN_RING_FRACTION)
+            return new BufferRing(Math.min(BufferRing.DEFAULT_SIZE, Math.max(this.numPages / 4, 1)));
+        return null;
+    }
+
+    /** Returns the lock stripe that serializes loads of the given page. */
+    private Object loadLockFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return loadLocks[(h & 0x7fffffff) % loadLocks.length];
+    }
+
+    /**
+     * Installs a page in the page table, replacing any cached version, and
+     * tells the replacement policy about it. A page that is not cached yet
+     * first evicts another if the pool is full. This is done under the pool
+     * monitor, like discardPage and evictPage, so the pool never holds more
+     * than numPages pages and the policy knows exactly the cached pages.
+     *
+     * @param tid the transaction the page is cached for
+     */
+    private synchronized void cachePage(TransactionId tid, Page page) throws DbException {
+        PageId pid = page.getId();
+        if (!buffer.containsKey(pid) && buffer.size() >= numPages) {
+            this.evictPage(tid);
+        }
+        if (buffer.put(pid, page) == null) {
+            policy.pageLoaded(pid);
+        } else {
+            policy.pageAccessed(pid);
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -108,6 +304,7 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -118,13 +315,14 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -137,6 +335,63 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        try {
+            if (commit) {
+                flushPages(tid);
+            } else {
+                revertPages(tid);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    /**
+     * Throws away the pages tid dirtied, so that they are read back from
+     * disk as the last committed transaction left them. The pages tid
+     * dirtied are all among those it has locked. Those the cleaner wrote
+     * out get their before images written back first.
+     */
+    private synchronized void revertPages(TransactionId tid) throws IOException {
+        for (PageId pid : lockManager.lockedPages(tid)) {
+            Page page = buffer.get(pid);
+            if (page != null && tid.equals(page.isDirty()))
+                discardPage(pid);
+        }
+        Map<PageId, Page> before = stolen.remove(tid);
+        if (before != null) {
+            for (Page page : before.values()) {
+                discardPage(page.getId());
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                Database.getLogFile().pageWritten(page.getId());
+            }
+        }
+    }
+
+    /**
+     * @return the page as it was before tid changed it: the image the
+     *         cleaner saved if it wrote the page out, since the page may
+     *         have been read back from disk since
+     */
+    private Page beforeImage(TransactionId tid, Page page) {
+        Map<PageId, Page> before = stolen.get(tid);
+        Page image = before == null ? null : before.get(page.getId());
+        return image != null ? image : page.getBeforeImage();
+    }
+
+    /** Marks tid as changing pages, so that the cleaner leaves its pages alone. */
+    private void pin(TransactionId tid) {
+        synchronized (pins) {
+            pins.merge(tid, 1, Integer::sum);
+        }
+    }
+
+    private void unpin(TransactionId tid) {
+        synchronized (pins) {
+            pins.computeIfPresent(tid, (t, n) -> n == 1 ? null : n - 1);
+        }
     }
 
     /**
@@ -159,13 +414,23 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> dirtyPages = file.insertTuple(tid, t);
-        for(Page pg: dirtyPages) {
-            // mark dirty
-            pg.markDirty(true, tid);
-            // insert or update in the buffer
-            buffer.put(pg.getId(), pg);
+        boolean dirtied = false;
+        pin(tid);
+        try {
+            List<Page> dirtyPages = file.insertTuple(tid, t);
+            for(Page pg: dirtyPages) {
+                dirtied |= pg.isDirty() == null;
+                // mark dirty
+                pg.markDirty(true, tid);
+                // insert or update in the buffer
+                cachePage(tid, pg);
+            }
+        } finally {
+            unpin(tid);
         }
+        // the cleaner may take tid's pages now that it is done with them
+        if (dirtied)
+            wakeCleaner();
     }
 
     /**
@@ -187,13 +452,23 @@ public class BufferPool {
         // not necessary for lab1
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> dirtyPages = file.deleteTuple(tid, t);
-        for(Page pg: dirtyPages) {
-            // mark dirty
-            pg.markDirty(true, tid);
-            // insert or update in the buffer
-            buffer.put(pg.getId(), pg);
+        boolean dirtied = false;
+        pin(tid);
+        try {
+            List<Page> dirtyPages = file.deleteTuple(tid, t);
+            for(Page pg: dirtyPages) {
+                dirtied |= pg.isDirty() == null;
+                // mark dirty
+                pg.markDirty(true, tid);
+                // insert or update in the buffer
+                cachePage(tid, pg);
+            }
+        } finally {
+            unpin(tid);
         }
+        // the cleaner may take tid's pages now that it is done with them
+        if (dirtied)
+            wakeCleaner();
     }
 
     /**
@@ -227,7 +502,141 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        awaitWrite(pid);
         buffer.remove(pid);
+        policy.pageRemoved(pid);
+    }
+
+    /** Wakes the cleaner up if more than the threshold of the pool is dirty. */
+    private synchronized void wakeCleaner() {
+        if (cleanerThreads == 0)
+            return;
+        int dirty = 0;
+        for (Page pg : buffer.values()) {
+            if (pg.isDirty() != null)
+                dirty++;
+        }
+        if (dirty > cleanerThreshold * numPages)
+            cleaner.wake();
+    }
+
+    /**
+     * @return true if the cleaner may yet free a page: it is writing one,
+     *         or may take a dirty page of a transaction that is not inside
+     *         insertTuple or deleteTuple. Callers must hold this.
+     */
+    private boolean cleanable() {
+        // the cleaner logs the pages it takes, so a caller holding the log
+        // must not wait for it
+        if (cleanerThreads == 0 || cleaner.failure() != null || Thread.holdsLock(Database.getLogFile()))
+            return false;
+        if (!writing.isEmpty())
+            return true;
+        synchronized (pins) {
+            for (Page pg : buffer.values()) {
+                TransactionId tid = pg.isDirty();
+                if (tid != null && !pins.containsKey(tid))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** Waits until the cleaner is not writing a page. Callers must hold this. */
+    private void awaitWrite(PageId pid) {
+        boolean interrupted = false;
+        while (writing.containsKey(pid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Waits until the cleaner is not writing any page. The log calls this
+     * before it rolls a transaction back, since waiting for a page there
+     * would hold up the cleaner's force of the log.
+     */
+    synchronized void awaitCleaning() {
+        boolean interrupted = false;
+        while (!writing.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Hands the cleaner the dirty pages it may write: those it is not
+     * writing already, of transactions not inside insertTuple or
+     * deleteTuple. Each is logged and marked clean, and its before image
+     * kept until its transaction completes. The pages must then be handed
+     * back with finishCleaning, even if this throws.
+     *
+     * @param pages gets copies of the pages to write, in PageId order,
+     *        which do not change when their transactions change the
+     *        pages again
+     */
+    synchronized void startCleaning(List<Page> pages) throws IOException {
+        List<Page> dirty = new ArrayList<>();
+        for (Page page : buffer.values()) {
+            if (page.isDirty() != null && !writing.containsKey(page.getId()))
+                dirty.add(page);
+        }
+        dirty.sort(Comparator.comparingInt((Page p) -> p.getId().getTableId())
+                .thenComparingInt(p -> p.getId().getPageNumber()));
+
+        synchronized (pins) {
+            for (Page page : dirty) {
+                TransactionId tid = page.isDirty();
+                if (tid == null || pins.containsKey(tid))
+                    continue;
+                int tag;
+                try {
+                    tag = PageTypes.tagOf(page);
+                } catch (IOException e) {
+                    // the log cannot hold it, so it waits for the commit
+                    continue;
+                }
+                PageId pid = page.getId();
+                Page before = beforeImage(tid, page);
+                Page copy = PageTypes.create(tag, pid.serialize(), page.getPageData());
+                page.markDirty(false, null);
+                writing.put(pid, tid);
+                pages.add(copy);
+                Database.getLogFile().logWrite(tid, before, copy);
+                stolen.computeIfAbsent(tid, t -> new HashMap<>()).putIfAbsent(pid, before);
+            }
+        }
+    }
+
+    /**
+     * Hands back the pages startCleaning gave the cleaner. Pages that
+     * could not be written are marked dirty again.
+     *
+     * @param written true if all the pages were written to their files
+     */
+    synchronized void finishCleaning(List<Page> pages, boolean written) {
+        for (Page copy : pages) {
+            PageId pid = copy.getId();
+            TransactionId tid = writing.remove(pid);
+            if (written) {
+                Database.getLogFile().pageWritten(pid);
+            } else {
+                Page page = buffer.get(pid);
+                if (page != null && page.isDirty() == null)
+                    page.markDirty(true, tid);
+            }
+        }
+        notifyAll();
     }
 
     /**
@@ -237,12 +646,28 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
+        awaitWrite(pid);
         Page page = buffer.get(pid);
-        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (page == null)
+            return;
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null) {
+            // write ahead: the update reaches the log before the page
+            // reaches its file
+            Database.getLogFile().logWrite(dirtier, beforeImage(dirtier, page), page);
+            Database.getLogFile().force();
+        }
+        writePage(page);
+    }
+
+    /** Marks a page clean and writes it to its file. */
+    private void writePage(Page page) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
         // mark clean
         page.markDirty(false, null);
         // write to disk
         file.writePage(page);
+        Database.getLogFile().pageWritten(page.getId());
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -250,29 +675,135 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        // the pages tid wrote are among those it locked exclusively; some
+        // may have been flushed already by flushAllPages
+        List<Page> written = new ArrayList<>();
+        List<Page> dirty = new ArrayList<>();
+        for (PageId pid : lockManager.exclusivelyLockedPages(tid)) {
+            // a page the cleaner is writing reaches its file before commit
+            awaitWrite(pid);
+            Page page = buffer.get(pid);
+            if (page == null)
+                continue;
+            written.add(page);
+            if (tid.equals(page.isDirty())) {
+                Database.getLogFile().logWrite(tid, beforeImage(tid, page), page);
+                dirty.add(page);
+            }
+        }
+        if (!dirty.isEmpty()) {
+            // one force puts the UPDATE records of all of them in the log
+            Database.getLogFile().force();
+            for (Page page : dirty)
+                writePage(page);
+            // pages reach their files again, so the cleaner may retry
+            cleaner.clearFailure();
+        }
+        // the committed contents are what a later abort reverts to
+        for (Page page : written)
+            page.setBeforeImage();
+        stolen.remove(tid);
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the buffer pool's {@link ReplacementPolicy}
+     * among the clean pages that the cleaner is not writing: dirty pages
+     * stay in the pool until the cleaner writes them or their transaction
+     * completes. The cleaner is woken up if too much of the pool is dirty.
+     * If every page is dirty, eviction waits up to EVICT_WAIT_MS for the
+     * cleaner to write one out, as long as the cleaner can.
+     *
+     * @param tid the transaction that needs the frame
      */
-    private synchronized  void evictPage() throws DbException {
+    private synchronized  void evictPage(TransactionId tid) throws DbException {
         // some code goes here
         // not necessary for lab1
+        wakeCleaner();
+
+        long deadline = System.currentTimeMillis() + EVICT_WAIT_MS;
+        while (true) {
+            PageId pid = policy.chooseVictim(p -> buffer.get(p) == null || evictable(p));
+            if (pid == null) {
+                awaitCleaner(tid, deadline);
+                continue;
+            }
+
+            // a policy that is out of step with the page table must not stop eviction
+            Page page = buffer.get(pid);
+            if (page == null) {
+                policy.pageRemoved(pid);
+                continue;
+            }
+
+            // the page may have been dirtied since the policy looked at it
+            if (!evictable(pid)) {
+                continue;
+            }
+            this.discardPage(pid);
+            return;
+        }
+    }
+
+    /**
+     * Whether the cached page pid is clean and not being written out.
+     */
+    private boolean evictable(PageId pid) {
+        Page page = buffer.get(pid);
+        return page != null && page.isDirty() == null && !writing.containsKey(pid);
+    }
+
+    /**
+     * Waits, until deadline at the latest, for the cleaner to make some
+     * page clean. tid changes no page while its thread waits here, so the
+     * cleaner may take tid's pages meanwhile, even from inside insertTuple
+     * or deleteTuple; a transaction changes pages on one thread at a time.
+     *
+     * @param tid the transaction waiting, or null
+     * @throws DbException if the deadline has passed or the cleaner
+     *         cannot help
+     */
+    private void awaitCleaner(TransactionId tid, long deadline) throws DbException {
+        Integer held;
+        synchronized (pins) {
+            held = tid == null ? null : pins.remove(tid);
+        }
         try {
-            Iterator<PageId> iterator = buffer.keySet().iterator();
-            while(iterator.hasNext()) {
-                PageId pid = iterator.next();
-                Page page = buffer.get(pid);
-                if (page.isDirty() != null) {
-                    this.flushPage(pid);
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0 || !cleanable() || Thread.currentThread().isInterrupted()) {
+                DbException e = new DbException("BufferPool: every page is dirty, none can be evicted");
+                e.initCause(cleaner.failure());
+                throw e;
+            }
+            cleaner.wake();
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            if (held != null) {
+                synchronized (pins) {
+                    pins.merge(tid, held, Integer::sum);
                 }
-                this.discardPage(pid);
-                break;
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            throw new DbException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Makes sure a ring read could have been served by the shared pool:
+     * a full pool must hold at least one page it could evict. A ring
+     * frame borrows that capacity, so it must not outlive a pool whose
+     * every frame is dirty.
+     *
+     * @param tid the transaction reading the page
+     * @throws DbException if the pool is full of dirty pages the cleaner
+     *         does not clean in time
+     */
+    private synchronized void reserveRingFrame(TransactionId tid) throws DbException {
+        long deadline = System.currentTimeMillis() + EVICT_WAIT_MS;
+        while (buffer.size() >= numPages && buffer.keySet().stream().noneMatch(this::evictable)) {
+            awaitCleaner(tid, deadline);
         }
     }
 
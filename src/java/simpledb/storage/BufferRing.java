@@ -0,0 +1,71 @@
+package simpledb.storage;
+
+/**
+ * BufferRing is a small, private set of page frames used by large sequential
+ * scans instead of the shared BufferPool page table, in the spirit of
+ * PostgreSQL's buffer access strategies. Pages a scan reads from disk go into
+ * the ring, overwriting the oldest frame once the ring is full, so a scan of
+ * a table much larger than the pool cannot flush every other table's working
+ * set.
+ * <p>
+ * A ring belongs to a single iterator and is not thread-safe. Only clean
+ * pages read with READ_ONLY permission ever enter a ring; pages that are
+ * already resident in the shared pool are always served from there.
+ *
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    /** Default number of frames in a scan ring. */
+    public static final int DEFAULT_SIZE = 8;
+
+    private final Page[] frames;
+    private int next = 0;
+
+    /** Creates a ring with {@link #DEFAULT_SIZE} frames. */
+    public BufferRing() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a ring with the given number of frames.
+     *
+     * @param size number of frames, at least one
+     */
+    public BufferRing(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("ring size must be positive");
+        this.frames = new Page[size];
+    }
+
+    /**
+     * @return the page with the given id if it is in the ring, or null
+     */
+    Page get(PageId pid) {
+        for (Page p : frames) {
+            if (p != null && p.getId().equals(pid))
+                return p;
+        }
+        return null;
+    }
+
+    /**
+     * Puts a page in the ring, recycling the oldest frame.
+     */
+    void add(Page page) {
+        frames[next] = page;
+        next = (next + 1) % frames.length;
+    }
+
+    /** Drops every page held by the ring. */
+    public void clear() {
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = null;
+        next = 0;
+    }
+
+    /** @return the number of frames in this ring */
+    public int size() {
+        return frames.length;
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb.storage;
+
+import simpledb.index.BTreePageId;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * A generalized CLOCK replacement policy. Every resident page owns a frame
+ * on a circular list together with a usage count. A hit resets the count to
+ * the page's weight; the clock hand sweeps the list, decrementing counts,
+ * and evicts the first evictable page whose count has reached zero.
+ * <p>
+ * Ordinary pages have weight 1, which gives plain second-chance CLOCK.
+ * B+ tree root pointer and internal pages get a larger weight so that they
+ * survive several sweeps and stay resident while leaf and heap pages from
+ * scans cycle through the pool.
+ * <p>
+ * Hits only touch the frame's counter and never take the policy lock;
+ * loading, removing and victim selection are synchronized.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    /** Usage count given to ordinary pages on each access. */
+    static final int DEFAULT_WEIGHT = 1;
+
+    /** Usage count given to B+ tree root pointer and internal pages. */
+    static final int HOT_WEIGHT = 4;
+
+    private static class Frame {
+        final PageId pid;
+        final int slot;
+        final int weight;
+        volatile int count;
+
+        Frame(PageId pid, int slot, int weight) {
+            this.pid = pid;
+            this.slot = slot;
+            this.weight = weight;
+            this.count = weight;
+        }
+    }
+
+    private final Map<PageId, Frame> frames = new ConcurrentHashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private Frame[] ring;
+    private int end = 0;  // one past the highest slot ever used, protected by this
+    private int hand = 0; // protected by this
+
+    /**
+     * Creates a CLOCK policy sized for a pool of the given number of pages.
+     * The ring grows if the pool temporarily holds more pages than that.
+     *
+     * @param numPages expected number of resident pages
+     */
+    public ClockReplacementPolicy(int numPages) {
+        this.ring = new Frame[Math.max(numPages, 1)];
+    }
+
+    /**
+     * @return the usage count a page receives when it is loaded or hit
+     */
+    protected int weight(PageId pid) {
+        if (pid instanceof BTreePageId) {
+            int categ = ((BTreePageId) pid).pgcateg();
+            if (categ == BTreePageId.ROOT_PTR || categ == BTreePageId.INTERNAL)
+                return HOT_WEIGHT;
+        }
+        return DEFAULT_WEIGHT;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        Frame existing = frames.get(pid);
+        if (existing != null) {
+            existing.count = existing.weight;
+            return;
+        }
+
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.pop();
+        } else {
+            if (end == ring.length)
+                ring = Arrays.copyOf(ring, ring.length * 2);
+            slot = end++;
+        }
+        Frame f = new Frame(pid, slot, weight(pid));
+        ring[slot] = f;
+        frames.put(pid, f);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Frame f = frames.get(pid);
+        if (f != null)
+            f.count = f.weight;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f != null) {
+            ring[f.slot] = null;
+            freeSlots.push(f.slot);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        if (end == 0)
+            return null;
+
+        // after HOT_WEIGHT + 1 sweeps every count is zero, so one more sweep
+        // visits every frame as a candidate
+        long steps = (long) end * (HOT_WEIGHT + 2);
+        for (long i = 0; i < steps; i++) {
+            Frame f = ring[hand];
+            hand = (hand + 1) % end;
+            if (f == null)
+                continue;
+            if (f.count > 0) {
+                f.count--;
+                continue;
+            }
+            if (evictable.test(f.pid))
+                return f.pid;
+        }
+        return null;
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -23,6 +24,7 @@ import java.util.*;
 public class HeapFile implements DbFile {
     private File file;
     private TupleDesc tupleDesc;
+    private final PageFileChannel channel;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -35,6 +37,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.channel = new PageFileChannel(f);
     }
 
     /**
@@ -77,14 +80,15 @@ public class HeapFile implements DbFile {
         Page page = null;
         HeapPageId hpid = (HeapPageId) pid;
         int pageSize = BufferPool.getPageSize();
-        int offset = pid.getPageNumber() * pageSize;
+        long offset = (long) pid.getPageNumber() * pageSize;
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            ByteBuffer mapped = channel.mappedSlice(offset, pageSize);
+            if (mapped != null)
+                return new HeapPage(hpid, mapped);
+
+            // bytes past the end of the file read as an empty page
             byte[] data = new byte[pageSize];
-            // randomAccessFile.read(data, offset, pageSize);
-            randomAccessFile.seek(offset);
-            randomAccessFile.read(data);
-            randomAccessFile.close();
+            channel.read(offset, data);
 
             page = new HeapPage(hpid, data);
         } catch (IOException ex) {
@@ -98,16 +102,53 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        byte[] data = page.getPageData();
-        int offset = BufferPool.getPageSize() * page.getId().getPageNumber();
-        try {
-            RandomAccessFile disk = new RandomAccessFile(this.file, "rw");
-            disk.seek(offset);
-            disk.write(data);
-            disk.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        long offset = (long) BufferPool.getPageSize() * page.getId().getPageNumber();
+        channel.write(offset, page.getPageData());
+    }
+
+    /**
+     * Writes pages with consecutive page numbers in a single write, as
+     * writePage would write each of them.
+     *
+     * @param pages the pages to write, in page number order
+     * @throws IllegalArgumentException if the page numbers are not consecutive
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int first = pages.get(0).getId().getPageNumber();
+        byte[] data = new byte[pageSize * pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            if (pages.get(i).getId().getPageNumber() != first + i)
+                throw new IllegalArgumentException("pages are not consecutive");
+            System.arraycopy(pages.get(i).getPageData(), 0, data, i * pageSize, pageSize);
         }
+        channel.write((long) pageSize * first, data);
+    }
+
+    /**
+     * Turns memory-mapped reads on or off for this file. When on, pages are
+     * parsed straight out of a read-only mapping of the file rather than
+     * read into a fresh array, which suits large, read-mostly tables. Pages
+     * appended by {@link #insertTuple} are picked up as the mapping is
+     * extended on demand.
+     *
+     * @see PageFileChannel#setMapped
+     */
+    public void setMemoryMapped(boolean mapped) {
+        channel.setMapped(mapped);
+    }
+
+    /** @return true if reads of this file are served from a mapping */
+    public boolean isMemoryMapped() {
+        return channel.isMapped();
+    }
+
+    /**
+     * Closes the channel to the backing file, for instance before deleting
+     * it. It is reopened if the file is used again.
+     */
+    public void close() throws IOException {
+        channel.close();
     }
 
     /**
@@ -124,31 +165,42 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        BufferPool bp = Database.getBufferPool();
         List<Page> dirtyPages = new ArrayList<>();
 
         for(int i = 0; i < numPages(); i++) {
             HeapPageId pageId = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, null);
-            if (page.getNumEmptySlots() > 0) {
-                page.insertTuple(t);
-
-                // add dirty page to list
-                dirtyPages.add(page);
-                break;
+            // look for room under a shared lock, and give the lock back on
+            // a full page unless tid had it already
+            boolean locked = bp.holdsLock(tid, pageId);
+            HeapPage page = (HeapPage) bp.getPage(tid, pageId, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() == 0) {
+                if (!locked)
+                    bp.unsafeReleasePage(tid, pageId);
+                continue;
             }
-        }
-
-        // if all pages are full, allocate new page
-        if (dirtyPages.size() == 0) {
-            HeapPageId pageId = new HeapPageId(getId(), numPages());
-            HeapPage newPage = new HeapPage(pageId, HeapPage.createEmptyPageData());
-            newPage.insertTuple(t);
-            this.writePage(newPage);
+            page = (HeapPage) bp.getPage(tid, pageId, Permissions.READ_WRITE);
+            page.insertTuple(t);
 
             // add dirty page to list
-            dirtyPages.add(newPage);
+            dirtyPages.add(page);
+            return dirtyPages;
         }
 
+        // if all pages are full, append an empty page to the file and fill
+        // it through the buffer pool, so the tuple is only written out if
+        // tid commits
+        HeapPageId pageId;
+        synchronized (this) {
+            pageId = new HeapPageId(getId(), numPages());
+            this.writePage(new HeapPage(pageId, HeapPage.createEmptyPageData()));
+        }
+        HeapPage newPage = (HeapPage) bp.getPage(tid, pageId, Permissions.READ_WRITE);
+        newPage.insertTuple(t);
+
+        // add dirty page to list
+        dirtyPages.add(newPage);
+
         return dirtyPages;
     }
 
@@ -170,61 +222,35 @@ public class HeapFile implements DbFile {
         return dirtyPages;
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Returns an iterator over all the tuples in this file. Scans over files
+     * that are large relative to the buffer pool read through a private
+     * {@link BufferRing} so they do not flush the pool.
+     *
+     * @see BufferPool#scanRing(int)
+     */
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new DbFileIterator() {
-            private int pageNo = -1;
-            private Iterator<Tuple> tupleIter = null;
-
-            @Override
-            public void open() throws DbException, TransactionAbortedException {
-                pageNo = 0;
-                HeapPageId pid = new HeapPageId(getId(), pageNo);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, null);
-                tupleIter = page.iterator();
-            }
-
-            @Override
-            public boolean hasNext() throws DbException, TransactionAbortedException {
-                if (!tupleIter.hasNext()) {
-                    // get next page
-                    while (pageNo < numPages()) {
-                        pageNo++;
-                        HeapPageId pid = new HeapPageId(getId(), pageNo);
-                        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, null);
-                        tupleIter = page.iterator();
-                        if (tupleIter.hasNext()) {
-                            break;
-                        }
-                    }
-                }
-                return tupleIter.hasNext();
-            }
-
-            @Override
-            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (!hasNext()) {
-                    throw new NoSuchElementException("Out of tuples boundary");
-                }
-                return tupleIter.next();
-            }
+        return new HeapFileIterator(tid, this, Database.getBufferPool().scanRing(numPages()));
+    }
 
-            @Override
-            public void rewind() throws DbException, TransactionAbortedException {
-                pageNo = 0;
-                HeapPageId pid = new HeapPageId(getId(), pageNo);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, null);
-                tupleIter = page.iterator();
-            }
+    /**
+     * Returns an iterator over the tuples of the morsels of this file it
+     * claims from the given PageMorsels. Iterators sharing the morsels
+     * between threads read every tuple of the file exactly once.
+     */
+    public DbFileIterator iterator(TransactionId tid, PageMorsels morsels) {
+        return new HeapFileIterator(tid, this, Database.getBufferPool().scanRing(numPages()), morsels);
+    }
 
-            @Override
-            public void close() {
-                pageNo = -1;
-                tupleIter = null;
-            }
-        };
+    /**
+     * Returns an iterator over all the tuples in this file that always reads
+     * uncached pages through a private {@link BufferRing}, whatever the size
+     * of the file. Used by maintenance scans such as statistics collection,
+     * whose pages are not worth caching.
+     */
+    public DbFileIterator scanResistantIterator(TransactionId tid) {
+        return new HeapFileIterator(tid, this, new BufferRing());
     }
 
 }
-
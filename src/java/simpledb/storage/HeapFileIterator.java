@@ -2,67 +2,158 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-
-public class HeapFileIterator implements DbFileIterator {
-    private TransactionId tid;
-    private HeapFile heapFile;
+/**
+ * Iterates over the tuples of a HeapFile page by page, in page order. Pages
+ * are fetched through the BufferPool; if a {@link BufferRing} is supplied,
+ * pages that are not already cached are read into the ring instead of the
+ * shared pool.
+ * <p>
+ * If {@link PageMorsels} are supplied, the iterator reads only the morsels
+ * it claims from them, so that several iterators on different threads
+ * share the file between them.
+ */
+public class HeapFileIterator extends AbstractDbFileIterator {
+    private final TransactionId tid;
+    private final HeapFile heapFile;
+    private final BufferRing ring;
+    private final PageMorsels morsels;
     private int pageNo = -1;
-    private Iterator<Tuple> tupleIter = null;
+    /** The page after the current morsel; unused without morsels. */
+    private int morselEnd = 0;
+    private HeapPage page = null;
+    private int slot = 0;
 
     public HeapFileIterator(TransactionId tid, HeapFile file) {
+        this(tid, file, null);
+    }
+
+    /**
+     * @param tid the transaction this scan runs as a part of
+     * @param file the file to scan
+     * @param ring the ring to read uncached pages into, or null to use the
+     *             shared pool
+     */
+    public HeapFileIterator(TransactionId tid, HeapFile file, BufferRing ring) {
+        this(tid, file, ring, null);
+    }
+
+    /**
+     * @param tid the transaction this scan runs as a part of
+     * @param file the file to scan
+     * @param ring the ring to read uncached pages into, or null to use the
+     *             shared pool
+     * @param morsels the morsels of the file to claim pages from, or null to
+     *                read every page
+     */
+    public HeapFileIterator(TransactionId tid, HeapFile file, BufferRing ring, PageMorsels morsels) {
         this.tid = tid;
         this.heapFile = file;
+        this.ring = ring;
+        this.morsels = morsels;
     }
 
     @Override
     public void open() throws DbException, TransactionAbortedException {
-        pageNo = 0;
+        pageNo = -1;
+        morselEnd = 0;
+        page = null;
+        if (ring != null)
+            ring.clear();
+        nextPage();
+    }
+
+    /**
+     * Advances to the next page of the file. Leaves page null when the file
+     * is exhausted.
+     */
+    private void nextPage() throws DbException, TransactionAbortedException {
+        page = null;
+        slot = 0;
+        if (morsels == null) {
+            if (++pageNo >= heapFile.numPages())
+                return;
+        } else if (++pageNo >= morselEnd) {
+            int first = morsels.claim();
+            if (first < 0)
+                return;
+            pageNo = first;
+            morselEnd = morsels.end(first);
+        }
         HeapPageId pid = new HeapPageId(heapFile.getId(), pageNo);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, null);
-        tupleIter = page.iterator();
+        page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
     }
 
-    @Override
-    public boolean hasNext() throws DbException, TransactionAbortedException {
-        if (!tupleIter.hasNext()) {
-            // get next page
-            while (pageNo < heapFile.numPages()) {
-                pageNo++;
-                HeapPageId pid = new HeapPageId(heapFile.getId(), pageNo);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, null);
-                tupleIter = page.iterator();
-                if (tupleIter.hasNext()) {
-                    break;
-                }
+    /**
+     * Moves to the next used slot at or after the current position, moving
+     * on to later pages as needed.
+     *
+     * @return false if the file is exhausted
+     */
+    private boolean seekUsedSlot() throws DbException, TransactionAbortedException {
+        while (page != null) {
+            while (slot < page.numSlots) {
+                if (page.isSlotUsed(slot))
+                    return true;
+                slot++;
             }
+            nextPage();
         }
-        return tupleIter.hasNext();
+        return false;
     }
 
     @Override
-    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-        if (!hasNext()) {
-            throw new NoSuchElementException("Out of tuples boundary");
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (!seekUsedSlot())
+            return null;
+        return page.tupleAt(slot++);
+    }
+
+    /**
+     * Appends the next tuples of the file to a batch, until the batch is
+     * full or the file is exhausted, reading the values straight from the
+     * pages without creating Tuples. Each row keeps its RecordId.
+     *
+     * @param batch the batch to fill; its schema must match the file's
+     * @return the number of rows added
+     * @throws IllegalStateException if the iterator is not open
+     */
+    public int nextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+        if (pageNo < 0)
+            throw new IllegalStateException("iterator not open");
+        TupleDesc td = batch.getTupleDesc();
+        int added = 0;
+        while (!batch.isFull() && seekUsedSlot()) {
+            int row = batch.addRow();
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    batch.setInt(i, row, page.getInt(slot, i));
+                else
+                    batch.setString(i, row, ((StringField) page.getField(slot, i)).getValue());
+            }
+            batch.setRecordId(row, page.getId(), slot);
+            slot++;
+            added++;
         }
-        return tupleIter.next();
+        return added;
     }
 
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
-        pageNo = 0;
-        HeapPageId pid = new HeapPageId(heapFile.getId(), pageNo);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, null);
-        tupleIter = page.iterator();
+        close();
+        open();
     }
 
     @Override
     public void close() {
+        super.close();
         pageNo = -1;
-        tupleIter = null;
+        page = null;
+        if (ring != null)
+            ring.clear();
     }
 }
@@ -4,10 +4,12 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -29,7 +31,18 @@ public class HeapPage implements Page {
     boolean isDirty;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * The bytes this page was read from, positioned at the start of the page.
+     * Tuples are decoded from here only when they are first accessed; slots
+     * that are written afterwards hold their own Tuple in {@link #tuples},
+     * so these bytes are never modified. If they belong to a file mapping
+     * they are replaced by a private copy once the page is dirtied.
+     */
+    private volatile ByteBuffer raw;
+    /** Offset of each field within a tuple slot. */
+    private final int[] fieldOffsets;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -43,32 +56,43 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Only the header is read up front. The page keeps data and decodes each
+     * tuple from it the first time the tuple is accessed, so data must not be
+     * modified after it is handed to the page.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page's bytes, such as a
+     * slice of a memory-mapped file, without copying it into an array. The
+     * page decodes tuples straight out of data, so its contents must not
+     * change before the page is first modified except through writes of
+     * this page.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     * @see PageFileChannel#mappedSlice
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
 
-        // allocate and read the header slots of this page
+        // read the header slots of this page; tuples are decoded on demand
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        if (data.remaining() < header.length + numSlots * td.getSize())
+            throw new IOException("HeapPage: short page data");
+        data.duplicate().get(header);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        raw = data;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -97,6 +121,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                takeBeforeImage();
                 oldDataRef = oldData;
             }
             return new HeapPage(pid,oldDataRef);
@@ -115,6 +140,33 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Records the bytes this page was read from as its before image, if no
+     * before image has been taken yet, and moves the page off any file
+     * mapping it decodes from, since the mapping changes once the page is
+     * written back. A private array is shared rather than copied. Called
+     * before the page is first dirtied; callers must hold oldDataLock.
+     */
+    private void takeBeforeImage() {
+        ByteBuffer src = raw;
+        int len = BufferPool.getPageSize();
+        if (oldData == null && src.hasArray() && src.arrayOffset() == 0
+                && src.position() == 0 && src.array().length == len) {
+            oldData = src.array();
+            return;
+        }
+        if (oldData != null && src.hasArray())
+            return;
+        // the padding after the last slot may be missing from the source
+        byte[] copy = new byte[len];
+        ByteBuffer from = src.duplicate();
+        from.get(copy, 0, Math.min(len, from.remaining()));
+        if (oldData == null)
+            oldData = copy;
+        if (!src.hasArray())
+            raw = ByteBuffer.wrap(copy);
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -123,40 +175,115 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the offset of the given field of the given slot in raw */
+    private int offsetOf(ByteBuffer src, int slot, int field) {
+        return src.position() + header.length + slot * td.getSize() + fieldOffsets[field];
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decodes one field of a slot from the bytes the page was read from.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    Field decodeField(int slot, int field) {
+        ByteBuffer src = raw;
+        return decodeField(src, offsetOf(src, slot, field), field);
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Decodes the given field of a tuple from the bytes at off in src.
+     */
+    Field decodeField(ByteBuffer src, int off, int field) {
+        switch (td.getFieldType(field)) {
+        case INT_TYPE:
+            return new IntField(src.getInt(off));
+        case STRING_TYPE:
+            int len = Math.max(0, Math.min(src.getInt(off), Type.STRING_LEN));
+            byte[] bs = new byte[len];
+            ByteBuffer s = src.duplicate();
+            s.position(off + 4);
+            s.get(bs);
+            return new StringField(new String(bs), Type.STRING_LEN);
+        default:
+            throw new IllegalStateException("unknown type " + td.getFieldType(field));
         }
+    }
+
+    /**
+     * Decodes an INT_TYPE field of a slot from the bytes the page was read
+     * from, without allocating.
+     */
+    int decodeInt(int slot, int field) {
+        ByteBuffer src = raw;
+        return src.getInt(offsetOf(src, slot, field));
+    }
 
+    /** @return the offset of the given field within a tuple slot */
+    int fieldOffset(int field) {
+        return fieldOffsets[field];
+    }
+
+    /**
+     * Returns a private copy of the bytes of a slot if the page decodes from
+     * a file mapping, or null if it decodes from an array of its own. The
+     * mapping shows whatever is written to the file later, including writes
+     * of other instances of this page, so a tuple handed out by this page
+     * must not keep decoding from it.
+     */
+    ByteBuffer copySlot(int slot) {
+        ByteBuffer src = raw;
+        if (src.hasArray())
+            return null;
+        byte[] copy = new byte[td.getSize()];
+        ByteBuffer from = src.duplicate();
+        from.position(offsetOf(src, slot, 0));
+        from.get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    /**
+     * Returns the tuple in the given slot, creating a lazily decoded tuple
+     * for it on first access.
+     */
+    Tuple tupleAt(int slot) {
+        Tuple t = tuples[slot];
+        if (t == null) {
+            t = new LazyTuple(this, slot);
+            tuples[slot] = t;
+        }
         return t;
     }
 
+    /**
+     * Returns the value of an INT_TYPE field of the tuple in the given slot.
+     * Unlike going through {@link #iterator()} and {@link Tuple#getField},
+     * this does not create any objects for tuples that have not been
+     * accessed, so predicates can be evaluated cheaply.
+     *
+     * @param slot a used slot of this page
+     * @param field the index of an INT_TYPE field
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public int getInt(int slot, int field) {
+        if (!isSlotUsed(slot))
+            throw new NoSuchElementException("slot " + slot + " is empty");
+        Tuple t = tuples[slot];
+        return t == null ? decodeInt(slot, field) : t.getInt(field);
+    }
+
+    /**
+     * Returns a field of the tuple in the given slot, decoding only that
+     * field if the tuple has not been accessed yet.
+     *
+     * @param slot a used slot of this page
+     * @param field the index of the field
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slot, int field) {
+        if (!isSlotUsed(slot))
+            throw new NoSuchElementException("slot " + slot + " is empty");
+        Tuple t = tuples[slot];
+        return t == null ? decodeField(slot, field) : t.getField(field);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -169,64 +296,40 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] out = new byte[BufferPool.getPageSize()];
+        System.arraycopy(header, 0, out, 0, header.length);
 
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
+        int tupleSize = td.getSize();
+        ByteBuffer src = raw.duplicate();
+        int base = src.position();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
         for (int i=0; i<tuples.length; i++) {
+            // empty slots and the padding stay zero
+            if (!isSlotUsed(i))
+                continue;
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+            int off = header.length + i * tupleSize;
+            Tuple t = tuples[i];
+            if (t == null || (t instanceof LazyTuple && ((LazyTuple) t).isUnmodifiedSlotOf(this, i))) {
+                // never changed since the page was read: copy the bytes over
+                src.position(base + off);
+                src.get(out, off, tupleSize);
                 continue;
             }
 
-            // non-empty slot
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
                 try {
-                    f.serialize(dos);
-                
+                    t.getField(j).serialize(dos);
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, out, off, tupleSize);
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return out;
     }
 
     /**
@@ -294,6 +397,12 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	    // not necessary for lab1
+        if (dirty) {
+            // the page is about to differ from disk; snapshot it first
+            synchronized (oldDataLock) {
+                takeBeforeImage();
+            }
+        }
         this.isDirty = dirty;
         this.dirtyTid = tid;
     }
@@ -353,14 +462,31 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleArray = new ArrayList<>();
-        for (int i = 0; i < tuples.length; i++) {
-            if (this.isSlotUsed(i)) {
-                tupleArray.add(tuples[i]);
+        // iterate over the slots in use now; tuples are decoded as they are returned
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < numSlots && ((used[from / 8] >>> (from % 8)) & 1) == 0)
+                    from++;
+                return from;
             }
-        }
-        return tupleArray.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = tupleAt(next);
+                next = advance(next + 1);
+                return t;
+            }
+        };
     }
 
 }
-
@@ -52,23 +52,30 @@ public class IntField implements Field {
      * @see Field#compare
      */
     public boolean compare(Predicate.Op op, Field val) {
+        return compare(op, value, ((IntField) val).value);
+    }
 
-        IntField iVal = (IntField) val;
-
+    /**
+     * Compares two int values the way {@link #compare(Predicate.Op, Field)}
+     * compares IntFields holding them, without creating the fields.
+     *
+     * @return true if "left op right" holds
+     */
+    public static boolean compare(Predicate.Op op, int left, int right) {
         switch (op) {
             case EQUALS:
             case LIKE:
-                return value == iVal.value;
+                return left == right;
             case NOT_EQUALS:
-                return value != iVal.value;
+                return left != right;
             case GREATER_THAN:
-                return value > iVal.value;
+                return left > right;
             case GREATER_THAN_OR_EQ:
-                return value >= iVal.value;
+                return left >= right;
             case LESS_THAN:
-                return value < iVal.value;
+                return left < right;
             case LESS_THAN_OR_EQ:
-                return value <= iVal.value;
+                return left <= right;
         }
 
         return false;
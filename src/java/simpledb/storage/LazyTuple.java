@@ -0,0 +1,115 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A tuple of a HeapPage whose fields are decoded from the page's bytes the
+ * first time each one is accessed. {@link #getInt} reads INT_TYPE fields
+ * without creating a Field at all.
+ * <p>
+ * If the page decodes from a file mapping, the tuple copies the bytes of
+ * its slot when it is created, so that it keeps its values when the file
+ * is written afterwards.
+ *
+ * @see HeapPage#iterator()
+ */
+final class LazyTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient HeapPage page;
+    private final int slot;
+    /** The bytes of the slot if the page decodes from a mapping, else null. */
+    private final transient ByteBuffer copy;
+    /** Decoded (or explicitly set) fields, allocated on first access. */
+    private Field[] fields;
+    private boolean modified = false;
+    private boolean ridSet = false;
+
+    LazyTuple(HeapPage page, int slot) {
+        super(page.td);
+        this.page = page;
+        this.slot = slot;
+        this.copy = page.copySlot(slot);
+    }
+
+    /**
+     * @return true if this is the tuple decoded from the given slot of the
+     *         given page and none of its fields have been replaced since
+     */
+    boolean isUnmodifiedSlotOf(HeapPage p, int s) {
+        return !modified && page == p && slot == s;
+    }
+
+    @Override
+    public RecordId getRecordId() {
+        if (!ridSet) {
+            super.setRecordId(new RecordId(page.getId(), slot));
+            ridSet = true;
+        }
+        return super.getRecordId();
+    }
+
+    @Override
+    public void setRecordId(RecordId rid) {
+        super.setRecordId(rid);
+        ridSet = true;
+    }
+
+    @Override
+    public void setField(int i, Field f) {
+        if (i < 0 || i >= getTupleDesc().numFields())
+            return;
+        if (fields == null)
+            fields = new Field[getTupleDesc().numFields()];
+        fields[i] = f;
+        modified = true;
+    }
+
+    @Override
+    public Field getField(int i) {
+        if (i < 0 || i >= getTupleDesc().numFields())
+            return null;
+        if (fields == null)
+            fields = new Field[getTupleDesc().numFields()];
+        Field f = fields[i];
+        if (f == null) {
+            f = copy == null ? page.decodeField(slot, i) : page.decodeField(copy, page.fieldOffset(i), i);
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    @Override
+    public int getInt(int i) {
+        if (fields != null && fields[i] != null)
+            return ((IntField) fields[i]).getValue();
+        return copy == null ? page.decodeInt(slot, i) : copy.getInt(page.fieldOffset(i));
+    }
+
+    @Override
+    public Iterator<Field> fields() {
+        Field[] all = new Field[getTupleDesc().numFields()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = getField(i);
+        return Arrays.asList(all).iterator();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < getTupleDesc().numFields(); i++) {
+            if (i > 0)
+                sb.append('\t');
+            sb.append(getField(i));
+        }
+        return sb.toString();
+    }
+
+    /** Serializes as a plain, fully decoded Tuple. */
+    private Object writeReplace() {
+        return clone();
+    }
+}
@@ -6,8 +6,16 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -49,29 +57,58 @@ last written checkpoint, or -1 if there are no checkpoints
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and the integer length of the record's body, which
+follows.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with an integer checksum, the CRC-32 of
+everything before it in the record, and a long integer file offset
+representing the position in the log file where the record began.
+Records are written and read with LogFile.writeRecord() and
+LogFile.readRecord(), which checks the checksum.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
-
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> ABORT, COMMIT, and BEGIN records have an empty body
+
+<li>The body of an UPDATE record consists of two entries, a before
+image and an after image.  The before image is a serialized page: a
+byte tag naming its kind of page in {@link PageTypes}, a byte count and
+the integers of its serialized PageId, and the integer length and bytes
+of the page.  The after image is a byte saying how it is stored,
+followed either by a serialized page like the before image, or by an
+integer offset, an integer length, and the bytes of the one range of the
+page that differs from the before image (see {@link #setDeltaUpdates}).
+They can be accessed with the LogFile.readPageData() and
+LogFile.readAfterImage() methods.  See LogFile.print() for an example.
+
+<li> The body of a CHECKPOINT record consists of active transactions at
+the time the checkpoint was taken and their first log record on disk,
+followed by the dirty page table.  The transactions are an integer
+count of the number of transactions, as well as a long integer
+transaction id and a long integer first record offset for each active
+transaction.  The dirty page table is an integer count of pages, and for
+each page a byte count and the integers of its serialized PageId, and
+the long integer offset of its oldest UPDATE record that may not be in
+the page's file yet (its recLSN).  See LogFile.Checkpoint.
 
 </ul>
+
+<p> Checkpoints are fuzzy: taking one flushes no pages and does not
+lock the BufferPool, so transactions keep running while it is written.
+Recovery reads the log from the oldest record the checkpoint says may
+be needed, which is the first record of an active transaction or the
+recLSN of a page in the dirty page table, if either is older than the
+checkpoint itself.
+
+<p> Commits are forced to disk by group commit: a committing transaction
+appends its COMMIT record and then waits for a single flusher thread to
+force the log, so the commits that arrive while one force is in progress
+all share the next one. The flusher may also wait up to
+{@link #getGroupCommitDelay()} microseconds, or until
+{@link #getGroupCommitBatch()} commits are waiting, for a batch to build
+up before forcing.
 */
 public class LogFile {
 
@@ -89,11 +126,52 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    // type, tid and body length
+    final static int RECORD_HEADER_SIZE = INT_SIZE + LONG_SIZE + INT_SIZE;
+    // checksum and start offset
+    final static int RECORD_TRAILER_SIZE = INT_SIZE + LONG_SIZE;
+
+    // how the after image of an UPDATE record is stored
+    static final int FULL_IMAGE = 0;
+    static final int DELTA_IMAGE = 1;
+
+    /** Default number of threads recovery installs pages on: one per processor. */
+    public static final int DEFAULT_RECOVERY_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static int recoveryParallelism = DEFAULT_RECOVERY_PARALLELISM;
+
+    /** By default, after images are logged as a delta against the before image. */
+    public static final boolean DEFAULT_DELTA_UPDATES = true;
+    private static boolean deltaUpdates = DEFAULT_DELTA_UPDATES;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // the dirty page table: pages whose UPDATE records may not be in their
+    // files yet, with the offset of the oldest such record //protected by this
+    final Map<PageId,Long> unwrittenPages = new HashMap<>();
+
+    /** Default time the flusher waits for more commits to join a batch, in microseconds. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+    /** Default number of waiting commits that ends the flusher's wait early. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+    private static long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+    private static int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+
+    /** How long an idle flusher thread lingers before it exits, in ms. */
+    private static final long FLUSHER_IDLE_MS = 1000;
+
+    // group commit state, guarded by flushLock. Positions in the log are
+    // counted in records, as totalRecords does, since offsets change when
+    // the log is truncated.
+    private final Object flushLock = new Object();
+    private long durableRecords = 0; // records known to be on disk
+    private long requestedRecords = 0; // records some committer waits for
+    private int waitingCommits = 0;
+    private IOException flushFailure = null;
+    private Thread flusher = null;
+    private long forces = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -140,6 +218,83 @@ public class LogFile {
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * Sets how long, in microseconds, the flusher waits for more commits to
+     * join a batch before forcing the log. 0 forces as soon as a commit is
+     * waiting; commits arriving during that force still share the next one.
+     */
+    public static void setGroupCommitDelay(long micros) {
+        LogFile.groupCommitDelay = Math.max(micros, 0);
+    }
+
+    /** @return how long the flusher waits for a batch to build up, in microseconds */
+    public static long getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * Sets the number of waiting commits that makes the flusher force the
+     * log without waiting out the rest of the group commit delay.
+     */
+    public static void setGroupCommitBatch(int commits) {
+        LogFile.groupCommitBatch = Math.max(commits, 1);
+    }
+
+    /** @return the number of waiting commits that ends a batch early */
+    public static int getGroupCommitBatch() {
+        return groupCommitBatch;
+    }
+
+    /** Restores the default group commit settings; used by tests. */
+    public static void resetGroupCommit() {
+        LogFile.groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+        LogFile.groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    }
+
+    /**
+     * Sets whether UPDATE records store their after image as the range of
+     * bytes that differs from the before image, rather than as a whole
+     * page. Logs written either way can be read back.
+     */
+    public static void setDeltaUpdates(boolean delta) {
+        LogFile.deltaUpdates = delta;
+    }
+
+    /** @return true if after images are logged as a delta */
+    public static boolean getDeltaUpdates() {
+        return deltaUpdates;
+    }
+
+    /** Restores the default format of after images; used by tests. */
+    public static void resetDeltaUpdates() {
+        LogFile.deltaUpdates = DEFAULT_DELTA_UPDATES;
+    }
+
+    /**
+     * Sets the number of threads {@link #recover()} installs pages on; 1
+     * recovers on the calling thread's behalf with a single worker.
+     */
+    public static void setRecoveryParallelism(int parallelism) {
+        LogFile.recoveryParallelism = Math.max(parallelism, 1);
+    }
+
+    /** @return the number of threads recovery installs pages on */
+    public static int getRecoveryParallelism() {
+        return recoveryParallelism;
+    }
+
+    /** Restores the default recovery parallelism; used by tests. */
+    public static void resetRecoveryParallelism() {
+        LogFile.recoveryParallelism = DEFAULT_RECOVERY_PARALLELISM;
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        synchronized (flushLock) {
+            return forces;
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -150,6 +305,8 @@ public class LogFile {
         // calls rollback
 
         synchronized (Database.getBufferPool()) {
+            // the page cleaner needs the log to finish
+            Database.getBufferPool().awaitCleaning();
 
             synchronized(this) {
                 preAppend();
@@ -160,9 +317,7 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
+                writeRecord(raf, ABORT_RECORD, tid.getId(), NO_BODY);
                 currentOffset = raf.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
@@ -171,21 +326,122 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is left to the flusher
+        thread, and shared with any other transactions committing at
+        the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            writeRecord(raf, COMMIT_RECORD, tid.getId(), NO_BODY);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = totalRecords;
+        }
+        awaitDurable(lsn);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Waits until the first lsn records of the log are on disk, starting
+     * the flusher thread if it is not running.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        synchronized (flushLock) {
+            if (durableRecords >= lsn)
+                return;
+            requestedRecords = Math.max(requestedRecords, lsn);
+            waitingCommits++;
+            if (flusher == null) {
+                flusher = new Thread(this::runFlusher, "LogFile-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushLock.notifyAll();
+            try {
+                while (durableRecords < lsn) {
+                    if (flushFailure != null)
+                        throw new IOException("cannot force the log: " + flushFailure.getMessage());
+                    flushLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the log to be forced");
+            } finally {
+                waitingCommits--;
+            }
+        }
+    }
+
+    /** Records that the first target records of the log are on disk. */
+    private void markDurable(long target) {
+        synchronized (flushLock) {
+            forces++;
+            durableRecords = Math.max(durableRecords, target);
+            flushFailure = null;
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Body of the flusher thread: forces the log whenever a committer is
+     * waiting, once the batch is full or the group commit delay is up, and
+     * wakes up every committer whose record the force covered. Exits after
+     * being idle for a while.
+     */
+    private void runFlusher() {
+        try {
+            while (true) {
+                synchronized (flushLock) {
+                    long idleUntil = System.currentTimeMillis() + FLUSHER_IDLE_MS;
+                    while (requestedRecords <= durableRecords) {
+                        long left = idleUntil - System.currentTimeMillis();
+                        if (left <= 0) {
+                            flusher = null;
+                            return;
+                        }
+                        flushLock.wait(left);
+                    }
+                    // let more commits join the batch
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(groupCommitDelay);
+                    while (waitingCommits < groupCommitBatch) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0)
+                            break;
+                        TimeUnit.NANOSECONDS.timedWait(flushLock, left);
+                    }
+                }
+
+                long target;
+                FileChannel channel;
+                synchronized (this) {
+                    target = totalRecords;
+                    channel = raf.getChannel();
+                }
+                try {
+                    channel.force(true);
+                    markDurable(target);
+                } catch (ClosedChannelException e) {
+                    // the log was truncated into a new file; force that one
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    synchronized (flushLock) {
+                        flushFailure = e;
+                        requestedRecords = durableRecords;
+                        flushLock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (flushLock) {
+                flusher = null;
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -201,91 +457,290 @@ public class LogFile {
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
-        /* update record conists of
+        /* update record body consists of
 
-           record type
-           transaction id
            before page data (see writePageData)
-           after page data
-           start offset
+           after page data (see writeAfterImage)
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        byte[] beforeData = writePageData(body, before);
+        writeAfterImage(body, beforeData, after);
+        long start = writeRecord(raf, UPDATE_RECORD, tid.getId(), bytes.toByteArray());
+        unwrittenPages.putIfAbsent(after.getId(), start);
         currentOffset = raf.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Tells the log that a page whose updates were logged with logWrite
+        is now in its file, so that it leaves the dirty page table.
+        @param pid The page that was written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        unwrittenPages.remove(pid);
+    }
 
-        raf.writeInt(pageInfo.length);
+    /**
+     * Writes a page as its type tag, the integers of its id, and its bytes.
+     *
+     * @return the page's bytes, as written
+     */
+    byte[] writePageData(DataOutput out, Page p) throws IOException {
+        int[] pageInfo = p.getId().serialize();
+        out.writeByte(PageTypes.tagOf(p));
+        out.writeByte(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            out.writeInt(j);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        out.writeInt(pageData.length);
+        out.write(pageData);
+        return pageData;
+    }
+
+    Page readPageData(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        int[] pageInfo = new int[in.readUnsignedByte()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = in.readInt();
+        }
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return PageTypes.create(tag, pageInfo, pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /**
+     * The id of a logged page, as its serialized integers, which can be
+     * read from an UPDATE record without building the page.
+     */
+    static class PageKey {
+        private final int[] id;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageKey(int[] id) {
+            this.id = id;
+        }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+        /** Reads the id of the page whose before image starts in. */
+        static PageKey read(DataInput in) throws IOException {
+            in.readUnsignedByte();
+            return readId(in);
+        }
+
+        /** Reads a page id written by write. */
+        static PageKey readId(DataInput in) throws IOException {
+            int[] id = new int[in.readUnsignedByte()];
+            for (int i = 0; i < id.length; i++) {
+                id[i] = in.readInt();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return new PageKey(id);
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        /** Writes the page id as a byte count and its integers. */
+        void write(DataOutput out) throws IOException {
+            out.writeByte(id.length);
+            for (int j : id) {
+                out.writeInt(j);
+            }
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        @Override
+        public String toString() {
+            return Arrays.toString(id);
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PageKey && Arrays.equals(id, ((PageKey) o).id);
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(id);
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** The tables of a CHECKPOINT record. */
+    static class Checkpoint {
+        // active transaction id -> offset of its first record
+        final Map<Long, Long> transactions = new LinkedHashMap<>();
+        // the dirty page table: page -> recLSN
+        final Map<PageKey, Long> dirtyPages = new LinkedHashMap<>();
+
+        static Checkpoint read(DataInput in) throws IOException {
+            Checkpoint cp = new Checkpoint();
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long tid = in.readLong();
+                cp.transactions.put(tid, in.readLong());
+            }
+            int numPages = in.readInt();
+            while (numPages-- > 0) {
+                PageKey key = PageKey.readId(in);
+                cp.dirtyPages.put(key, in.readLong());
+            }
+            return cp;
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(transactions.size());
+            for (Map.Entry<Long, Long> e : transactions.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageKey, Long> e : dirtyPages.entrySet()) {
+                e.getKey().write(out);
+                out.writeLong(e.getValue());
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @return the offset of the oldest record recovery may need, given
+         *         that the checkpoint record starts at cpLoc
+         */
+        long start(long cpLoc) {
+            long start = cpLoc;
+            for (long first : transactions.values())
+                start = Math.min(start, first);
+            for (long recLSN : dirtyPages.values())
+                start = Math.min(start, recLSN);
+            return start;
+        }
+
+        /** Moves every offset in the tables by delta. */
+        void shift(long delta) {
+            transactions.replaceAll((tid, offset) -> offset + delta);
+            dirtyPages.replaceAll((pid, offset) -> offset + delta);
+        }
+    }
+
+    /**
+     * Writes the after image of an update: when deltas are on, only the
+     * bytes from the first to the last one that differ from the before
+     * image, and the whole page otherwise.
+     */
+    void writeAfterImage(DataOutput out, byte[] beforeData, Page after) throws IOException {
+        if (!deltaUpdates) {
+            out.writeByte(FULL_IMAGE);
+            writePageData(out, after);
+            return;
+        }
+        byte[] afterData = after.getPageData();
+        if (afterData.length != beforeData.length)
+            throw new IOException("before and after images of " + after.getId() + " differ in size");
+        int from = 0;
+        while (from < afterData.length && afterData[from] == beforeData[from])
+            from++;
+        int to = afterData.length;
+        while (to > from && afterData[to - 1] == beforeData[to - 1])
+            to--;
+        out.writeByte(DELTA_IMAGE);
+        out.writeInt(from);
+        out.writeInt(to - from);
+        out.write(afterData, from, to - from);
+    }
+
+    /** Reads the after image of an update whose before image was before. */
+    Page readAfterImage(DataInput in, Page before) throws IOException {
+        int form = in.readUnsignedByte();
+        if (form == FULL_IMAGE)
+            return readPageData(in);
+        if (form != DELTA_IMAGE)
+            throw new IOException("unknown after image format " + form);
+        byte[] pageData = before.getPageData().clone();
+        int from = in.readInt();
+        int length = in.readInt();
+        in.readFully(pageData, from, length);
+        return PageTypes.create(PageTypes.tagOf(before), before.getId().serialize(), pageData);
+    }
+
+    static final byte[] NO_BODY = new byte[0];
+
+    /**
+     * Appends a record at out's file pointer, in a single write.
+     *
+     * @return the offset the record starts at
+     */
+    static long writeRecord(RandomAccessFile out, int type, long tid, byte[] body) throws IOException {
+        long start = out.getFilePointer();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length + RECORD_TRAILER_SIZE);
+        record.putInt(type);
+        record.putLong(tid);
+        record.putInt(body.length);
+        record.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.putLong(start);
+        out.write(record.array());
+        return start;
+    }
+
+    /** A log record, as read back by readRecord. */
+    static class Record {
+        final int type;
+        final long tid;
+        final long start;
+        private final byte[] data; // the body, followed by the trailer
+        final int length; // of the body
+
+        Record(int type, long tid, long start, byte[] data, int length) {
+            this.type = type;
+            this.tid = tid;
+            this.start = start;
+            this.data = data;
+            this.length = length;
+        }
+
+        /** @return a stream reading the record's body */
+        DataInputStream body() {
+            return new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        }
+
+        /** @return a copy of the record's body */
+        byte[] bodyBytes() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    /** Thrown when a log record's checksum does not match its contents. */
+    static class DamagedRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DamagedRecordException(String message) {
+            super(message);
         }
-        return newPage;
+    }
 
+    /**
+     * Reads the record at in's file pointer and checks its checksum.
+     *
+     * @throws EOFException at the end of the log, or if the log ends
+     *         part way through the record
+     * @throws DamagedRecordException if the record's checksum does not match
+     */
+    static Record readRecord(RandomAccessFile in) throws IOException {
+        long start = in.getFilePointer();
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer h = ByteBuffer.wrap(header);
+        int type = h.getInt();
+        long tid = h.getLong();
+        int length = h.getInt();
+        if (length < 0 || length > in.length() - in.getFilePointer() - RECORD_TRAILER_SIZE)
+            throw new EOFException("log ends part way through the record at offset " + start);
+        byte[] data = new byte[length + RECORD_TRAILER_SIZE];
+        in.readFully(data);
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        crc.update(data, 0, length);
+        if (ByteBuffer.wrap(data, length, INT_SIZE).getInt() != (int) crc.getValue())
+            throw new DamagedRecordException("bad checksum in the log record at offset " + start);
+        return new Record(type, tid, start, data, length);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,51 +755,46 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
+        long start = writeRecord(raf, BEGIN_RECORD, tid.getId(), NO_BODY);
+        tidToFirstLogRecord.put(tid.getId(), start);
         currentOffset = raf.getFilePointer();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table as they are, without flushing any pages or
+        taking the BufferPool's lock, so that transactions reading and
+        writing pages never wait for it.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset, endCpOffset;
+
+            Checkpoint cp = new Checkpoint();
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                cp.transactions.put(e.getKey(), e.getValue());
             }
+            for (Map.Entry<PageId, Long> e : unwrittenPages.entrySet())
+                cp.dirtyPages.put(new PageKey(e.getKey().serialize()), e.getValue());
+            //no tid , but leave space for convenience
+            startCpOffset = writeRecord(raf, CHECKPOINT_RECORD, -1, cp.toBytes());
+            // the record must be on disk before anything points to it
+            force();
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            endCpOffset = raf.getFilePointer();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(endCpOffset);
+            currentOffset = raf.getFilePointer();
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
@@ -361,24 +811,13 @@ public class LogFile {
 
         if (cpLoc != -1L) {
             raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            Record cp = readRecord(raf);
 
-            if (cpType != CHECKPOINT_RECORD) {
+            if (cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+            minLogRecord = Checkpoint.read(cp.body()).start(cpLoc);
         }
 
         // we can truncate everything before minLogRecord
@@ -392,41 +831,26 @@ public class LogFile {
         //have to rewrite log records since offsets are different after truncation
         while (true) {
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
+                Record r = readRecord(raf);
                 long newStart = logNew.getFilePointer();
 
                 Debug.log("NEW START = " + newStart);
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
+                // update records are copied as they are, without decoding
+                // their pages
+                byte[] body = r.bodyBytes();
+                switch (r.type) {
                 case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
+                    Checkpoint cp = Checkpoint.read(r.body());
+                    cp.shift(LONG_SIZE - minLogRecord);
+                    body = cp.toBytes();
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                    tidToFirstLogRecord.put(r.tid,newStart);
                     break;
                 }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+                writeRecord(logNew, r.type, r.tid, body);
 
             } catch (EOFException e) {
                 break;
@@ -441,6 +865,9 @@ public class LogFile {
         raf = new RandomAccessFile(logFile, "rw");
         raf.seek(raf.length());
         newFile.delete();
+        // the dirty page table moves with the records it points to
+        long shift = LONG_SIZE - minLogRecord;
+        unwrittenPages.replaceAll((pid, offset) -> offset + shift);
 
         currentOffset = raf.getFilePointer();
         //print();
@@ -457,9 +884,38 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().awaitCleaning();
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " has no log records");
+
+                // every UPDATE record of tid has the page as tid found it,
+                // so the first one of each page will do
+                Map<PageKey, Page> before = new LinkedHashMap<>();
+                raf.seek(first);
+                while (true) {
+                    Record r;
+                    try {
+                        r = readRecord(raf);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (r.type == UPDATE_RECORD && r.tid == tid.getId()) {
+                        PageKey key = PageKey.read(r.body());
+                        if (!before.containsKey(key))
+                            before.put(key, readPageData(r.body()));
+                    }
+                }
+                raf.seek(currentOffset);
+
+                for (Page p : before.values()) {
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    unwrittenPages.remove(p.getId());
+                    Database.getBufferPool().discardPage(p.getId());
+                }
             }
         }
     }
@@ -484,13 +940,162 @@ public class LogFile {
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().awaitCleaning();
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = raf.getFilePointer();
+                    return;
+                }
+
+                Analysis analysis = analyze();
+                for (PageId pid : install(analysis.lastUpdates))
+                    Database.getBufferPool().discardPage(pid);
+
+                // drop a record torn by the crash, so that appends follow
+                // the last good one
+                raf.setLength(analysis.end);
+                raf.seek(analysis.end);
+                currentOffset = analysis.end;
+                tidToFirstLogRecord.clear();
+                unwrittenPages.clear();
             }
          }
     }
 
+    /**
+     * A transaction seen by the analysis pass. Each BEGIN record starts a
+     * new one, so that an id reused after a restart is not mistaken for an
+     * earlier transaction.
+     */
+    private static class AnalyzedTransaction {
+        boolean committed = false;
+    }
+
+    /** The last UPDATE record of a page. */
+    private static class LastUpdate {
+        final long offset;
+        final AnalyzedTransaction txn;
+
+        LastUpdate(long offset, AnalyzedTransaction txn) {
+            this.offset = offset;
+            this.txn = txn;
+        }
+    }
+
+    /** What the analysis pass learns from the log. */
+    private static class Analysis {
+        final Map<PageKey, LastUpdate> lastUpdates = new HashMap<>();
+        long end;
+    }
+
+    /**
+     * The analysis pass of recovery: reads the log from the last
+     * checkpoint, or from the first record of a transaction that was
+     * active at the checkpoint if that is earlier, and finds the last
+     * UPDATE record of every page and whether its transaction committed.
+     * <p>
+     * Every UPDATE record carries the whole page both as its transaction
+     * found it and as it left it, and strict two-phase locking keeps any
+     * other transaction off the page until that one completes, so the
+     * last record of a page is enough to recover it: its after image if
+     * the transaction committed, and its before image if it did not. The
+     * log stops at a record torn or damaged by the crash.
+     * Callers must hold this.
+     */
+    private Analysis analyze() throws IOException {
+        raf.seek(0);
+        long cpLoc = raf.readLong();
+        long start = raf.getFilePointer();
+        if (cpLoc != NO_CHECKPOINT_ID) {
+            raf.seek(cpLoc);
+            start = Checkpoint.read(readRecord(raf).body()).start(cpLoc);
+        }
+
+        Analysis analysis = new Analysis();
+        Map<Long, AnalyzedTransaction> txns = new HashMap<>();
+        raf.seek(start);
+        while (true) {
+            Record r;
+            try {
+                r = readRecord(raf);
+            } catch (EOFException | DamagedRecordException e) {
+                break;
+            }
+            switch (r.type) {
+            case BEGIN_RECORD:
+                txns.put(r.tid, new AnalyzedTransaction());
+                break;
+            case COMMIT_RECORD:
+                txns.computeIfAbsent(r.tid, t -> new AnalyzedTransaction()).committed = true;
+                break;
+            case UPDATE_RECORD:
+                analysis.lastUpdates.put(PageKey.read(r.body()),
+                        new LastUpdate(r.start, txns.computeIfAbsent(r.tid, t -> new AnalyzedTransaction())));
+                break;
+            }
+            analysis.end = raf.getFilePointer();
+        }
+        analysis.end = Math.max(analysis.end, start);
+        return analysis;
+    }
+
+    /**
+     * The redo and undo passes of recovery, which come down to writing the
+     * right image of each page the log updated. Pages are independent, so
+     * they are partitioned by id across {@link #getRecoveryParallelism()}
+     * threads, each reading the log through a file of its own; the pages of
+     * transactions that committed and of those that did not are installed
+     * side by side.
+     *
+     * @return the ids of the pages written
+     */
+    private List<PageId> install(Map<PageKey, LastUpdate> lastUpdates) throws IOException {
+        int n = Math.max(Math.min(recoveryParallelism, lastUpdates.size()), 1);
+        List<List<LastUpdate>> partitions = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            partitions.add(new ArrayList<>());
+        for (Map.Entry<PageKey, LastUpdate> e : lastUpdates.entrySet())
+            partitions.get(Math.floorMod(e.getKey().hashCode(), n)).add(e.getValue());
+
+        List<Callable<List<PageId>>> tasks = new ArrayList<>();
+        for (List<LastUpdate> partition : partitions) {
+            // read each partition's records in log order
+            partition.sort(Comparator.comparingLong(u -> u.offset));
+            tasks.add(() -> {
+                List<PageId> written = new ArrayList<>();
+                try (RandomAccessFile in = new RandomAccessFile(logFile, "r")) {
+                    for (LastUpdate u : partition) {
+                        in.seek(u.offset);
+                        DataInputStream body = readRecord(in).body();
+                        Page before = readPageData(body);
+                        Page p = u.txn.committed ? readAfterImage(body, before) : before;
+                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                        written.add(p.getId());
+                    }
+                }
+                return written;
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(n);
+        try {
+            List<PageId> written = new ArrayList<>();
+            for (Future<List<PageId>> f : pool.invokeAll(tasks))
+                written.addAll(f.get());
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while recovering");
+        } catch (ExecutionException e) {
+            throw new IOException("cannot recover pages: " + e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         long curOffset = raf.getFilePointer();
@@ -501,61 +1106,50 @@ public class LogFile {
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                Record r = readRecord(raf);
+                long bodyStart = r.start + RECORD_HEADER_SIZE;
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println(r.start + ": RECORD TYPE " + r.type);
+                System.out.println((r.start + INT_SIZE) + ": TID " + r.tid);
 
-                switch (cpType) {
+                DataInputStream body = r.body();
+                switch (r.type) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    Checkpoint cp = Checkpoint.read(body);
+                    System.out.println(bodyStart + ": NUMBER OF OUTSTANDING RECORDS: " + cp.transactions.size());
+                    for (Map.Entry<Long, Long> e : cp.transactions.entrySet())
+                        System.out.println("    TID: " + e.getKey() + ", FIRST LOG RECORD: " + e.getValue());
+                    System.out.println("    NUMBER OF DIRTY PAGES: " + cp.dirtyPages.size());
+                    for (Map.Entry<PageKey, Long> e : cp.dirtyPages.entrySet())
+                        System.out.println("    PAGE: " + e.getKey() + ", RECLSN: " + e.getValue());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    Page before = readPageData(body);
+                    long middle = bodyStart + (r.length - body.available());
+                    Page after = readAfterImage(body, before);
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(bodyStart + ": before image of " + before.getId());
+                    System.out.println(bodyStart + " TO " + middle + ": before image data");
+                    System.out.println(middle + " TO " + (bodyStart + r.length) + ": after image data, "
+                            + (Arrays.equals(before.getPageData(), after.getPageData()) ? "unchanged" : "changed"));
 
                     break;
                 }
+                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": RECORD START OFFSET: " + r.start);
 
             } catch (EOFException e) {
                 //e.printStackTrace();
@@ -568,7 +1162,9 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
+        long target = totalRecords;
         raf.getChannel().force(true);
+        markDurable(target);
     }
 
 }
@@ -9,8 +9,9 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, each kind of page MUST be registered in
+ * {@link PageTypes}, with a factory that rebuilds a page from its id and
+ * the bytes returned by getPageData.
  */
 public interface Page {
 
@@ -0,0 +1,181 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * PageCleaner writes the dirty pages of a {@link BufferPool} back to their
+ * files in the background, so that eviction finds clean victims without
+ * any transaction's thread waiting for a write.
+ * <p>
+ * A round of cleaning is asked for with {@link #wake()}. The cleaner
+ * thread then takes the pages it may write from the pool, which logs an
+ * UPDATE record for each; forces the log, so that no page reaches its
+ * file before its record reaches the log; and writes the pages in PageId
+ * order. Heap pages that are next to each other in their file are written
+ * together, and the runs of pages are written on up to
+ * {@link BufferPool#getCleanerThreads()} threads. The thread is started
+ * when cleaning is first asked for, and exits after being idle for a
+ * while.
+ * <p>
+ * If a round fails to write its pages, they are handed back dirty and the
+ * failure is kept: the cleaner takes no more pages until it is cleared,
+ * which the pool does once a commit has written pages out again, rather
+ * than retrying the same pages on every wake-up.
+ *
+ * @Threadsafe
+ */
+class PageCleaner {
+
+    /** How long an idle cleaner thread lingers before it exits, in ms. */
+    private static final long IDLE_MS = 1000;
+
+    private final BufferPool pool;
+
+    // guarded by this
+    private boolean requested = false;
+    private Thread thread = null;
+    private Exception failure = null;
+
+    PageCleaner(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Asks for a round of cleaning, starting the cleaner thread if it is not
+     * running. Does nothing while a failure is kept.
+     */
+    synchronized void wake() {
+        if (failure != null)
+            return;
+        requested = true;
+        if (thread == null) {
+            thread = new Thread(this::run, "BufferPool-cleaner");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /** @return why the last round of cleaning failed, or null if it did not */
+    synchronized Exception failure() {
+        return failure;
+    }
+
+    /** Forgets the kept failure, so that the cleaner takes pages again. */
+    synchronized void clearFailure() {
+        failure = null;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    long idleUntil = System.currentTimeMillis() + IDLE_MS;
+                    while (!requested) {
+                        long left = idleUntil - System.currentTimeMillis();
+                        if (left <= 0) {
+                            thread = null;
+                            return;
+                        }
+                        wait(left);
+                    }
+                    requested = false;
+                }
+                clean();
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                thread = null;
+            }
+        }
+    }
+
+    /** Writes out the pages the pool lets the cleaner have. */
+    private void clean() {
+        List<Page> pages = new ArrayList<>();
+        boolean written = false;
+        try {
+            pool.startCleaning(pages);
+            // a pool the database has dropped must not touch the files
+            if (pages.isEmpty() || Database.getBufferPool() != pool)
+                return;
+            Database.getLogFile().force();
+            writeRuns(runs(pages));
+            written = true;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        } finally {
+            pool.finishCleaning(pages, written);
+        }
+    }
+
+    /**
+     * Splits pages, in PageId order, into runs that can each be written
+     * at once: heap pages of the same table with consecutive page numbers.
+     * Any other page is a run of its own.
+     */
+    static List<List<Page>> runs(List<Page> pages) {
+        List<List<Page>> runs = new ArrayList<>();
+        List<Page> run = null;
+        Page last = null;
+        for (Page p : pages) {
+            if (run == null || !(p.getId() instanceof HeapPageId) || !(last.getId() instanceof HeapPageId)
+                    || p.getId().getTableId() != last.getId().getTableId()
+                    || p.getId().getPageNumber() != last.getId().getPageNumber() + 1) {
+                run = new ArrayList<>();
+                runs.add(run);
+            }
+            run.add(p);
+            last = p;
+        }
+        return runs;
+    }
+
+    private static void writeRun(List<Page> run) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId());
+        if (run.size() > 1) {
+            ((HeapFile) file).writePages(run);
+        } else {
+            file.writePage(run.get(0));
+        }
+    }
+
+    private static void writeRuns(List<List<Page>> runs) throws IOException {
+        int threads = Math.min(BufferPool.getCleanerThreads(), runs.size());
+        if (threads <= 1) {
+            for (List<Page> run : runs)
+                writeRun(run);
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (List<Page> run : runs) {
+            tasks.add(() -> {
+                writeRun(run);
+                return null;
+            });
+        }
+        ForkJoinPool workers = new ForkJoinPool(threads);
+        try {
+            for (Future<Void> f : workers.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while cleaning pages");
+        } catch (ExecutionException e) {
+            throw new IOException("cannot clean pages: " + e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
+}
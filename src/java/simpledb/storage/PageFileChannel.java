@@ -0,0 +1,249 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * PageFileChannel gives a DbFile a single, long-lived FileChannel for its
+ * page I/O. Pages are read and written with positional calls, so concurrent
+ * readers never share a file pointer and a random page read costs one
+ * syscall instead of opening the file and seeking or skipping to the page.
+ * <p>
+ * I/O is staged through a per-thread direct buffer that is reused across
+ * calls, so reads and writes do not allocate native memory. The channel is
+ * opened lazily on first use and reopened if it was closed underneath us,
+ * which happens when a thread is interrupted in the middle of an operation.
+ * <p>
+ * In mapped mode ({@link #setMapped}) reads can instead be served straight
+ * from read-only {@link MappedByteBuffer} regions of the file with
+ * {@link #mappedSlice}, which costs neither a syscall nor a copy. Regions are
+ * mapped lazily. A region the file grows past is only remapped once the
+ * mapping can at least double, so a file that grows a page at a time is
+ * remapped a logarithmic number of times; pages past the end of a mapping
+ * are read through the channel until then. Writes still go through the
+ * channel, and the OS page cache keeps the mappings coherent with them.
+ *
+ * @Threadsafe
+ */
+public class PageFileChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+
+    /** Bytes of the file covered by one mapped region. */
+    static final long REGION_SIZE = 1L << 24;
+    /**
+     * Extra bytes mapped past the end of each region, so that any page of up
+     * to this size starting inside a region lies entirely within it.
+     */
+    static final int REGION_OVERLAP = 1 << 16;
+
+    private volatile boolean mapped = false;
+    /** Mapped regions, indexed by offset / REGION_SIZE; replaced on change. */
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    private static final ThreadLocal<ByteBuffer> STAGING =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BufferPool.getPageSize()));
+
+    /**
+     * @param f the file to do page I/O on; it is created on first use if it
+     *          does not exist
+     */
+    public PageFileChannel(File f) {
+        this.file = f;
+    }
+
+    /** Returns the calling thread's staging buffer, cleared to len bytes. */
+    private static ByteBuffer stagingBuffer(int len) {
+        ByteBuffer buf = STAGING.get();
+        if (buf.capacity() < len) {
+            buf = ByteBuffer.allocateDirect(len);
+            STAGING.set(buf);
+        }
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Reads up to dst.length bytes starting at the given file offset.
+     *
+     * @param position the file offset to read from
+     * @param dst the array to fill
+     * @return the number of bytes read, which is less than dst.length only
+     *         if the end of the file was reached
+     */
+    public int read(long position, byte[] dst) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            ByteBuffer buf = stagingBuffer(dst.length);
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, position + buf.position()) < 0)
+                        break;
+                }
+            } catch (ClosedChannelException e) {
+                // another thread's interrupt closed the channel; reopen once
+                if (attempt > 0 || e instanceof ClosedByInterruptException)
+                    throw e;
+                continue;
+            }
+            int n = buf.position();
+            buf.flip();
+            buf.get(dst, 0, n);
+            return n;
+        }
+    }
+
+    /**
+     * Writes all of data starting at the given file offset, extending the
+     * file if needed.
+     *
+     * @param position the file offset to write to
+     * @param data the bytes to write
+     */
+    public void write(long position, byte[] data) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            ByteBuffer buf = stagingBuffer(data.length);
+            buf.put(data);
+            buf.flip();
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    ch.write(buf, position + buf.position());
+                }
+                return;
+            } catch (ClosedChannelException e) {
+                if (attempt > 0 || e instanceof ClosedByInterruptException)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Appends data at the current end of the file.
+     *
+     * @return the file offset the data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = channel().size();
+        write(position, data);
+        return position;
+    }
+
+    /**
+     * Turns mapped mode on or off. Turning it off drops every mapping; pages
+     * that still hold slices of a mapping keep it alive until they are
+     * collected.
+     */
+    public synchronized void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        if (!mapped)
+            regions = new MappedByteBuffer[0];
+    }
+
+    /** @return true if this channel is in mapped mode */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * Returns a read-only view of len bytes of the file starting at the given
+     * offset, backed directly by a mapping of the file. The view reflects
+     * later writes to those bytes.
+     *
+     * @param position the file offset of the first byte
+     * @param len the number of bytes, at most {@link #REGION_OVERLAP}
+     * @return the view, or null if this channel is not in mapped mode, the
+     *         bytes are not all within the file, or the file has not grown
+     *         enough since it was mapped to map them yet
+     */
+    public ByteBuffer mappedSlice(long position, int len) throws IOException {
+        if (!mapped || len > REGION_OVERLAP)
+            return null;
+        int index = (int) (position / REGION_SIZE);
+        int offset = (int) (position - index * REGION_SIZE);
+        MappedByteBuffer[] rs = regions;
+        MappedByteBuffer region = index < rs.length ? rs[index] : null;
+        if (region == null || region.capacity() < offset + len) {
+            region = mapRegion(index, offset + len);
+            if (region == null)
+                return null;
+        }
+        ByteBuffer view = region.duplicate();
+        view.position(offset).limit(offset + len);
+        return view.slice();
+    }
+
+    /**
+     * Maps (or remaps, if the file has grown) the region with the given
+     * index so that it covers at least minLen bytes. A region that is
+     * already mapped is only remapped if its mapping at least doubles in
+     * size or covers the whole region.
+     *
+     * @return the mapping, or null if the file is too short
+     */
+    private synchronized MappedByteBuffer mapRegion(int index, int minLen) throws IOException {
+        MappedByteBuffer[] rs = regions;
+        if (!mapped)
+            return null;
+        if (index < rs.length && rs[index] != null && rs[index].capacity() >= minLen)
+            return rs[index];
+        long start = index * REGION_SIZE;
+        long len = Math.min(REGION_SIZE + REGION_OVERLAP, size() - start);
+        if (len < minLen)
+            return null;
+        MappedByteBuffer old = index < rs.length ? rs[index] : null;
+        if (old != null && len < REGION_SIZE + REGION_OVERLAP && len < 2L * old.capacity())
+            return null;
+        MappedByteBuffer region = channel().map(FileChannel.MapMode.READ_ONLY, start, len);
+        MappedByteBuffer[] next = Arrays.copyOf(rs, Math.max(rs.length, index + 1));
+        next[index] = region;
+        regions = next;
+        return region;
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /** Forces any written pages to the storage device. */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /**
+     * Closes the underlying channel and drops any mappings. The channel is
+     * reopened on the next call.
+     */
+    public synchronized void close() throws IOException {
+        FileChannel ch = channel;
+        channel = null;
+        regions = new MappedByteBuffer[0];
+        if (ch != null)
+            ch.close();
+    }
+}
@@ -6,8 +6,8 @@ public interface PageId {
     /** Return a representation of this page id object as a collection of
         integers (used for logging)
 
-        This class MUST have a constructor that accepts n integer parameters,
-        where n is the number of integers returned in the array from serialize.
+        The factory registered for the page's kind in PageTypes MUST be able
+        to rebuild the id from these integers.
     */
     int[] serialize();
 
@@ -0,0 +1,62 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageMorsels hands out the pages of a HeapFile in morsels, runs of
+ * consecutive pages, to scans sharing the file between threads. Each
+ * morsel goes to exactly one scan, and a scan that finishes its morsel
+ * early simply claims the next one, so the work balances itself.
+ *
+ * @Threadsafe
+ * @see HeapFile#iterator(simpledb.transaction.TransactionId, PageMorsels)
+ */
+public class PageMorsels {
+
+    private final HeapFile file;
+    private final int morselPages;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile int numPages;
+
+    /**
+     * @param file the file whose pages to hand out
+     * @param morselPages the number of pages in a morsel, at least one
+     */
+    public PageMorsels(HeapFile file, int morselPages) {
+        if (morselPages < 1)
+            throw new IllegalArgumentException("morsels must have at least one page");
+        this.file = file;
+        this.morselPages = morselPages;
+        this.numPages = file.numPages();
+    }
+
+    /** @return the file the morsels are taken from */
+    public HeapFile getFile() {
+        return file;
+    }
+
+    /**
+     * Claims the next morsel.
+     *
+     * @return the first page of the morsel, or -1 if every page has been
+     *         handed out
+     */
+    public int claim() {
+        int first = next.getAndAdd(morselPages);
+        return first < numPages ? first : -1;
+    }
+
+    /** @return the page after the last one of the morsel starting at first */
+    public int end(int first) {
+        return Math.min(first + morselPages, numPages);
+    }
+
+    /**
+     * Starts handing out the file's pages again from the first, including
+     * any pages added since.
+     */
+    public void reset() {
+        numPages = file.numPages();
+        next.set(0);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PageTypes is the registry the LogFile uses to write page images without
+ * naming their classes. Each kind of page is registered under a small
+ * numeric tag with a factory that rebuilds a page from its serialized id
+ * and its bytes; a log record stores the tag, and recovery calls the
+ * factory instead of looking the class up by reflection.
+ * <p>
+ * The pages of the heap and B+ tree files are registered here. Other kinds
+ * of pages must be registered before they are logged, and under the same
+ * tag every time the database starts, since tags are kept in the log.
+ *
+ * @Threadsafe
+ */
+public class PageTypes {
+
+    public static final int HEAP = 1;
+    public static final int BTREE_ROOT_PTR = 2;
+    public static final int BTREE_INTERNAL = 3;
+    public static final int BTREE_LEAF = 4;
+    public static final int BTREE_HEADER = 5;
+
+    /** Rebuilds a page of one kind. */
+    public interface Factory {
+        /**
+         * @param id the page's id, as returned by {@link PageId#serialize()}
+         * @param data the page's bytes, as returned by {@link Page#getPageData()}
+         */
+        Page create(int[] id, byte[] data) throws IOException;
+    }
+
+    private static final Map<Integer, Factory> factories = new HashMap<>();
+    private static final Map<Class<? extends Page>, Integer> tags = new HashMap<>();
+
+    static {
+        register(HEAP, HeapPage.class,
+                (id, data) -> new HeapPage(new HeapPageId(id[0], id[1]), data));
+        register(BTREE_ROOT_PTR, BTreeRootPtrPage.class,
+                (id, data) -> new BTreeRootPtrPage(btreePageId(id), data));
+        register(BTREE_INTERNAL, BTreeInternalPage.class,
+                (id, data) -> new BTreeInternalPage(btreePageId(id), data, keyField(id[0])));
+        register(BTREE_LEAF, BTreeLeafPage.class,
+                (id, data) -> new BTreeLeafPage(btreePageId(id), data, keyField(id[0])));
+        register(BTREE_HEADER, BTreeHeaderPage.class,
+                (id, data) -> new BTreeHeaderPage(btreePageId(id), data));
+    }
+
+    private static BTreePageId btreePageId(int[] id) {
+        return new BTreePageId(id[0], id[1], id[2]);
+    }
+
+    /** B+ tree pages are parsed by their file's key field. */
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
+
+    /**
+     * Registers a kind of page.
+     *
+     * @param tag the number its images are logged under; must not be taken
+     *        by another kind, and must fit in a byte
+     * @param pageClass the class of its pages
+     * @param factory rebuilds its pages
+     */
+    public static synchronized void register(int tag, Class<? extends Page> pageClass, Factory factory) {
+        if (tag < 0 || tag > 0xff)
+            throw new IllegalArgumentException("page type tag out of range: " + tag);
+        if (factories.containsKey(tag) && !pageClass.equals(classOf(tag)))
+            throw new IllegalArgumentException("page type tag " + tag + " is already taken");
+        factories.put(tag, factory);
+        tags.put(pageClass, tag);
+    }
+
+    private static Class<? extends Page> classOf(int tag) {
+        for (Map.Entry<Class<? extends Page>, Integer> e : tags.entrySet()) {
+            if (e.getValue() == tag)
+                return e.getKey();
+        }
+        return null;
+    }
+
+    /** @return the tag p's kind of page is registered under */
+    public static synchronized int tagOf(Page p) throws IOException {
+        Integer tag = tags.get(p.getClass());
+        if (tag == null)
+            throw new IOException("no page type registered for " + p.getClass().getName());
+        return tag;
+    }
+
+    /**
+     * Rebuilds a page of the kind registered under a tag.
+     *
+     * @throws IOException if no kind of page is registered under it
+     */
+    public static Page create(int tag, int[] id, byte[] data) throws IOException {
+        Factory factory;
+        synchronized (PageTypes.class) {
+            factory = factories.get(tag);
+        }
+        if (factory == null)
+            throw new IOException("no page type registered under tag " + tag);
+        return factory.create(id, data);
+    }
+}
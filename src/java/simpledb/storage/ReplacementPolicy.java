@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs room for a new one. The BufferPool reports every page that enters,
+ * is touched in, or leaves its page table, and asks the policy for a victim
+ * when the pool is full.
+ * <p>
+ * Implementations must be safe to call from many threads at once;
+ * {@link #pageAccessed} in particular is on the hit path of every
+ * {@link BufferPool#getPage} call and should avoid taking a global lock.
+ *
+ * @see ClockReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Record that a page has been added to the buffer pool.
+     *
+     * @param pid the id of the page that is now resident
+     */
+    void pageLoaded(PageId pid);
+
+    /**
+     * Record a hit on a page that is already resident.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Record that a page has left the buffer pool, either because it was
+     * evicted or because it was discarded.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Pick a resident page to evict. The page is not removed from the policy
+     * until {@link #pageRemoved} is called for it.
+     *
+     * @param evictable returns false for pages that must not be evicted right
+     *                  now (e.g. dirty pages under NO STEAL)
+     * @return the id of the chosen page, or null if no page may be evicted
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
@@ -90,6 +90,18 @@ public class Tuple implements Serializable {
         return this.fields.get(i);
     }
 
+    /**
+     * @return the value of the ith field, which must be an INT_TYPE field.
+     *         Tuples that keep their fields in serialized form read the
+     *         value without creating a Field.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        return ((IntField) getField(i)).getValue();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
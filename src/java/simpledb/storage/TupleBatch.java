@@ -0,0 +1,270 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+/**
+ * TupleBatch holds a block of rows in columnar form: one int array per
+ * INT_TYPE column and one String array per STRING_TYPE column, plus a
+ * selection vector listing which of the physical rows are live. Operators
+ * that filter a batch only rewrite the selection vector, so rows are never
+ * moved or copied on the way up a plan.
+ * <p>
+ * Rows are addressed in two ways: {@link #row(int)} maps the i-th selected
+ * row to its physical row index, and the column accessors take a physical
+ * row index. A typical consumer loop is therefore
+ * <pre>
+ *     for (int i = 0; i &lt; batch.numRows(); i++) {
+ *         int r = batch.row(i);
+ *         ... batch.getInt(col, r) ...
+ *     }
+ * </pre>
+ * <p>
+ * Rows read from a file also carry their RecordId, kept as the PageId and
+ * slot of each row, so that tuples rebuilt by {@link #getTuple} can still
+ * be deleted.
+ *
+ * @see simpledb.execution.BatchOpIterator
+ */
+public class TupleBatch {
+
+    /** Default number of rows in a batch. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints;
+    private final String[][] strings;
+    /** Number of physical rows filled in. */
+    private int size;
+    private final int[] selection;
+    private int selected;
+    // where each physical row was read from; null until a row has a RecordId
+    private PageId[] pages;
+    private int[] slots;
+
+    /** Creates an empty batch of {@link #DEFAULT_SIZE} rows. */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param td the schema of the rows of this batch
+     * @param capacity the maximum number of rows
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+        this.selection = new int[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, String[][] strings,
+                       int size, int[] selection, int selected, PageId[] pages, int[] slots) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.strings = strings;
+        this.size = size;
+        this.selection = selection;
+        this.selected = selected;
+        this.pages = pages;
+        this.slots = slots;
+    }
+
+    /** @return the schema of the rows of this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the maximum number of rows in this batch */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of selected (live) rows */
+    public int numRows() {
+        return selected;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** @return the physical index of the i-th selected row */
+    public int row(int i) {
+        return selection[i];
+    }
+
+    /**
+     * Returns the selection vector. Its first {@link #numRows()} entries are
+     * the physical indexes of the selected rows, in increasing order. Filters
+     * may compact it in place and then call {@link #setNumRows}.
+     */
+    public int[] selection() {
+        return selection;
+    }
+
+    /**
+     * Keeps only the first n entries of the selection vector.
+     */
+    public void setNumRows(int n) {
+        if (n < 0 || n > selected)
+            throw new IllegalArgumentException("can only shrink the selection");
+        selected = n;
+    }
+
+    /** Removes every row. */
+    public void clear() {
+        size = 0;
+        selected = 0;
+    }
+
+    /** @return the values of an INT_TYPE column, indexed by physical row */
+    public int[] ints(int col) {
+        return ints[col];
+    }
+
+    /** @return the values of a STRING_TYPE column, indexed by physical row */
+    public String[] strings(int col) {
+        return strings[col];
+    }
+
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return strings[col][row];
+    }
+
+    /** @return the value of a column as a Field; this allocates */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    /** @return a new Tuple holding the given physical row, with its RecordId */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /** @return the RecordId of a physical row, or null if it has none */
+    public RecordId getRecordId(int row) {
+        if (pages == null || pages[row] == null)
+            return null;
+        return new RecordId(pages[row], slots[row]);
+    }
+
+    /** Records that a physical row was read from the given slot of a page. */
+    public void setRecordId(int row, PageId pid, int slot) {
+        if (pages == null) {
+            pages = new PageId[capacity];
+            slots = new int[capacity];
+        }
+        pages[row] = pid;
+        slots[row] = slot;
+    }
+
+    /**
+     * Adds a selected row whose values are then filled in with
+     * {@link #setInt} and {@link #setString}.
+     *
+     * @return the physical index of the new row
+     */
+    public int addRow() {
+        if (size == capacity)
+            throw new IllegalStateException("batch is full");
+        int row = size++;
+        selection[selected++] = row;
+        if (pages != null)
+            pages[row] = null;
+        return row;
+    }
+
+    public void setInt(int col, int row, int value) {
+        ints[col][row] = value;
+    }
+
+    public void setString(int col, int row, String value) {
+        strings[col][row] = value;
+    }
+
+    /** Sets a column of a row from a Field of the column's type. */
+    public void setField(int col, int row, Field f) {
+        if (ints[col] != null)
+            ints[col][row] = ((IntField) f).getValue();
+        else
+            strings[col][row] = ((StringField) f).getValue();
+    }
+
+    /** Adds the fields and RecordId of t as a new selected row. */
+    public void addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < td.numFields(); i++)
+            setField(i, row, t.getField(i));
+        RecordId rid = t.getRecordId();
+        if (rid != null)
+            setRecordId(row, rid.getPageId(), rid.getTupleNumber());
+    }
+
+    /**
+     * Copies the columns of a physical row of another batch into columns
+     * [offset, offset + src columns) of a row of this batch. A row copied
+     * whole, into a batch of as many columns, keeps its RecordId.
+     */
+    public void copyRow(TupleBatch src, int srcRow, int row, int offset) {
+        for (int i = 0; i < src.td.numFields(); i++) {
+            if (src.ints[i] != null)
+                ints[offset + i][row] = src.ints[i][srcRow];
+            else
+                strings[offset + i][row] = src.strings[i][srcRow];
+        }
+        if (offset == 0 && src.td.numFields() == td.numFields()
+                && src.pages != null && src.pages[srcRow] != null)
+            setRecordId(row, src.pages[srcRow], src.slots[srcRow]);
+    }
+
+    /**
+     * Returns a new batch holding copies of the selected rows of this one,
+     * for handing to another thread while this batch is reused.
+     */
+    public TupleBatch copy() {
+        TupleBatch b = new TupleBatch(td, Math.max(selected, 1));
+        for (int i = 0; i < selected; i++)
+            b.copyRow(this, selection[i], b.addRow(), 0);
+        return b;
+    }
+
+    /**
+     * Returns a batch with the given columns of this one, in the given
+     * order. The result shares its column arrays, selection vector and
+     * RecordIds with this batch rather than copying them.
+     *
+     * @param cols the columns of this batch to keep
+     * @param outTd the schema of the result
+     */
+    public TupleBatch project(int[] cols, TupleDesc outTd) {
+        int[][] pi = new int[cols.length][];
+        String[][] ps = new String[cols.length][];
+        for (int i = 0; i < cols.length; i++) {
+            pi[i] = ints[cols[i]];
+            ps[i] = strings[cols[i]];
+        }
+        return new TupleBatch(outTd, capacity, pi, ps, size, selection, selected, pages, slots);
+    }
+}
@@ -0,0 +1,380 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LockManager keeps the shared and exclusive page locks that the
+ * BufferPool takes for strict two-phase locking.
+ * <p>
+ * The state of each locked page is a single atomic word: the number of
+ * transactions sharing it, or EXCLUSIVE. Taking a lock nobody conflicts
+ * with is one compare-and-set, and asking again for a lock already held
+ * does not touch shared state at all. A transaction that has to wait
+ * parks its thread in the page's queue of waiters, and is woken up when
+ * the lock is released, so contention on a hot page never slows down
+ * locking of any other page. Each transaction's locks are also listed in a
+ * set of its own, so releasing them all at commit costs O(locks held).
+ * <p>
+ * Deadlocks are detected with a waits-for graph. Whenever a transaction
+ * blocks, its edges to the holders of the page it waits for are added and
+ * the graph is searched for a cycle through it. The youngest transaction
+ * on a cycle, the one with the largest id, is chosen as the victim: it is
+ * woken up and gets a TransactionAbortedException, and the others keep
+ * waiting for its locks to be released when it completes. Edges are
+ * derived from the locks held at the time of the search, so only the
+ * slow path pays for the graph.
+ * <p>
+ * Once a transaction's locks have all been released it is remembered as
+ * completed, so that a thread still working for it, such as a parallel
+ * scan worker, cannot take locks that nobody would release: its acquire
+ * gives back whatever it took and throws TransactionAbortedException.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    private static final int EXCLUSIVE = -1;
+    /** State of a lock that has been dropped from the table and must not be used. */
+    private static final int RETIRED = Integer.MIN_VALUE;
+    /**
+     * Number of completed transactions remembered; the ones that completed
+     * longest ago are forgotten first.
+     */
+    private static final int COMPLETED_LIMIT = 1 << 16;
+
+    /** The lock state of one page. */
+    private static class PageLock {
+        final AtomicInteger state = new AtomicInteger();
+        final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    }
+
+    /** A thread blocked on a page's lock on behalf of a transaction. */
+    private static class Waiter {
+        final TransactionId tid;
+        final PageId pid;
+        final Thread thread = Thread.currentThread();
+
+        Waiter(TransactionId tid, PageId pid) {
+            this.tid = tid;
+            this.pid = pid;
+        }
+    }
+
+    private final ConcurrentMap<PageId, PageLock> locks = new ConcurrentHashMap<>();
+    // the locks of each transaction: true for exclusive, false for shared
+    private final ConcurrentMap<TransactionId, ConcurrentMap<PageId, Boolean>> held =
+            new ConcurrentHashMap<>();
+
+    // the waits-for graph, as the threads each transaction has blocked;
+    // guarded by its monitor
+    private final Map<TransactionId, List<Waiter>> waiting = new HashMap<>();
+    // transactions chosen to break a cycle, until they complete
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+    // transactions whose locks have all been released, and the order they
+    // completed in
+    private final Set<TransactionId> completed = ConcurrentHashMap.newKeySet();
+    private final Queue<TransactionId> completionOrder = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Acquires a lock on a page for a transaction, waiting if another
+     * transaction holds a conflicting lock. A shared lock is upgraded when
+     * the transaction is its only holder.
+     *
+     * @param tid the transaction asking for the lock
+     * @param pid the page to lock
+     * @param perm READ_WRITE for an exclusive lock, anything else for a
+     *        shared one
+     * @throws TransactionAbortedException if waiting for the lock would
+     *         deadlock and tid was chosen as the victim, or tid was chosen
+     *         earlier, or tid has already completed
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        ConcurrentMap<PageId, Boolean> mine = held.get(tid);
+        if (mine == null) {
+            if (completed.contains(tid))
+                throw new TransactionAbortedException();
+            mine = held.computeIfAbsent(tid, t -> new ConcurrentHashMap<>());
+        }
+        Boolean have = mine.get(pid);
+        if (have != null && (have || !exclusive))
+            return;
+
+        while (true) {
+            PageLock l = locks.computeIfAbsent(pid, p -> new PageLock());
+            int r = tryAcquire(l, mine.get(pid), exclusive);
+            if (r == 0)
+                r = await(tid, pid, l, mine, exclusive);
+            if (r < 0)
+                continue;
+            if (r == 2)
+                return;
+
+            if (exclusive) {
+                mine.put(pid, true);
+            } else if (mine.putIfAbsent(pid, false) != null) {
+                // another thread of this transaction got there first
+                unlock(pid, l);
+            }
+            if (completed.contains(tid)) {
+                // tid completed while this thread was taking the lock, so
+                // nobody would release it
+                if (mine.remove(pid) != null)
+                    unlock(pid, l);
+                throw new TransactionAbortedException();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Tries to take a lock without waiting. Other threads of the same
+     * transaction may take or give up the page's lock meanwhile, so what
+     * the transaction holds is passed in afresh on every attempt.
+     *
+     * @param have the lock the transaction holds on the page: true for
+     *        exclusive, false for shared, or null for none
+     * @return 1 if it was taken, 2 if the transaction already holds it, 0
+     *         if it is held in a conflicting mode, or -1 if l has been
+     *         retired and the page's lock must be looked up again
+     */
+    private static int tryAcquire(PageLock l, Boolean have, boolean exclusive) {
+        if (have != null && (have || !exclusive))
+            return 2;
+        boolean upgrade = have != null;
+        while (true) {
+            int s = l.state.get();
+            if (s == RETIRED)
+                return -1;
+            int next;
+            if (exclusive) {
+                // an upgrading transaction must be the only one sharing it
+                if (s != (upgrade ? 1 : 0))
+                    return 0;
+                next = EXCLUSIVE;
+            } else {
+                if (s == EXCLUSIVE)
+                    return 0;
+                next = s + 1;
+            }
+            if (l.state.compareAndSet(s, next))
+                return 1;
+        }
+    }
+
+    /**
+     * Parks the calling thread in l's queue of waiters until the lock can
+     * be taken, as for tryAcquire, checking for a deadlock first.
+     */
+    private int await(TransactionId tid, PageId pid, PageLock l, Map<PageId, Boolean> mine,
+            boolean exclusive) throws TransactionAbortedException {
+        Waiter w = new Waiter(tid, pid);
+        // queue up before trying again, so that a release in between wakes us
+        l.waiters.add(w);
+        try {
+            startWaiting(w);
+            try {
+                int r;
+                while ((r = tryAcquire(l, mine.get(pid), exclusive)) == 0) {
+                    if (victims.contains(tid))
+                        throw new TransactionAbortedException();
+                    LockSupport.park(this);
+                }
+                return r;
+            } finally {
+                stopWaiting(w);
+            }
+        } finally {
+            l.waiters.remove(w);
+        }
+    }
+
+    /**
+     * Adds a blocked thread to the waits-for graph, and breaks the cycles it
+     * closes, if any, by choosing the youngest transaction on each as a
+     * victim. A victim counts as gone from the graph, since it is about to
+     * release its locks, so one that breaks a long cycle is not taken to
+     * break a shorter one through the same edge.
+     *
+     * @throws TransactionAbortedException if w's transaction is a victim
+     */
+    private void startWaiting(Waiter w) throws TransactionAbortedException {
+        synchronized (waiting) {
+            waiting.computeIfAbsent(w.tid, t -> new ArrayList<>()).add(w);
+            List<TransactionId> cycle;
+            while ((cycle = findCycle(w.tid)) != null) {
+                TransactionId victim = w.tid;
+                for (TransactionId t : cycle) {
+                    if (t.getId() > victim.getId())
+                        victim = t;
+                }
+                if (victim.equals(w.tid))
+                    break;
+                victims.add(victim);
+                for (Waiter v : waiting.getOrDefault(victim, Collections.emptyList()))
+                    LockSupport.unpark(v.thread);
+            }
+            if (cycle == null)
+                return;
+            victims.add(w.tid);
+        }
+        stopWaiting(w);
+        throw new TransactionAbortedException();
+    }
+
+    private void stopWaiting(Waiter w) {
+        synchronized (waiting) {
+            List<Waiter> ws = waiting.get(w.tid);
+            if (ws != null && ws.remove(w) && ws.isEmpty())
+                waiting.remove(w.tid);
+        }
+    }
+
+    /**
+     * Looks for a cycle of the waits-for graph through tid, by depth-first
+     * search, leaving out the victims. Callers must hold waiting's monitor.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        if (findPath(tid, tid, path, new HashSet<>()))
+            return new ArrayList<>(path);
+        return null;
+    }
+
+    /** Extends path from u to target along waits-for edges, if it can. */
+    private boolean findPath(TransactionId u, TransactionId target, Deque<TransactionId> path,
+            Set<TransactionId> visited) {
+        path.push(u);
+        for (Waiter w : waiting.getOrDefault(u, Collections.emptyList())) {
+            for (TransactionId v : holders(w.pid)) {
+                if (v.equals(u) || victims.contains(v))
+                    continue;
+                if (v.equals(target))
+                    return true;
+                if (visited.add(v) && findPath(v, target, path, visited))
+                    return true;
+            }
+        }
+        path.pop();
+        return false;
+    }
+
+    /**
+     * @return the transactions holding a lock on a page. Only the slow path
+     *         asks, so the transactions' lock sets are searched rather than
+     *         keeping a list of holders per page.
+     */
+    private List<TransactionId> holders(PageId pid) {
+        List<TransactionId> result = new ArrayList<>();
+        for (Map.Entry<TransactionId, ConcurrentMap<PageId, Boolean>> e : held.entrySet()) {
+            if (e.getValue().containsKey(pid))
+                result.add(e.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Gives up one hold on a page's lock, wakes up anybody waiting for it,
+     * and drops the lock from the table once it is free. The caller holds
+     * the lock, so its state tells which mode it is held in.
+     */
+    private void unlock(PageId pid, PageLock l) {
+        int s;
+        do {
+            s = l.state.get();
+        } while (!l.state.compareAndSet(s, s == EXCLUSIVE ? 0 : s - 1));
+
+        if (!l.waiters.isEmpty()) {
+            for (Waiter w : l.waiters)
+                LockSupport.unpark(w.thread);
+        } else if (l.state.compareAndSet(0, RETIRED)) {
+            locks.remove(pid, l);
+        }
+    }
+
+    /**
+     * Releases the lock a transaction holds on a page, if any.
+     *
+     * @param tid the transaction holding the lock
+     * @param pid the locked page
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        if (mine == null)
+            return;
+        if (mine.remove(pid) != null)
+            unlock(pid, locks.get(pid));
+    }
+
+    /**
+     * Releases every lock held by a transaction, which has completed. Any
+     * lock it asks for from then on is refused.
+     *
+     * @param tid the transaction whose locks to release
+     */
+    public void releaseAll(TransactionId tid) {
+        victims.remove(tid);
+        if (completed.add(tid)) {
+            completionOrder.add(tid);
+            while (completed.size() > COMPLETED_LIMIT) {
+                TransactionId oldest = completionOrder.poll();
+                if (oldest == null)
+                    break;
+                completed.remove(oldest);
+            }
+        }
+        Map<PageId, Boolean> mine = held.remove(tid);
+        if (mine == null)
+            return;
+        // a lock is given back by whichever thread removes it from mine
+        for (PageId pid : mine.keySet()) {
+            if (mine.remove(pid) != null)
+                unlock(pid, locks.get(pid));
+        }
+    }
+
+    /** @return true if the transaction holds a lock of either mode on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        return mine != null && mine.containsKey(pid);
+    }
+
+    /** @return the pages a transaction holds a lock on */
+    public Set<PageId> lockedPages(TransactionId tid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        return mine == null ? Collections.emptySet() : Collections.unmodifiableSet(mine.keySet());
+    }
+
+    /** @return the pages a transaction holds an exclusive lock on */
+    public List<PageId> exclusivelyLockedPages(TransactionId tid) {
+        Map<PageId, Boolean> mine = held.get(tid);
+        List<PageId> result = new ArrayList<>();
+        if (mine != null) {
+            for (Map.Entry<PageId, Boolean> e : mine.entrySet()) {
+                if (e.getValue())
+                    result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.index.BTreePageId;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ClockReplacementPolicyTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for ClockReplacementPolicy.chooseVictim() -- a page that was
+     * hit after loading gets a second chance over one that was not
+     */
+    @Test public void secondChance() {
+        ClockReplacementPolicy policy = new ClockReplacementPolicy(3);
+        PageId p0 = new HeapPageId(1, 0);
+        PageId p1 = new HeapPageId(1, 1);
+        PageId p2 = new HeapPageId(1, 2);
+        policy.pageLoaded(p0);
+        policy.pageLoaded(p1);
+        policy.pageLoaded(p2);
+
+        // the first sweep clears every reference bit, so p0 goes first
+        assertEquals(p0, policy.chooseVictim(p -> true));
+        policy.pageRemoved(p0);
+
+        policy.pageAccessed(p1);
+        assertEquals(p2, policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy -- B+ tree internal and root
+     * pointer pages outlive leaf pages that are loaded after them
+     */
+    @Test public void hotIndexPagesStayResident() {
+        ClockReplacementPolicy policy = new ClockReplacementPolicy(4);
+        PageId root = new BTreePageId(1, 0, BTreePageId.ROOT_PTR);
+        PageId internal = new BTreePageId(1, 1, BTreePageId.INTERNAL);
+        policy.pageLoaded(root);
+        policy.pageLoaded(internal);
+
+        for (int i = 2; i < 20; i++) {
+            PageId leaf = new BTreePageId(1, i, BTreePageId.LEAF);
+            policy.pageLoaded(leaf);
+            PageId victim = policy.chooseVictim(p -> true);
+            assertNotEquals(root, victim);
+            assertNotEquals(internal, victim);
+            policy.pageRemoved(victim);
+            policy.pageAccessed(root);
+            policy.pageAccessed(internal);
+        }
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy.chooseVictim() when no page may be
+     * evicted
+     */
+    @Test public void noEvictablePage() {
+        ClockReplacementPolicy policy = new ClockReplacementPolicy(2);
+        assertNull(policy.chooseVictim(p -> true));
+        policy.pageLoaded(new HeapPageId(1, 0));
+        policy.pageLoaded(new HeapPageId(1, 1));
+        assertNull(policy.chooseVictim(p -> false));
+    }
+
+    /**
+     * Unit test for BufferPool with ClockReplacementPolicy -- concurrent
+     * misses never leave more pages resident than the pool holds
+     */
+    @Test public void concurrentMissesStayWithinPool() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, null);
+        int numPages = hf.numPages();
+        AtomicInteger resident = new AtomicInteger();
+        AtomicInteger maxResident = new AtomicInteger();
+        BufferPool bp = new BufferPool(4, new ClockReplacementPolicy(4) {
+            @Override public void pageLoaded(PageId pid) {
+                maxResident.accumulateAndGet(resident.incrementAndGet(), Math::max);
+                super.pageLoaded(pid);
+            }
+
+            @Override public void pageRemoved(PageId pid) {
+                resident.decrementAndGet();
+                super.pageRemoved(pid);
+            }
+        });
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 8; r++) {
+            int start = r;
+            readers.add(new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int i = 0; i < 20 * numPages; i++)
+                        bp.getPage(tid, new HeapPageId(hf.getId(), (start + i) % numPages), Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    error.set(e);
+                } finally {
+                    bp.transactionComplete(tid);
+                }
+            }));
+        }
+        for (Thread t : readers)
+            t.start();
+        for (Thread t : readers)
+            t.join();
+        assertNull(error.get());
+        assertTrue("the pool held " + maxResident.get() + " pages", maxResident.get() <= 4);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ClockReplacementPolicyTest.class);
+    }
+}
@@ -81,6 +81,66 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() with memory-mapped reads, including
+     * a page appended after the file was first mapped
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        hf.setMemoryMapped(true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+        assertFalse(page.isSlotUsed(20));
+
+        // grow the file by a page; the mapping must be extended to cover it
+        byte[] data = page.getPageData();
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 1), data));
+        assertEquals(2, hf.numPages());
+        HeapPage appended = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertArrayEquals(data, appended.getPageData());
+
+        // pages appended one at a time read back whether or not the mapping
+        // has been extended over them yet
+        for (int i = 2; i < 12; i++) {
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), data));
+            assertArrayEquals(data, hf.readPage(new HeapPageId(hf.getId(), i)).getPageData());
+            assertArrayEquals(data, hf.readPage(new HeapPageId(hf.getId(), i / 2)).getPageData());
+        }
+
+        // the before image survives the page being rewritten on disk
+        page.markDirty(true, tid);
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertArrayEquals(data, page.getBeforeImage().getPageData());
+        assertEquals(504, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Tuples read from a mapped page keep their values when another
+     * instance of the page is written to the file
+     */
+    @Test
+    public void readPageMappedTuplesStable() throws Exception {
+        hf.setMemoryMapped(true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        Tuple first = page.iterator().next();
+        int f0 = ((IntField) page.getField(0, 0)).getValue();
+        int f1 = page.getInt(0, 1);
+
+        HeapPage other = (HeapPage) hf.readPage(pid);
+        Tuple t = other.iterator().next();
+        other.deleteTuple(t);
+        t = Utility.getHeapTuple(new int[] {f0 + 1, f1 + 1});
+        other.insertTuple(t);
+        hf.writePage(other);
+
+        assertEquals(f0, ((IntField) first.getField(0)).getValue());
+        assertEquals(f1, first.getInt(1));
+        assertEquals(f0 + 1, ((IntField) ((HeapPage) hf.readPage(pid)).getField(0, 0)).getValue());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
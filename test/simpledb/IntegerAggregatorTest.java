@@ -10,9 +10,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.common.Type;
+import simpledb.common.Utility;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -130,6 +133,52 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.merge() of two partial averages: it must combine
+   * their sums and counts, not average their averages
+   */
+  @Test public void mergePartialAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    // group 3 is split between the two: (2) and (4, 6)
+    for (int i = 0; i < 4; i++)
+      first.mergeTupleIntoGroup(scan1.next());
+    while (scan1.hasNext())
+      second.mergeTupleIntoGroup(scan1.next());
+
+    first.merge(second);
+    OpIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
+  /**
+   * Test IntegerAggregator with enough groups, including negative keys, to
+   * grow its hash table several times
+   */
+  @Test public void mergeManyGroups() throws Exception {
+    final int GROUPS = 5000;
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    int[] expected = new int[GROUPS * 2];
+    for (int round = 0; round < 3; round++) {
+      for (int g = 0; g < GROUPS; g++) {
+        int key = (g % 2 == 0) ? g * 7919 : -g;
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(g + round));
+        agg.mergeTupleIntoGroup(t);
+        expected[g * 2] = key;
+        expected[g * 2 + 1] += g + round;
+      }
+    }
+
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
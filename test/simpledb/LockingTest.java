@@ -3,7 +3,10 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -11,6 +14,7 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -193,6 +197,60 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming locking.
+   * Completing a transaction releases all of its locks, shared and
+   * exclusive, at once.
+   */
+  @Test public void completeReleasesAllLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p1));
+
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertFalse(bp.holdsLock(tid1, p1));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A lock asked for after the transaction completed, say by a worker
+   * thread that was still running, is refused rather than leaked.
+   */
+  @Test public void acquireAfterComplete() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.transactionComplete(tid1);
+    try {
+      bp.getPage(tid1, p1, Permissions.READ_WRITE);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException ignored) {
+    }
+    assertFalse(bp.holdsLock(tid1, p1));
+    grabLock(tid2, p1, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A thread waiting for an exclusive lock upgrades the shared lock that
+   * another thread of its transaction took while it was waiting.
+   */
+  @Test public void upgradeWhileWaiting() throws Exception {
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.unsafeReleasePage(tid2, p0);
+    Thread.sleep(TIMEOUT);
+    assertTrue(writer.acquired());
+    writer.join();
+  }
+
   /**
    * JUnit suite target
    */
@@ -3,10 +3,13 @@ package simpledb.systemtest;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Aggregate;
@@ -121,6 +124,58 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /** A grouped aggregate with far more groups than its budget spills, recursively. */
+    @Test public void testExternal() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20000, 5000, null, createdTuples);
+        int tables = countTables();
+
+        Aggregate.setMaxGroups(10);
+        try {
+            for (Aggregator.Op operation : new Aggregator.Op[] {Aggregator.Op.SUM, Aggregator.Op.AVG}) {
+                TransactionId tid = new TransactionId();
+                Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, operation);
+                ag.setEstimatedCardinality(5000);
+                assertTrue(ag.isExternal());
+                SystemTestUtil.matchTuples(ag, aggregate(createdTuples, operation, 0));
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        } finally {
+            Aggregate.resetMaxGroups();
+        }
+        // the spill files were all dropped
+        assertEquals(tables, countTables());
+    }
+
+    /** Partial aggregates computed on several threads merge to the serial answer. */
+    @Test public void testParallel() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        // 40 batches: enough for the work to be split
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 40000, 500, null, createdTuples);
+
+        Aggregate.setParallelism(4);
+        try {
+            for (Aggregator.Op operation : Aggregator.Op.values()) {
+                if (operation == Aggregator.Op.SUM_COUNT || operation == Aggregator.Op.SC_AVG)
+                    continue;
+                validateAggregate(table, operation, 1, 0, aggregate(createdTuples, operation, 0));
+            }
+            validateAggregate(table, Aggregator.Op.AVG, 1, Aggregator.NO_GROUPING,
+                    aggregate(createdTuples, Aggregator.Op.AVG, Aggregator.NO_GROUPING));
+        } finally {
+            Aggregate.resetParallelism();
+        }
+    }
+
+    private static int countTables() {
+        int n = 0;
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next())
+            n++;
+        return n;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
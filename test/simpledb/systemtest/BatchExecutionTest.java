@@ -0,0 +1,133 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Checks that pulling batches through a plan returns the same rows as
+ * pulling tuples through it.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+
+    /** Drains an operator through nextBatch(). */
+    private static List<List<Integer>> drainBatches(BatchOpIterator op)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        op.open();
+        TupleBatch b;
+        while ((b = op.nextBatch()) != null) {
+            for (int i = 0; i < b.numRows(); i++) {
+                int r = b.row(i);
+                List<Integer> row = new ArrayList<>();
+                for (int c = 0; c < b.getTupleDesc().numFields(); c++)
+                    row.add(b.getInt(c, r));
+                rows.add(row);
+            }
+        }
+        op.close();
+        return rows;
+    }
+
+    /** A scan and filter over several pages, then a projection. */
+    @Test public void testScanFilterProject()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(1) < 300)
+                expected.add(Arrays.asList(t.get(2), t.get(0)));
+        }
+
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300)),
+                new SeqScan(tid, f.getId(), "t"));
+        Project project = new Project(Arrays.asList(2, 0),
+                Arrays.asList(Type.INT_TYPE, Type.INT_TYPE), filter);
+        assertEquals(expected, drainBatches(project));
+
+        // the row path over the same plan still agrees
+        SystemTestUtil.matchTuples(project, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A hash join whose inner side is probed a batch at a time. */
+    @Test public void testHashEquiJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> left = new ArrayList<>();
+        HeapFile lf = SystemTestUtil.createRandomHeapFile(2, 700, 200, null, left);
+        List<List<Integer>> right = new ArrayList<>();
+        HeapFile rf = SystemTestUtil.createRandomHeapFile(2, 3000, 200, null, right);
+        TransactionId tid = new TransactionId();
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> r : right) {
+            for (List<Integer> l : left) {
+                if (l.get(0).equals(r.get(0))) {
+                    List<Integer> row = new ArrayList<>(l);
+                    row.addAll(r);
+                    expected.add(row);
+                }
+            }
+        }
+
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, lf.getId(), "l"), new SeqScan(tid, rf.getId(), "r"));
+        assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sorted(drainBatches(join)));
+
+        // the same join with both sides partitioned to disk
+        HashEquiJoin.setMaxBuildRows(40);
+        try {
+            assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sorted(drainBatches(join)));
+        } finally {
+            HashEquiJoin.resetMaxBuildRows();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A grouped aggregate that consumes its child in batches. */
+    @Test public void testAggregate()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 4000, 50, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        int[] sums = new int[51];
+        boolean[] seen = new boolean[51];
+        for (List<Integer> t : tuples) {
+            sums[t.get(0)] += t.get(1);
+            seen[t.get(0)] = true;
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (int g = 0; g < sums.length; g++) {
+            if (seen[g])
+                expected.add(Arrays.asList(g, sums[g]));
+        }
+
+        Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), "t"), 1, 0, Aggregator.Op.SUM);
+        assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sorted(drainBatches(agg)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Checks that a checkpoint does not wait for the BufferPool, and that the
+ * dirty page table it records lets recovery install an update logged
+ * before the checkpoint whose page never reached its file.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+
+    @Test public void testCheckpointDoesNotLockBufferPool() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (bp) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        holder.start();
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread checkpoint = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (IOException e) {
+                error.set(e);
+            }
+        });
+        try {
+            held.await();
+            checkpoint.start();
+            checkpoint.join(10000);
+            assertFalse("the checkpoint waited for the BufferPool", checkpoint.isAlive());
+            assertEquals(null, error.get());
+        } finally {
+            release.countDown();
+            holder.join();
+            checkpoint.join();
+        }
+    }
+
+    @Test public void testDirtyPageTable()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        File file = hf.getFile();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = (HeapPage) hf.readPage(pid);
+        HeapPage after = new HeapPage(pid, before.getPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] {-1, -1}));
+
+        // the update is logged and committed, but the crash comes before
+        // the page is written, and the checkpoint after the commit
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        log.logWrite(t.getId(), before, after);
+        log.logCommit(t.getId());
+        log.logCheckpoint();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        Transaction reader = new Transaction();
+        reader.start();
+        SeqScan scan = new SeqScan(reader.getId(), hf.getId(), "");
+        scan.open();
+        int rows = 0;
+        int found = 0;
+        while (scan.hasNext()) {
+            rows++;
+            if (((IntField) scan.next().getField(0)).getValue() == -1)
+                found++;
+        }
+        scan.close();
+        reader.commit();
+        assertEquals(11, rows);
+        assertEquals(1, found);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
@@ -6,14 +6,22 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Delete;
+import simpledb.execution.Exchange;
 import simpledb.execution.Filter;
+import simpledb.execution.ParallelScan;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -62,6 +70,43 @@ public class DeleteTest extends FilterBase {
         SystemTestUtil.matchTuples(table, expectedTuples);
     }
 
+    @After public void resetParallelism() {
+        Exchange.resetParallelism();
+    }
+
+    /**
+     * Deletes from a table large enough to be planned as a parallel scan,
+     * whose rows reach Delete rebuilt from the scan's batches.
+     */
+    @Test public void testDeleteFromParallelScan() throws Exception {
+        Exchange.setParallelism(4);
+        List<List<Integer>> tuples = new ArrayList<>();
+        // more than 256 pages of 504 rows
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * 260, 1 << 16, null, tuples, "c");
+        assertTrue(table.numPages() >= 256);
+        Database.getCatalog().addTable(table, "big");
+
+        Transaction t = new Transaction();
+        t.start();
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(1000));
+        Delete delete = new Delete(t.getId(), new ParallelScan(t.getId(), table.getId(), "big",
+                scan -> new Filter(p, scan)));
+        delete.open();
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : tuples) {
+            if (row.get(0) >= 1000)
+                expected.add(row);
+        }
+        assertEquals(tuples.size() - expected.size(), ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        t.commit();
+        SystemTestUtil.matchTuples(table, expected);
+
+        // the optimizer plans the same scan for a DELETE statement
+        new Parser().processNextStatement("DELETE FROM big;");
+        SystemTestUtil.matchTuples(table, new ArrayList<>());
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(DeleteTest.class);
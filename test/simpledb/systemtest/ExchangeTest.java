@@ -0,0 +1,207 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Exchange;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.ParallelScan;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Checks that an Exchange gathers the output of all its instances, that a
+ * repartitioned stream sends equal keys to the same instance, and that the
+ * optimizer splits large scans across threads.
+ */
+public class ExchangeTest extends SimpleDbTestBase {
+
+    @After public void resetParallelism() {
+        Exchange.resetParallelism();
+    }
+
+    @Test public void testGather() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> expected = new ArrayList<>();
+        List<OpIterator> instances = new ArrayList<>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples);
+            expected.addAll(tuples);
+            instances.add(new SeqScan(tid, f.getId(), "t"));
+        }
+        expected = SystemTestUtil.sorted(expected);
+
+        Exchange exchange = new Exchange(instances);
+        exchange.open();
+        assertEquals(expected, SystemTestUtil.sortedRows(exchange));
+        exchange.rewind();
+        assertEquals(expected, SystemTestUtil.sortedRows(exchange));
+        exchange.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Grouping each partition on its own gives the same groups as grouping it all. */
+    @Test public void testRepartitionedAggregate()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 500, null, null);
+        TransactionId tid = new TransactionId();
+
+        Aggregate serial = new Aggregate(new SeqScan(tid, f.getId(), "t"), 1, 0, Aggregator.Op.SUM);
+        serial.open();
+        List<List<Integer>> expected = SystemTestUtil.sortedRows(serial);
+        serial.close();
+
+        int n = 4;
+        OpIterator[] parts = Exchange.repartition(new SeqScan(tid, f.getId(), "t"), 0, n);
+        List<OpIterator> instances = new ArrayList<>();
+        for (OpIterator part : parts)
+            instances.add(new Aggregate(part, 1, 0, Aggregator.Op.SUM));
+        Exchange exchange = new Exchange(instances);
+        exchange.open();
+        assertEquals(expected, SystemTestUtil.sortedRows(exchange));
+        exchange.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInstanceFailure() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        TransactionId tid = new TransactionId();
+        OpIterator failing = new Operator() {
+            private static final long serialVersionUID = 1L;
+
+            protected Tuple fetchNext() throws DbException {
+                throw new DbException("instance failed");
+            }
+
+            public TupleDesc getTupleDesc() {
+                return f.getTupleDesc();
+            }
+
+            public void rewind() {
+            }
+
+            public OpIterator[] getChildren() {
+                return new OpIterator[0];
+            }
+
+            public void setChildren(OpIterator[] children) {
+            }
+        };
+        Exchange exchange = new Exchange(Arrays.asList(new SeqScan(tid, f.getId(), "t"), failing));
+        exchange.open();
+        try {
+            while (exchange.hasNext())
+                exchange.next();
+            fail("expected the instance's failure to be reported");
+        } catch (DbException expected) {
+            // ok
+        }
+        exchange.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An instance's abort reaches the consumer as it is, so that it can retry. */
+    @Test public void testInstanceAbort() throws IOException, DbException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        TransactionId tid = new TransactionId();
+        OpIterator aborting = new Operator() {
+            private static final long serialVersionUID = 1L;
+
+            protected Tuple fetchNext() throws TransactionAbortedException {
+                throw new TransactionAbortedException();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return f.getTupleDesc();
+            }
+
+            public void rewind() {
+            }
+
+            public OpIterator[] getChildren() {
+                return new OpIterator[0];
+            }
+
+            public void setChildren(OpIterator[] children) {
+            }
+        };
+        Exchange exchange = new Exchange(Arrays.asList(new SeqScan(tid, f.getId(), "t"), aborting));
+        try {
+            exchange.open();
+            while (exchange.hasNext())
+                exchange.next();
+            fail("expected the instance's abort to be reported");
+        } catch (TransactionAbortedException expected) {
+            // ok
+        }
+        exchange.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPhysicalPlanSplitsLargeScans()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        // about 280 pages, above the optimizer's threshold
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 140000, 1000, null, tuples, "c");
+        Database.getCatalog().addTable(f, "big");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("big", new TableStats(f.getId(), 1));
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(0) < 10)
+                expected++;
+        }
+
+        Exchange.setParallelism(4);
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM big WHERE big.c0 < 10;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof ParallelScan);
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            assertTrue(((IntField) plan.next().getField(0)).getValue() < 10);
+            n++;
+        }
+        plan.close();
+        assertEquals(expected, n);
+
+        Exchange.setParallelism(1);
+        plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM big WHERE big.c0 < 10;")
+                .physicalPlan(tid, stats, false);
+        assertTrue(!(((Operator) plan).getChildren()[0] instanceof ParallelScan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
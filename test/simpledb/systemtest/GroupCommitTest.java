@@ -0,0 +1,75 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Checks that transactions committing at the same time share forces of the
+ * log, and that a full batch does not wait out the group commit delay.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    @After public void resetGroupCommit() {
+        LogFile.resetGroupCommit();
+    }
+
+    @Test public void testConcurrentCommitsShareForces() throws Exception {
+        final int THREADS = 8;
+        final int COMMITS = 20;
+        LogFile.setGroupCommitDelay(2000);
+        LogFile.setGroupCommitBatch(THREADS);
+        LogFile log = Database.getLogFile();
+        long forces = log.getForceCount();
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j = 0; j < COMMITS; j++) {
+                        Transaction tr = new Transaction();
+                        tr.start();
+                        tr.commit();
+                    }
+                } catch (IOException e) {
+                    error.set(e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(null, error.get());
+        long used = log.getForceCount() - forces;
+        assertTrue("expected fewer forces than commits, got " + used, used < THREADS * COMMITS);
+    }
+
+    @Test public void testFullBatchDoesNotWait() throws IOException {
+        LogFile.setGroupCommitDelay(10_000_000);
+        LogFile.setGroupCommitBatch(1);
+        long start = System.currentTimeMillis();
+        Transaction tr = new Transaction();
+        tr.start();
+        tr.commit();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
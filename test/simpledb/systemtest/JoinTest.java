@@ -2,19 +2,43 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.ParsingException;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.Predicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.ParallelHashJoin;
 import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
 import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -79,6 +103,413 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * A hash join whose build side is over its memory budget partitions
+     * both inputs to disk, down to several levels, and still finds every
+     * match.
+     */
+    @Test public void testHashEquiJoinSpills()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 4000, 1500, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 1500, null, t2Tuples);
+
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t1 : t1Tuples)
+            byKey.computeIfAbsent(t1.get(0), k -> new ArrayList<>()).add(t1);
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t2 : t2Tuples) {
+            for (List<Integer> t1 : byKey.getOrDefault(t2.get(0), new ArrayList<>())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expectedResults.add(out);
+            }
+        }
+
+        HashEquiJoin.setMaxBuildRows(50);
+        try {
+            TransactionId tid = new TransactionId();
+            HashEquiJoin joinOp = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            // reopening repartitions from scratch
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            HashEquiJoin.resetMaxBuildRows();
+        }
+    }
+
+    private static List<List<Integer>> nestedLoop(List<List<Integer>> t1Tuples,
+            List<List<Integer>> t2Tuples, Predicate.Op op) {
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+        return expectedResults;
+    }
+
+    /** Join reads child1 in blocks, whether one block or many. */
+    @Test public void testBlockNestedLoop()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 2000, 20000, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20, 20000, null, t2Tuples);
+
+        for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN}) {
+            List<List<Integer>> expectedResults = nestedLoop(t1Tuples, t2Tuples, op);
+            for (int blockPages : new int[] {Join.DEFAULT_BLOCK_PAGES, 1}) {
+                Join.setBlockPages(blockPages);
+                try {
+                    TransactionId tid = new TransactionId();
+                    Join joinOp = new Join(new JoinPredicate(0, op, 0),
+                            new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+                    SystemTestUtil.matchTuples(joinOp, expectedResults);
+                    Database.getBufferPool().transactionComplete(tid);
+                } finally {
+                    Join.resetBlockPages();
+                }
+            }
+        }
+    }
+
+    /** A long run of outer tuples without a match does not recurse. */
+    @Test public void testSelectiveJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 100000, 2, 1);
+    }
+
+    /** Each child1 tuple is looked up in the B+ tree on the inner table. */
+    @Test public void testIndexNestedLoopJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20, 2000, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 3000, 2000, null, t2Tuples, 0);
+
+        for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ}) {
+            TransactionId tid = new TransactionId();
+            IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            SystemTestUtil.matchTuples(joinOp, nestedLoop(t1Tuples, t2Tuples, op));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** A join of the first fields of two scans. */
+    private static LogicalJoinNode joinNode(SeqScan ss1, SeqScan ss2, Predicate.Op op) {
+        LogicalJoinNode lj = new LogicalJoinNode();
+        lj.t1Alias = ss1.getAlias();
+        lj.t2Alias = ss2.getAlias();
+        lj.f1QuantifiedName = ss1.getTupleDesc().getFieldName(0);
+        lj.f2QuantifiedName = ss2.getTupleDesc().getFieldName(0);
+        lj.p = op;
+        return lj;
+    }
+
+    /** The optimizer uses the index when the inner table is a B+ tree on the join key. */
+    @Test public void testInstantiateIndexJoin()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        BTreeFile keyed = BTreeUtility.createRandomBTreeFile(COLUMNS, 10, null, null, 0);
+        BTreeFile otherKey = BTreeUtility.createRandomBTreeFile(COLUMNS, 10, null, null, 1);
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "a");
+        SeqScan ss2 = new SeqScan(tid, keyed.getId(), "b");
+        SeqScan ss3 = new SeqScan(tid, otherKey.getId(), "c");
+
+        OpIterator j = JoinOptimizer.instantiateJoin(joinNode(ss1, ss2, Predicate.Op.EQUALS), ss1, ss2);
+        assertTrue(j instanceof IndexNestedLoopJoin);
+        j = JoinOptimizer.instantiateJoin(joinNode(ss1, ss2, Predicate.Op.NOT_EQUALS), ss1, ss2);
+        assertTrue(j instanceof Join);
+        j = JoinOptimizer.instantiateJoin(joinNode(ss1, ss3, Predicate.Op.EQUALS), ss1, ss3);
+        assertTrue(j instanceof HashEquiJoin);
+
+        // a range probe is only used where the optimizer chose it
+        j = JoinOptimizer.instantiateJoin(joinNode(ss1, ss2, Predicate.Op.LESS_THAN), ss1, ss2);
+        assertTrue(j instanceof Join);
+        j = JoinOptimizer.instantiateJoin(joinNode(ss1, ss2, Predicate.Op.LESS_THAN)
+                .withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP), ss1, ss2);
+        assertTrue(j instanceof IndexNestedLoopJoin);
+    }
+
+    /** Range probes into an index are chosen only when they are cheapest. */
+    @Test public void testChooseIndexJoin() {
+        LogicalJoinNode range = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+        // a few outer tuples each read part of a large inner tree
+        assertEquals(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP,
+                JoinOptimizer.chooseJoinAlgorithm(range, 10, 100000, 100, 1e5, 100));
+        // many outer tuples would each read much of the tree
+        assertEquals(LogicalJoinNode.Algorithm.SORT_MERGE,
+                JoinOptimizer.chooseJoinAlgorithm(range, 100000, 1000, 1e5, 1000, 10));
+        // without an index on the inner table
+        assertEquals(LogicalJoinNode.Algorithm.DEFAULT,
+                JoinOptimizer.chooseJoinAlgorithm(range, 10, 100000, 100, 1e5, 0));
+    }
+
+    /**
+     * Sort-merge join on every predicate it supports, sorting in runs on
+     * disk and, for range predicates, rereading child2 rather than holding it.
+     */
+    @Test public void testSortMergeJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        OrderBy.setMaxRows(25);
+        checkSortMergeJoin();
+    }
+
+    /** Sort-merge join with child2 held in memory. */
+    @Test public void testSortMergeJoinInMemory()
+            throws IOException, DbException, TransactionAbortedException {
+        checkSortMergeJoin();
+    }
+
+    private void checkSortMergeJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 150, 60, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 120, 60, null, t2Tuples);
+
+        try {
+            for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                    Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                    Predicate.Op.GREATER_THAN_OR_EQ}) {
+                List<List<Integer>> expectedResults = nestedLoop(t1Tuples, t2Tuples, op);
+                TransactionId tid = new TransactionId();
+                SortMergeJoin joinOp = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                        new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+                SystemTestUtil.matchTuples(joinOp, expectedResults);
+                // and again after a rewind
+                joinOp.open();
+                while (joinOp.hasNext())
+                    joinOp.next();
+                joinOp.rewind();
+                int n = 0;
+                while (joinOp.hasNext()) {
+                    joinOp.next();
+                    n++;
+                }
+                joinOp.close();
+                assertEquals(expectedResults.size(), n);
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        } finally {
+            OrderBy.resetMaxRows();
+        }
+    }
+
+    /** Inputs already in key order, from B+ trees, are merged without sorting. */
+    @Test public void testSortMergeJoinSortedInputs()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        BTreeFile table1 = BTreeUtility.createRandomBTreeFile(COLUMNS, 2000, 500, null, t1Tuples, 0);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 1000, 500, null, t2Tuples, 0);
+
+        TransactionId tid = new TransactionId();
+        SortMergeJoin joinOp = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        SystemTestUtil.matchTuples(joinOp, nestedLoop(t1Tuples, t2Tuples, Predicate.Op.EQUALS));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Range joins, and equality joins too big to hash, are costed as sort-merge joins. */
+    @Test public void testChooseSortMerge()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        LogicalJoinNode range = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+        LogicalJoinNode equal = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        int big = HashEquiJoin.getMaxBuildRows() + 1;
+        ParallelHashJoin.setParallelism(1);
+        try {
+            assertEquals(LogicalJoinNode.Algorithm.SORT_MERGE,
+                    JoinOptimizer.chooseJoinAlgorithm(range, 1000, 1000, 10000, 10000));
+            // an inner input too large to hold in memory is joined by nested loops
+            int tooBig = OrderBy.getMaxRows() + 1;
+            assertEquals(LogicalJoinNode.Algorithm.DEFAULT,
+                    JoinOptimizer.chooseJoinAlgorithm(range, 1000, tooBig, 10000, 1e7));
+            assertEquals(LogicalJoinNode.Algorithm.DEFAULT,
+                    JoinOptimizer.chooseJoinAlgorithm(equal, 1000, 1000, 10000, 10000));
+            assertEquals(LogicalJoinNode.Algorithm.SORT_MERGE,
+                    JoinOptimizer.chooseJoinAlgorithm(equal, big, big, 1e7, 1e7));
+            assertEquals(LogicalJoinNode.Algorithm.DEFAULT,
+                    JoinOptimizer.chooseJoinAlgorithm(equal, 1000, big, 10000, 1e7));
+        } finally {
+            ParallelHashJoin.resetParallelism();
+        }
+
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "a");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "b");
+        LogicalJoinNode lj = joinNode(ss1, ss2, Predicate.Op.LESS_THAN)
+                .withAlgorithm(LogicalJoinNode.Algorithm.SORT_MERGE);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, ss1, ss2) instanceof SortMergeJoin);
+    }
+
+    @Test public void testParallelHashJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 2000, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 2000, null, t2Tuples);
+        List<List<Integer>> expectedResults = nestedLoop(t1Tuples, t2Tuples, Predicate.Op.EQUALS);
+
+        ParallelHashJoin.setParallelism(4);
+        try {
+            TransactionId tid = new TransactionId();
+            ParallelHashJoin joinOp = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+            // again after a rewind part way through
+            joinOp.open();
+            for (int i = 0; i < 10 && joinOp.hasNext(); i++)
+                joinOp.next();
+            joinOp.rewind();
+            int n = 0;
+            while (joinOp.hasNext()) {
+                joinOp.next();
+                n++;
+            }
+            assertEquals(expectedResults.size(), n);
+
+            // closing before the end stops the probe
+            joinOp.rewind();
+            joinOp.next();
+            joinOp.close();
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            ParallelHashJoin.resetParallelism();
+        }
+    }
+
+    /** An abort while the probe reads child2 reaches the caller as it is. */
+    @Test public void testParallelHashJoinProbeAbort() throws IOException, DbException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 2000, null, null);
+        TupleDesc td = Utility.getTupleDesc(COLUMNS);
+        OpIterator aborting = new Operator() {
+            private static final long serialVersionUID = 1L;
+
+            protected Tuple fetchNext() throws TransactionAbortedException {
+                throw new TransactionAbortedException();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void rewind() {
+            }
+
+            public OpIterator[] getChildren() {
+                return new OpIterator[0];
+            }
+
+            public void setChildren(OpIterator[] children) {
+            }
+        };
+
+        ParallelHashJoin.setParallelism(4);
+        TransactionId tid = new TransactionId();
+        ParallelHashJoin joinOp = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), aborting);
+        try {
+            joinOp.open();
+            while (joinOp.hasNext())
+                joinOp.next();
+            fail("expected the probe's abort to be reported");
+        } catch (TransactionAbortedException expected) {
+            // ok
+        } finally {
+            joinOp.close();
+            Database.getBufferPool().transactionComplete(tid);
+            ParallelHashJoin.resetParallelism();
+        }
+    }
+
+    @Test public void testChooseParallelHash()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        LogicalJoinNode equal = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        ParallelHashJoin.setParallelism(4);
+        try {
+            assertEquals(LogicalJoinNode.Algorithm.PARALLEL_HASH,
+                    JoinOptimizer.chooseJoinAlgorithm(equal, 1000, 200000, 10000, 1e6));
+            assertEquals(LogicalJoinNode.Algorithm.DEFAULT,
+                    JoinOptimizer.chooseJoinAlgorithm(equal, 1000, 1000, 10000, 10000));
+            ParallelHashJoin.setParallelism(1);
+            assertEquals(LogicalJoinNode.Algorithm.DEFAULT,
+                    JoinOptimizer.chooseJoinAlgorithm(equal, 1000, 200000, 10000, 1e6));
+        } finally {
+            ParallelHashJoin.resetParallelism();
+        }
+
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "a");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "b");
+        LogicalJoinNode lj = joinNode(ss1, ss2, Predicate.Op.EQUALS)
+                .withAlgorithm(LogicalJoinNode.Algorithm.PARALLEL_HASH);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, ss1, ss2) instanceof ParallelHashJoin);
+    }
+
+    /**
+     * String join keys go through the same tables as int keys; rows with
+     * equal keys are matched in build order, spilled or not.
+     */
+    @Test public void testHashEquiJoinStringKey() throws DbException, TransactionAbortedException {
+        TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+        List<Tuple> left = new ArrayList<>();
+        List<Tuple> right = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + (i * 31 % 150), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            (i < 400 ? left : right).add(t);
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (Tuple r : right) {
+            for (Tuple l : left) {
+                if (l.getField(0).equals(r.getField(0)))
+                    expected.add(l + "\t" + r);
+            }
+        }
+
+        for (int maxBuildRows : new int[] {HashEquiJoin.DEFAULT_MAX_BUILD_ROWS, 20}) {
+            HashEquiJoin.setMaxBuildRows(maxBuildRows);
+            try {
+                HashEquiJoin joinOp = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                        new TupleIterator(td, left), new TupleIterator(td, right));
+                joinOp.open();
+                List<String> actual = new ArrayList<>();
+                while (joinOp.hasNext())
+                    actual.add(joinOp.next().toString());
+                joinOp.close();
+                if (maxBuildRows == HashEquiJoin.DEFAULT_MAX_BUILD_ROWS) {
+                    assertEquals(expected, actual);
+                } else {
+                    // spilled partitions come out after the ones in memory
+                    Collections.sort(expected);
+                    Collections.sort(actual);
+                    assertEquals(expected, actual);
+                }
+            } finally {
+                HashEquiJoin.resetMaxBuildRows();
+            }
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
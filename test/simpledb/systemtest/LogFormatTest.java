@@ -0,0 +1,140 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Checks that UPDATE records are logged without class names, that after
+ * images logged as deltas are smaller and read back, and that a damaged
+ * record is detected.
+ */
+public class LogFormatTest extends SimpleDbTestBase {
+    private File file;
+    private LogFile log;
+
+    @Before public void createLog() throws IOException {
+        file = File.createTempFile("logformat", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void resetDeltaUpdates() {
+        LogFile.resetDeltaUpdates();
+    }
+
+    /** @return what log.print() writes */
+    private String print() throws IOException {
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes));
+        try {
+            log.print();
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString();
+    }
+
+    /** @return the number of bytes the record logging an update takes */
+    private long logUpdate(Page before, Page after) throws IOException {
+        long start = file.length();
+        log.logWrite(new TransactionId(), before, after);
+        return file.length() - start;
+    }
+
+    private HeapPage[] updatedHeapPage() throws IOException, DbException {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = (HeapPage) hf.readPage(pid);
+        HeapPage after = new HeapPage(pid, before.getPageData());
+        Tuple t = after.iterator().next();
+        after.deleteTuple(t);
+        return new HeapPage[] {before, after};
+    }
+
+    @Test public void testDeltaUpdates() throws IOException, DbException {
+        HeapPage[] pages = updatedHeapPage();
+
+        LogFile.setDeltaUpdates(false);
+        long full = logUpdate(pages[0], pages[1]);
+        LogFile.setDeltaUpdates(true);
+        long delta = logUpdate(pages[0], pages[1]);
+
+        assertTrue("a delta of " + delta + " bytes is not smaller than a page of " + full,
+                delta < full - BufferPool.getPageSize() / 2);
+        String printed = print();
+        assertTrue(printed.contains("after image data, changed"));
+        assertTrue(!printed.contains("unchanged"));
+        String logged = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        assertTrue(!logged.contains(HeapPage.class.getName()));
+    }
+
+    @Test public void testBTreePages()
+            throws IOException, DbException, TransactionAbortedException {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreePageId rootId = rootPtr.getRootId();
+        Page root = bf.readPage(rootId);
+        logUpdate(rootPtr, rootPtr);
+        logUpdate(root, root);
+
+        String printed = print();
+        assertTrue(printed.contains("before image of " + rootId));
+        assertTrue(printed.contains("after image data, unchanged"));
+    }
+
+    @Test public void testCorruptRecord() throws IOException, DbException {
+        HeapPage[] pages = updatedHeapPage();
+        logUpdate(pages[0], pages[1]);
+
+        // damage a byte of the before image
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long pos = file.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        }
+        try {
+            print();
+            fail("expected the damaged record to be detected");
+        } catch (EOFException e) {
+            fail("a damaged record is not the end of the log");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("checksum"));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogFormatTest.class);
+    }
+}
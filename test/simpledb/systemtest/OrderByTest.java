@@ -0,0 +1,265 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TopN;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Checks that OrderBy returns the same, stably sorted, rows whether it
+ * sorts in memory or in runs on disk, and that TopN agrees with it.
+ */
+public class OrderByTest extends SimpleDbTestBase {
+
+    @After public void resetBudget() {
+        OrderBy.resetMaxRows();
+    }
+
+    private static List<List<Integer>> drain(OpIterator op)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            List<Integer> row = new ArrayList<>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private void doSort(int maxRows, boolean asc)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 300, null, tuples);
+
+        // List.sort is stable, as OrderBy must be
+        Comparator<List<Integer>> byKey = Comparator.comparing(t -> t.get(1));
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort(asc ? byKey : byKey.reversed());
+
+        OrderBy.setMaxRows(maxRows);
+        TransactionId tid = new TransactionId();
+        OrderBy ob = new OrderBy(1, asc, new SeqScan(tid, f.getId(), "t"));
+        ob.open();
+        assertEquals(expected, drain(ob));
+        ob.rewind();
+        assertEquals(expected, drain(ob));
+        ob.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInMemory() throws IOException, DbException, TransactionAbortedException {
+        doSort(OrderBy.DEFAULT_MAX_ROWS, true);
+        doSort(OrderBy.DEFAULT_MAX_ROWS, false);
+    }
+
+    /** A few runs, merged in one pass. */
+    @Test public void testExternal() throws IOException, DbException, TransactionAbortedException {
+        doSort(700, true);
+        doSort(700, false);
+    }
+
+    /** More runs than can be merged at once. */
+    @Test public void testMultiPassMerge() throws IOException, DbException, TransactionAbortedException {
+        doSort(37, true);
+        doSort(37, false);
+    }
+
+    @Test public void testStringKey() throws DbException, TransactionAbortedException {
+        TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + (i * 7919 % 97), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        List<String> expected = new ArrayList<>();
+        for (Tuple t : tuples)
+            expected.add(t.toString());
+        expected.sort(Comparator.comparing((String s) -> s.split("\t")[0]).reversed());
+
+        OrderBy.setMaxRows(30);
+        OrderBy ob = new OrderBy(0, false, new TupleIterator(td, tuples));
+        ob.open();
+        List<String> actual = new ArrayList<>();
+        while (ob.hasNext())
+            actual.add(ob.next().toString());
+        ob.close();
+        assertEquals(expected, actual);
+    }
+
+    /** Rows of a child that does not produce batches come out as they went in. */
+    @Test public void testKeepsChildTuples() throws DbException, TransactionAbortedException {
+        TupleDesc td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.INT_TYPE});
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(i * 37 % 100));
+            t.setRecordId(new RecordId(new HeapPageId(1, 0), i));
+            tuples.add(t);
+        }
+        List<Tuple> expected = new ArrayList<>(tuples);
+        expected.sort(Comparator.comparing((Tuple t) -> t.getInt(1)));
+
+        OrderBy ob = new OrderBy(1, true, new TupleIterator(td, tuples));
+        try {
+            ob.rewind();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ignored) {
+        }
+        ob.open();
+        for (Tuple t : expected)
+            assertSame(t, ob.next());
+        ob.rewind();
+        assertEquals(expected.get(0).getRecordId(), ob.next().getRecordId());
+        ob.close();
+    }
+
+    /** Rows of a scan, filtered or not, keep the RecordIds the scan gave them. */
+    @Test public void testKeepsScanRecordIds() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, null);
+        TransactionId tid = new TransactionId();
+        HashMap<RecordId, List<Integer>> rows = new HashMap<>();
+        SeqScan scan = new SeqScan(tid, f.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            rows.put(t.getRecordId(), SystemTestUtil.tupleToList(t));
+        }
+        scan.close();
+
+        OpIterator[] children = {
+            new SeqScan(tid, f.getId()),
+            new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)), new SeqScan(tid, f.getId())),
+        };
+        for (OpIterator child : children) {
+            OrderBy ob = new OrderBy(0, true, child);
+            ob.open();
+            int count = 0;
+            while (ob.hasNext()) {
+                Tuple t = ob.next();
+                assertEquals(rows.get(t.getRecordId()), SystemTestUtil.tupleToList(t));
+                count++;
+            }
+            ob.close();
+            assertTrue(count > 0);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** TopN returns the same rows, ties included, as the start of OrderBy's output. */
+    @Test public void testTopN() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (boolean asc : new boolean[] {true, false}) {
+            OrderBy ob = new OrderBy(1, asc, new SeqScan(tid, f.getId(), "t"));
+            ob.open();
+            List<List<Integer>> sorted = drain(ob);
+            ob.close();
+
+            for (int n : new int[] {0, 1, 7, 100, 3000, 5000}) {
+                TopN top = new TopN(1, asc, n, new SeqScan(tid, f.getId(), "t"));
+                top.open();
+                List<List<Integer>> expected = sorted.subList(0, Math.min(n, sorted.size()));
+                assertEquals(expected, drain(top));
+                top.rewind();
+                assertEquals(expected, drain(top));
+                top.close();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A LIMIT after ORDER BY is planned as a TopN. */
+    @Test public void testLimitPlan() throws IOException, DbException, TransactionAbortedException,
+            ParsingException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, "limited");
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM limited ORDER BY limited.c1 DESC LIMIT 5;");
+        assertEquals(5, lp.getLimit());
+        OpIterator plan = lp.physicalPlan(tid, new HashMap<>(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort(Comparator.comparing((List<Integer> t) -> t.get(1)).reversed());
+        plan.open();
+        assertEquals(expected.subList(0, 5), drain(plan));
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A ';' inside a string literal does not end the statement or hide its LIMIT. */
+    @Test public void testLimitAfterSemicolonLiteral() throws IOException {
+        File file = File.createTempFile("strs", ".dat");
+        file.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE}, new String[] {"s", "n"});
+        HeapFile f = new HeapFile(file, td);
+        Database.getCatalog().addTable(f, "strs");
+        Parser p = new Parser();
+        for (int i = 0; i < 4; i++)
+            p.processNextStatement("INSERT INTO strs VALUES ('a;b', " + i + ");");
+        p.processNextStatement("INSERT INTO strs VALUES ('c', 9);");
+        TableStats.setTableStats("strs", new TableStats(f.getId(), 1));
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes));
+        try {
+            p.processNextStatement("SELECT strs.n FROM strs WHERE strs.s = 'a;b' ORDER BY strs.n DESC LIMIT 2;");
+        } finally {
+            System.setOut(out);
+        }
+        String printed = bytes.toString();
+        assertTrue(printed, printed.contains("\n3\n2\n\n 2 rows."));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,212 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Checks that the page cleaner writes out the dirty pages of a running
+ * transaction, and that those pages are put back as they were when the
+ * transaction aborts or the database crashes before it commits.
+ */
+public class PageCleanerTest extends SimpleDbTestBase {
+    private static final int MAGIC = -42;
+    private static final int ROWS = 1500;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        Database.reset();
+        hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        file = hf.getFile();
+        Database.resetBufferPool(6);
+        BufferPool.setCleanerThreshold(0);
+    }
+
+    @After public void resetCleaner() {
+        BufferPool.resetCleaner();
+    }
+
+    /** Inserts ROWS rows marked with MAGIC as a new transaction. */
+    private Transaction insertRows() throws IOException, DbException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {MAGIC, i}));
+        return t;
+    }
+
+    /** @return the number of rows marked with MAGIC in the table's file */
+    private int rowsOnDisk() {
+        int rows = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            for (Tuple tuple : (Iterable<Tuple>) page::iterator) {
+                if (((IntField) tuple.getField(0)).getValue() == MAGIC)
+                    rows++;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Reads the table's pages through the pool, so that evictions wake up
+     * the cleaner, until some of t's rows are on disk.
+     */
+    private void awaitCleaning(Transaction t) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (rowsOnDisk() == 0) {
+            assertTrue("the cleaner did not write any page", System.currentTimeMillis() < deadline);
+            for (int i = 0; i < hf.numPages(); i++)
+                Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            Thread.sleep(10);
+        }
+    }
+
+    /** Waits, without touching the pool, until some of t's rows are on disk. */
+    private void awaitRowsOnDisk() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (rowsOnDisk() == 0) {
+            assertTrue("the cleaner did not write any page", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /** A heap file whose writes fail while failing is set. */
+    private static class FailingHeapFile extends HeapFile {
+        volatile boolean failing = true;
+        volatile int attempts = 0;
+
+        FailingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override public void writePage(Page page) throws IOException {
+            if (failing) {
+                attempts++;
+                throw new IOException("disk full");
+            }
+            super.writePage(page);
+        }
+
+        @Override public void writePages(List<Page> pages) throws IOException {
+            if (failing) {
+                attempts++;
+                throw new IOException("disk full");
+            }
+            super.writePages(pages);
+        }
+    }
+
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    @Test public void testAbortRestoresCleanedPages() throws Exception {
+        Transaction t = insertRows();
+        awaitCleaning(t);
+        t.abort();
+        assertEquals(0, rowsOnDisk());
+    }
+
+    @Test public void testCommitAfterCleaning() throws Exception {
+        Transaction t = insertRows();
+        awaitCleaning(t);
+        t.commit();
+        assertEquals(ROWS, rowsOnDisk());
+
+        crashAndRecover();
+        assertEquals(ROWS, rowsOnDisk());
+    }
+
+    @Test public void testRecoverCleanedPages() throws Exception {
+        Transaction t = insertRows();
+        awaitCleaning(t);
+        crashAndRecover();
+        assertEquals(0, rowsOnDisk());
+    }
+
+    @Test public void testInsertsWakeCleaner() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 10; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {MAGIC, i}));
+        awaitRowsOnDisk();
+        t.abort();
+        assertEquals(0, rowsOnDisk());
+    }
+
+    @Test public void testEvictionWaitsForCleaner() throws Exception {
+        Database.resetBufferPool(1);
+        BufferPool.setCleanerThreads(0);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {MAGIC, 0}));
+
+        // the only page is dirty; the cleaner has to write it out first
+        BufferPool.setCleanerThreads(BufferPool.DEFAULT_CLEANER_THREADS);
+        Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        t.commit();
+        assertEquals(1, rowsOnDisk());
+    }
+
+    @Test public void testCleanerFailureKept() throws Exception {
+        FailingHeapFile failing = new FailingHeapFile(file, hf.getTupleDesc());
+        Database.getCatalog().addTable(failing, "failing");
+        Database.resetBufferPool(1);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {MAGIC, 0}));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (failing.attempts == 0) {
+            assertTrue("the cleaner did not try to write", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // eviction gives up, with the cleaner's failure as the cause
+        try {
+            Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // and the cleaner does not retry the page on every wake-up
+        assertEquals(1, failing.attempts);
+
+        failing.failing = false;
+        t.commit();
+        assertEquals(1, rowsOnDisk());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.ParallelScan;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Checks that a ParallelScan returns every tuple of a table exactly once,
+ * whatever the number of workers, with and without a pipeline fragment.
+ */
+public class ParallelScanTest extends SimpleDbTestBase {
+
+    @After public void resetParallelism() {
+        ParallelScan.resetParallelism();
+    }
+
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        // about 120 pages: several morsels
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 60000, null, tuples);
+        List<List<Integer>> expected = SystemTestUtil.sorted(tuples);
+
+        for (int workers : new int[] {1, 4}) {
+            ParallelScan.setParallelism(workers);
+            TransactionId tid = new TransactionId();
+            ParallelScan scan = new ParallelScan(tid, f.getId(), "t");
+            scan.open();
+            assertEquals(expected, SystemTestUtil.sortedRows(scan));
+            scan.rewind();
+            assertEquals(expected, SystemTestUtil.sortedRows(scan));
+            scan.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    @Test public void testFragment() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 60000, 1000, null, tuples);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) < 100)
+                expected.add(Collections.singletonList(t.get(1)));
+        }
+
+        ParallelScan.setParallelism(4);
+        TransactionId tid = new TransactionId();
+        ParallelScan scan = new ParallelScan(tid, f.getId(), "t",
+                child -> new Project(Collections.singletonList(1), new Type[] {Type.INT_TYPE},
+                        new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)), child)));
+        assertEquals(1, scan.getTupleDesc().numFields());
+        scan.open();
+        assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sortedRows(scan));
+
+        // batches carry the same rows
+        scan.rewind();
+        int n = 0;
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null)
+            n += batch.numRows();
+        assertEquals(expected.size(), n);
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testCloseEarly() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 60000, null, null);
+        ParallelScan.setParallelism(4);
+        TransactionId tid = new TransactionId();
+        ParallelScan scan = new ParallelScan(tid, f.getId(), "t");
+        scan.open();
+        for (int i = 0; i < 10; i++)
+            scan.next();
+        // the workers are blocked on a full queue; closing must free them
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}
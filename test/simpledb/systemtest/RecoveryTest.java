@@ -0,0 +1,113 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Checks that recovery installs the pages of committed transactions and
+ * rolls back those of transactions the crash interrupted, whether it runs
+ * on one thread or several.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int COMMITTED = 4;
+    private static final int ROWS = 1500;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        Database.reset();
+        file = new File("recovery.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void resetRecovery() {
+        LogFile.resetRecoveryParallelism();
+        file.delete();
+    }
+
+    /** Inserts ROWS rows of (i, txn) as a new transaction. */
+    private Transaction insertRows(int txn)
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {i, txn}));
+        return t;
+    }
+
+    /** @return the number of rows each transaction left in the table */
+    private int[] countRows() throws IOException, DbException, TransactionAbortedException {
+        int[] counts = new int[COMMITTED + 1];
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tuple = scan.next();
+            counts[((IntField) tuple.getField(1)).getValue()]++;
+        }
+        scan.close();
+        t.commit();
+        return counts;
+    }
+
+    private void crashAndRecover(int parallelism)
+            throws IOException, DbException, TransactionAbortedException {
+        for (int txn = 0; txn < COMMITTED; txn++)
+            insertRows(txn).commit();
+        // the loser's pages reach the file, and must be rolled back
+        insertRows(COMMITTED);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        LogFile.setRecoveryParallelism(parallelism);
+        Database.getLogFile().recover();
+
+        int[] counts = countRows();
+        for (int txn = 0; txn < COMMITTED; txn++)
+            assertEquals(ROWS, counts[txn]);
+        assertEquals(0, counts[COMMITTED]);
+
+        // the recovered log can be appended to, and recovered again
+        insertRows(0).commit();
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(2 * ROWS, countRows()[0]);
+    }
+
+    @Test public void testSerialRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        crashAndRecover(1);
+    }
+
+    @Test public void testParallelRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        crashAndRecover(4);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -110,6 +110,49 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that scanning a table larger than the buffer pool does not
+     * evict the pages of a small table that was cached before.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testLargeScanKeepsCache() throws IOException, DbException, TransactionAbortedException {
+        /* Counts the number of readPage operations. */
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                readCount += 1;
+                return super.readPage(pid);
+            }
+
+            public int readCount = 0;
+        }
+
+        final int POOL_PAGES = 16;
+        final int SMALL_PAGES = 4;
+        final int LARGE_PAGES = 3 * POOL_PAGES;
+        Database.resetBufferPool(POOL_PAGES);
+
+        List<List<Integer>> smallTuples = new ArrayList<>();
+        File sf = SystemTestUtil.createRandomHeapFileUnopened(1, 992*SMALL_PAGES, 1000, null, smallTuples);
+        InstrumentedHeapFile small = new InstrumentedHeapFile(sf, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(small, SystemTestUtil.getUUID());
+
+        List<List<Integer>> largeTuples = new ArrayList<>();
+        HeapFile large = SystemTestUtil.createRandomHeapFile(1, 992*LARGE_PAGES, 1000, null, largeTuples);
+
+        SystemTestUtil.matchTuples(small, smallTuples);
+        assertEquals(SMALL_PAGES, small.readCount);
+        small.readCount = 0;
+
+        // the large scan goes through a private ring, so the small table stays cached
+        SystemTestUtil.matchTuples(large, largeTuples);
+        SystemTestUtil.matchTuples(small, smallTuples);
+        assertEquals(0, small.readCount);
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */
@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -99,6 +100,36 @@ public class SystemTestUtil {
         return list;
     }
 
+    /** Orders rows of ints column by column. */
+    private static final Comparator<List<Integer>> ROW_ORDER = (a, b) -> {
+        for (int i = 0; i < a.size(); i++) {
+            int c = Integer.compare(a.get(i), b.get(i));
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    };
+
+    /**
+     * Returns a sorted copy of rows, so that operators whose output comes
+     * in no particular order can be compared with assertEquals.
+     */
+    public static List<List<Integer>> sorted(List<List<Integer>> rows) {
+        List<List<Integer>> copy = new ArrayList<>(rows);
+        copy.sort(ROW_ORDER);
+        return copy;
+    }
+
+    /** Reads the rest of an open iterator and returns its rows, sorted. */
+    public static List<List<Integer>> sortedRows(OpIterator iterator)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        while (iterator.hasNext())
+            rows.add(tupleToList(iterator.next()));
+        rows.sort(ROW_ORDER);
+        return rows;
+    }
+
     public static void matchTuples(DbFile f, List<List<Integer>> tuples)
             throws DbException, TransactionAbortedException {
         TransactionId tid = new TransactionId();
@@ -10,6 +10,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.After;
 import org.junit.Test;
 
 import simpledb.common.Database;
@@ -234,10 +235,17 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
+    @After public void resetCleaner() {
+        BufferPool.resetCleaner();
+    }
+
     @Test public void testAllDirtyFails()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        // with the cleaner on, the dirty page would be stolen and written
+        // out; PageCleanerTest covers that
+        BufferPool.setCleanerThreads(0);
         Database.resetBufferPool(1);
 
         // BEGIN TRANSACTION